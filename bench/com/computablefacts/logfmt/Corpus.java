@@ -0,0 +1,211 @@
+package com.computablefacts.logfmt;
+
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The log lines used by the benchmarks. Each corpus holds a fixed set of lines built from a seeded
+ * {@link Random}, so that two runs (or two releases) measure the same inputs. A line is available
+ * as the fields given to a {@link LogFormatter} and as the logfmt string (and UTF-8 bytes) these
+ * fields are formatted to.
+ */
+final class Corpus {
+
+  private static final int NB_LINES = 256;
+  private static final String[] LEVELS = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL"};
+  private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE"};
+  private static final String[] WORDS = {"user", "session", "cache", "miss", "request", "timeout", "retry",
+      "connection", "pool", "exhausted", "query", "slow", "héllo", "wörld", "commit", "rollback"};
+
+  private final String[][] keys_;
+  private final Object[][] values_;
+  private final String[] lines_;
+  private final byte[][] bytes_;
+
+  private Corpus(eCorpus corpus) {
+
+    Random random = new Random(42);
+
+    keys_ = new String[NB_LINES][];
+    values_ = new Object[NB_LINES][];
+    lines_ = new String[NB_LINES];
+    bytes_ = new byte[NB_LINES][];
+
+    for (int i = 0; i < NB_LINES; i++) {
+
+      List<String> keys = new ArrayList<>();
+      List<Object> values = new ArrayList<>();
+
+      switch (corpus) {
+        case SHORT:
+          shortLine(random, keys, values);
+          break;
+        case WIDE:
+          wideLine(random, keys, values);
+          break;
+        case ESCAPED:
+          escapedLine(random, keys, values);
+          break;
+        case STACK_TRACE:
+          stackTraceLine(random, keys, values);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown corpus " + corpus);
+      }
+
+      keys_[i] = keys.toArray(new String[0]);
+      values_[i] = values.toArray();
+      lines_[i] = fill(LogFormatter.create(), i).format();
+      bytes_[i] = lines_[i].getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  static Corpus of(eCorpus corpus) {
+    return new Corpus(corpus);
+  }
+
+  private static void shortLine(Random random, List<String> keys, List<Object> values) {
+    keys.add("level");
+    values.add(LEVELS[random.nextInt(LEVELS.length)]);
+    keys.add("msg");
+    values.add(words(random, 3));
+    keys.add("status");
+    values.add(random.nextBoolean() ? 200 : 404);
+    keys.add("duration_ms");
+    values.add((long) random.nextInt(1000));
+  }
+
+  private static void wideLine(Random random, List<String> keys, List<Object> values) {
+    for (int i = 0; i < 30; i++) {
+
+      keys.add(String.format("field_%02d", i));
+
+      switch (i % 6) {
+        case 0:
+          values.add(random.nextLong());
+          break;
+        case 1:
+          values.add(random.nextDouble() * 1000);
+          break;
+        case 2:
+          values.add(random.nextBoolean());
+          break;
+        case 3:
+          values.add(METHODS[random.nextInt(METHODS.length)]);
+          break;
+        case 4:
+          values.add(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+          break;
+        default:
+          values.add(words(random, 1 + random.nextInt(4)));
+      }
+    }
+  }
+
+  private static void escapedLine(Random random, List<String> keys, List<Object> values) {
+    keys.add("level");
+    values.add(LEVELS[random.nextInt(LEVELS.length)]);
+    keys.add("query");
+    values.add("SELECT * FROM users WHERE name = \"" + words(random, 1) + "\" AND id = " + random.nextInt(1000));
+    keys.add("payload");
+    values.add("{\"user\":\"" + words(random, 1) + "\",\"tags\":[\"a=b\",\"c\\\\d\"]}");
+    keys.add("path");
+    values.add("C:\\Users\\" + words(random, 1) + "\\AppData\\Local\\Temp");
+    keys.add("msg");
+    values.add(words(random, 4) + "\n\t" + words(random, 4) + "\r\n");
+  }
+
+  private static void stackTraceLine(Random random, List<String> keys, List<Object> values) {
+    keys.add("level");
+    values.add("ERROR");
+    keys.add("trace_id");
+    values.add(Long.toHexString(random.nextLong()));
+    keys.add("msg");
+    values.add(throwable(random.nextInt(10) + 20));
+  }
+
+  private static String words(Random random, int nbWords) {
+
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < nbWords; i++) {
+      if (i > 0) {
+        builder.append(' ');
+      }
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+
+  private static Throwable throwable(int depth) {
+    try {
+      recurse(depth);
+      throw new IllegalStateException("unreachable");
+    } catch (RuntimeException e) {
+      return new IllegalStateException("request failed", e);
+    }
+  }
+
+  private static void recurse(int depth) {
+    if (depth <= 0) {
+      throw new IllegalArgumentException("connection pool exhausted : \"db-01\" timed out");
+    }
+    recurse(depth - 1);
+  }
+
+  int size() {
+    return NB_LINES;
+  }
+
+  String line(int i) {
+    return lines_[i];
+  }
+
+  byte[] bytes(int i) {
+    return bytes_[i];
+  }
+
+  /**
+   * @return the values of all the fields of all the lines that are strings.
+   */
+  List<String> strings() {
+
+    List<String> strings = new ArrayList<>();
+
+    for (Object[] values : values_) {
+      for (Object value : values) {
+        if (value instanceof String) {
+          strings.add((String) value);
+        }
+      }
+    }
+    return strings;
+  }
+
+  @CanIgnoreReturnValue
+  LogFormatter fill(LogFormatter formatter, int i) {
+    String[] keys = keys_[i];
+    Object[] values = values_[i];
+    for (int j = 0; j < keys.length; j++) {
+      formatter.add(keys[j], values[j]);
+    }
+    return formatter;
+  }
+
+  @CanIgnoreReturnValue
+  BaselineLogFormatter fill(BaselineLogFormatter formatter, int i) {
+    String[] keys = keys_[i];
+    Object[] values = values_[i];
+    for (int j = 0; j < keys.length; j++) {
+      formatter.add(keys[j], values[j]);
+    }
+    return formatter;
+  }
+
+  enum eCorpus {
+    SHORT, WIDE, ESCAPED, STACK_TRACE
+  }
+}
@@ -0,0 +1,86 @@
+package com.computablefacts.logfmt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fill a formatter with the fields of one line of the corpus and format it, per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatBenchmark {
+
+  @Param({"SHORT", "WIDE", "ESCAPED", "STACK_TRACE"})
+  public String corpus;
+
+  private Corpus corpus_;
+  private LogFormatter formatter_;
+  private LogFormatter contextFormatter_;
+  private BaselineLogFormatter baseline_;
+  private ByteBuffer buffer_;
+  private int line_;
+
+  @Setup
+  public void setUp() {
+    corpus_ = Corpus.of(Corpus.eCorpus.valueOf(corpus));
+    formatter_ = LogFormatter.create();
+    contextFormatter_ = LogFormatter.create().context(
+        LogContext.builder().add("service", "billing-api").add("version", "2.14.1").add("host", "ip-10-0-3-17")
+            .add("region", "eu-west-1").add("pod", "billing-api-7d9f8b6c4-xk2lp").add("env", "prod").build());
+    baseline_ = BaselineLogFormatter.create();
+    buffer_ = ByteBuffer.allocateDirect(64 * 1024);
+  }
+
+  private int next() {
+    line_ = (line_ + 1) % corpus_.size();
+    return line_;
+  }
+
+  @Benchmark
+  public String baseline() {
+    return corpus_.fill(baseline_, next()).format();
+  }
+
+  @Benchmark
+  public String formatString() {
+    return corpus_.fill(formatter_, next()).format();
+  }
+
+  @Benchmark
+  public ByteBuffer formatBuffer() {
+    buffer_.clear();
+    return corpus_.fill(formatter_, next()).format(buffer_);
+  }
+
+  @Benchmark
+  public String formatInfo() {
+    return corpus_.fill(formatter_, next()).formatInfo();
+  }
+
+  @Benchmark
+  public String formatContextFields() {
+    return corpus_.fill(formatter_, next()).add("service", "billing-api").add("version", "2.14.1")
+        .add("host", "ip-10-0-3-17").add("region", "eu-west-1").add("pod", "billing-api-7d9f8b6c4-xk2lp")
+        .add("env", "prod").format();
+  }
+
+  @Benchmark
+  public String formatContext() {
+    return corpus_.fill(contextFormatter_, next()).format();
+  }
+}
@@ -0,0 +1,209 @@
+package com.computablefacts.logfmt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parse one line of the corpus per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+  @Param({"SHORT", "WIDE", "ESCAPED", "STACK_TRACE"})
+  public String corpus;
+
+  private static final KeyMatcher KEYS = KeyMatcher.of("level", "status", "trace_id");
+  private static final LogQuery QUERY = LogQuery.compile("level=ERROR and status!=200");
+  private static final LogBlockCodec CODEC = LogBlockCodec.create();
+  private static final LogBlockCodec STORED = LogBlockCodec.builder().compression(0).build();
+
+  private final StringInterner interner_ = StringInterner.create(4096);
+  private Corpus corpus_;
+  private ByteBuffer[] buffers_;
+  private byte[] blocks_;
+  private byte[] storedBlocks_;
+  private LogBlockCodec.Reader reader_;
+  private LogBlockCodec.Reader storedReader_;
+  private int line_;
+
+  @Setup
+  public void setUp() throws IOException {
+
+    corpus_ = Corpus.of(Corpus.eCorpus.valueOf(corpus));
+    buffers_ = new ByteBuffer[corpus_.size()];
+
+    for (int i = 0; i < buffers_.length; i++) {
+
+      byte[] bytes = corpus_.bytes(i);
+
+      buffers_[i] = ByteBuffer.allocateDirect(bytes.length);
+      buffers_[i].put(bytes).flip();
+    }
+
+    blocks_ = encode(CODEC);
+    reader_ = CODEC.reader(new ByteArrayInputStream(blocks_));
+    storedBlocks_ = encode(STORED);
+    storedReader_ = STORED.reader(new ByteArrayInputStream(storedBlocks_));
+  }
+
+  private byte[] encode(LogBlockCodec codec) throws IOException {
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+    try (LogBlockCodec.Writer writer = codec.writer(stream)) {
+      for (int i = 0; i < corpus_.size(); i++) {
+        writer.write(corpus_.line(i));
+      }
+    }
+    return stream.toByteArray();
+  }
+
+  private int next() {
+    line_ = (line_ + 1) % corpus_.size();
+    return line_;
+  }
+
+  @Benchmark
+  public Map<String, String> baseline() {
+    return BaselineLogFormatter.parse(corpus_.line(next()));
+  }
+
+  @Benchmark
+  public Map<String, String> parseString() {
+    return LogFormatter.parse(corpus_.line(next()));
+  }
+
+  @Benchmark
+  public Map<String, String> parseBytes() {
+    byte[] bytes = corpus_.bytes(next());
+    return LogFormatter.parse(bytes, 0, bytes.length);
+  }
+
+  @Benchmark
+  public void parseDirectBuffer(Blackhole blackhole) {
+    LogFormatter.parse(buffers_[next()], (log, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      blackhole.consume(LogFormatter.value(log, valueStart, valueEnd, flags));
+      return true;
+    });
+  }
+
+  @Benchmark
+  public void parseBytesVisitor(Blackhole blackhole) {
+    byte[] bytes = corpus_.bytes(next());
+    LogFormatter.parse(bytes, 0, bytes.length, (log, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      blackhole.consume(valueEnd - keyStart);
+      return true;
+    });
+  }
+
+  @Benchmark
+  public Map<String, String> parseKeys() {
+    return LogFormatter.parse(corpus_.line(next()), KEYS);
+  }
+
+  @Benchmark
+  public Map<String, String> parseInterned() {
+    byte[] bytes = corpus_.bytes(next());
+    return LogFormatter.parse(bytes, 0, bytes.length, interner_);
+  }
+
+  @Benchmark
+  public void parseVisitor(Blackhole blackhole) {
+    LogFormatter.parse(corpus_.line(next()), (log, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      blackhole.consume(valueEnd - keyStart);
+      return true;
+    });
+  }
+
+  @Benchmark
+  public boolean filterMap() {
+    Map<String, String> log = LogFormatter.parse(corpus_.line(next()));
+    return "ERROR".equals(log.get("level")) && log.containsKey("status") && !"200".equals(log.get("status"));
+  }
+
+  @Benchmark
+  public boolean filterQuery() {
+    return QUERY.matches(corpus_.line(next()));
+  }
+
+  @Benchmark
+  public Map<String, String> readBinary() throws IOException {
+
+    Map<String, String> log = reader_.read();
+
+    if (log != null) {
+      return log;
+    }
+
+    // Start over once the whole corpus has been decoded
+    reader_ = CODEC.reader(new ByteArrayInputStream(blocks_));
+    return reader_.read();
+  }
+
+  @Benchmark
+  public void readBinaryVisitor(Blackhole blackhole) throws IOException {
+
+    FieldVisitor visitor = (log, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      blackhole.consume(valueEnd - keyStart);
+      return true;
+    };
+
+    if (!reader_.read(visitor)) {
+
+      // Start over once the whole corpus has been decoded
+      reader_ = CODEC.reader(new ByteArrayInputStream(blocks_));
+      reader_.read(visitor);
+    }
+  }
+
+  @Benchmark
+  public Map<String, String> readStoredBinary() throws IOException {
+
+    Map<String, String> log = storedReader_.read();
+
+    if (log != null) {
+      return log;
+    }
+
+    // Start over once the whole corpus has been decoded
+    storedReader_ = STORED.reader(new ByteArrayInputStream(storedBlocks_));
+    return storedReader_.read();
+  }
+
+  @Benchmark
+  public void readStoredBinaryVisitor(Blackhole blackhole) throws IOException {
+
+    FieldVisitor visitor = (log, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      blackhole.consume(valueEnd - keyStart);
+      return true;
+    };
+
+    if (!storedReader_.read(visitor)) {
+
+      // Start over once the whole corpus has been decoded
+      storedReader_ = STORED.reader(new ByteArrayInputStream(storedBlocks_));
+      storedReader_.read(visitor);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.computablefacts.logfmt;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Quote and unquote one string value of the corpus per operation. Unquoting works on the quoted
+ * form of the value, without the surrounding double quotes, as the parser does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuotingBenchmark {
+
+  @Param({"SHORT", "WIDE", "ESCAPED", "STACK_TRACE"})
+  public String corpus;
+
+  private String[] strings_;
+  private String[] quoted_;
+  private final StringBuilder builder_ = new StringBuilder();
+  private int string_;
+
+  @Setup
+  public void setUp() {
+
+    List<String> strings = Corpus.of(Corpus.eCorpus.valueOf(corpus)).strings();
+
+    strings_ = strings.toArray(new String[0]);
+    quoted_ = new String[strings_.length];
+
+    for (int i = 0; i < strings_.length; i++) {
+
+      String quoted = LogEncoder.quote(new StringBuilder(), strings_[i]).toString();
+
+      quoted_[i] = quoted.startsWith("\"") ? quoted.substring(1, quoted.length() - 1) : quoted;
+    }
+  }
+
+  private int next() {
+    string_ = (string_ + 1) % strings_.length;
+    return string_;
+  }
+
+  @Benchmark
+  public boolean baselineNeedsQuoting() {
+    return BaselineLogFormatter.needsQuoting(strings_[next()]);
+  }
+
+  @Benchmark
+  public boolean needsQuoting() {
+    return Delimiters.needsQuoting(strings_[next()]);
+  }
+
+  @Benchmark
+  public StringBuilder baselineQuote() {
+    builder_.setLength(0);
+    return BaselineLogFormatter.quote(builder_, strings_[next()]);
+  }
+
+  @Benchmark
+  public StringBuilder quote() {
+    builder_.setLength(0);
+    return LogEncoder.quote(builder_, strings_[next()]);
+  }
+
+  @Benchmark
+  public String baselineUnquote() {
+    return BaselineLogFormatter.unquote(quoted_[next()].toCharArray());
+  }
+
+  @Benchmark
+  public String unquote() {
+    String quoted = quoted_[next()];
+    return LogFormatter.value(quoted, 0, quoted.length(), FieldVisitor.ESCAPED);
+  }
+}
@@ -0,0 +1,480 @@
+package com.computablefacts.logfmt;
+
+import com.computablefacts.logfmt.LogFormatter.eLogLevel;
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write log lines from a background thread.
+ *
+ * Producers claim a slot in a pre-allocated multi-producer ring buffer, encode the line directly
+ * into the slot buffer then publish the slot. A single consumer thread drains the published slots
+ * and writes them in batches to a {@link WritableByteChannel} (using a gathering write when
+ * possible) or to an {@link OutputStream}. Producers never wait for I/O : when the ring buffer is
+ * full, they either wait for a free slot, drop the line or sample lines, depending on the
+ * {@link eBackPressure} policy.
+ *
+ * Each line is terminated by a '\n'. Lines submitted concurrently with {@link #close()} are either
+ * written or counted as dropped : once it has drained the ring buffer, the consumer seals it so
+ * that no slot can be claimed after it has stopped.
+ */
+@CheckReturnValue
+final public class AsyncLogSink implements Closeable {
+
+  private static final int SPINS = 64;
+  private static final long PARK_NANOS = 50_000L;
+  private static final long SEALED = -1;
+
+  private final WritableByteChannel channel_;
+  private final OutputStream stream_;
+  private final eBackPressure backPressure_;
+  private final int sampling_;
+  private final int mask_;
+  private final ByteBuffer[] slots_;
+  private final ByteBuffer[] batch_;
+  private final AtomicLongArray published_;
+  private final AtomicLong claimed_ = new AtomicLong();
+  private final AtomicLong consumed_ = new AtomicLong();
+  private final AtomicLong flushed_ = new AtomicLong();
+  private final AtomicLong sampler_ = new AtomicLong();
+  private final LongAdder written_ = new LongAdder();
+  private final LongAdder dropped_ = new LongAdder();
+  private final LongAdder sampled_ = new LongAdder();
+  private final AtomicReference<IOException> error_ = new AtomicReference<>();
+  private final Thread consumer_;
+  private volatile boolean closed_ = false;
+
+  private AsyncLogSink(Builder builder) {
+
+    channel_ = builder.channel_;
+    stream_ = builder.stream_;
+    backPressure_ = builder.backPressure_;
+    sampling_ = builder.sampling_;
+    mask_ = builder.capacity_ - 1;
+    slots_ = new ByteBuffer[builder.capacity_];
+    batch_ = new ByteBuffer[Math.min(builder.batchSize_, builder.capacity_)];
+    published_ = new AtomicLongArray(builder.capacity_);
+
+    for (int i = 0; i < slots_.length; i++) {
+      slots_[i] = allocate(builder.slotSize_);
+      published_.set(i, -1);
+    }
+
+    consumer_ = new Thread(this::consume, "logfmt-async-sink");
+    consumer_.setDaemon(true);
+    consumer_.start();
+  }
+
+  public static Builder builder(WritableByteChannel channel) {
+    return new Builder(Preconditions.checkNotNull(channel, "channel should not be null"), null);
+  }
+
+  public static Builder builder(OutputStream stream) {
+    return new Builder(null, Preconditions.checkNotNull(stream, "stream should not be null"));
+  }
+
+  /**
+   * Stop accepting lines, write the pending ones and close the underlying channel or stream.
+   *
+   * @throws IOException if a write failed at some point.
+   */
+  @Override
+  public void close() throws IOException {
+
+    closed_ = true;
+    LockSupport.unpark(consumer_);
+
+    try {
+      consumer_.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (channel_ != null) {
+      channel_.close();
+    } else {
+      stream_.close();
+    }
+
+    IOException error = error_.get();
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Wait until all the lines submitted so far have been handed over to the underlying channel or
+   * stream.
+   */
+  public void flush() {
+
+    long target = claimed_.get();
+
+    while (flushed_.get() < target && consumer_.isAlive()) {
+      LockSupport.unpark(consumer_);
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+  }
+
+  /**
+   * @return the number of lines written so far.
+   */
+  public long written() {
+    return written_.sum();
+  }
+
+  /**
+   * @return the number of lines dropped because the ring buffer was full or the sink closed.
+   */
+  public long dropped() {
+    return dropped_.sum();
+  }
+
+  /**
+   * @return the number of lines discarded by the {@link eBackPressure#SAMPLE} policy.
+   */
+  public long sampled() {
+    return sampled_.sum();
+  }
+
+  /**
+   * Write the fields of a formatter as-is. The formatter fields are removed, even if the line is
+   * dropped. Unlike {@link #writeInfo(LogFormatter)} and its siblings, the line does not go through
+   * the formatter {@link LogRateLimiter}, if any : the others return false when it suppresses the
+   * line.
+   *
+   * @param formatter the formatter.
+   * @return true if the line has been accepted, false if it has been dropped.
+   */
+  @CanIgnoreReturnValue
+  public boolean write(LogFormatter formatter) {
+    return publish(formatter, null);
+  }
+
+  @CanIgnoreReturnValue
+  public boolean writeTrace(LogFormatter formatter) {
+    return publish(formatter, eLogLevel.TRACE);
+  }
+
+  @CanIgnoreReturnValue
+  public boolean writeDebug(LogFormatter formatter) {
+    return publish(formatter, eLogLevel.DEBUG);
+  }
+
+  @CanIgnoreReturnValue
+  public boolean writeInfo(LogFormatter formatter) {
+    return publish(formatter, eLogLevel.INFO);
+  }
+
+  @CanIgnoreReturnValue
+  public boolean writeWarn(LogFormatter formatter) {
+    return publish(formatter, eLogLevel.WARN);
+  }
+
+  @CanIgnoreReturnValue
+  public boolean writeError(LogFormatter formatter) {
+    return publish(formatter, eLogLevel.ERROR);
+  }
+
+  @CanIgnoreReturnValue
+  public boolean writeFatal(LogFormatter formatter) {
+    return publish(formatter, eLogLevel.FATAL);
+  }
+
+  private boolean publish(LogFormatter formatter, eLogLevel level) {
+
+    Preconditions.checkNotNull(formatter, "formatter should not be null");
+
+    // A line suppressed by the formatter rate limiter neither takes a slot nor is encoded
+    long suppressed = level == null ? 0 : formatter.admit(level);
+
+    if (suppressed < 0) {
+      return false;
+    }
+
+    long sequence = claim();
+
+    if (sequence < 0) {
+      formatter.discard();
+      return false;
+    }
+
+    int slot = (int) (sequence & mask_);
+    @Var ByteBuffer buffer = slots_[slot];
+    @Var boolean encoded = false;
+    LogEncoder encoder = LogEncoder.acquire();
+
+    try {
+      StringBuilder line = formatter.encode(encoder, level, suppressed);
+
+      // A char never takes more than 3 bytes once encoded, so the exact length is only computed
+      // for long lines.
+      if (buffer.capacity() < 3 * line.length() + 1) {
+
+        int length = Utf8Sequence.encodedLength(line, 0, line.length()) + 1;
+
+        if (buffer.capacity() < length) {
+          buffer = allocate(Math.max(length, 2 * buffer.capacity()));
+          slots_[slot] = buffer;
+        }
+      }
+
+      buffer.clear();
+      Utf8Sequence.put(line, 0, line.length(), buffer);
+      buffer.put((byte) '\n');
+      buffer.flip();
+
+      encoded = true;
+      return true;
+    } finally {
+      encoder.release();
+
+      // The slot must be published no matter what, otherwise the consumer would wait forever
+      if (!encoded) {
+        buffer.clear();
+        buffer.limit(0);
+      }
+      published_.lazySet(slot, sequence);
+    }
+  }
+
+  private long claim() {
+    while (true) {
+
+      long sequence = claimed_.get();
+
+      if (closed_ || sequence == SEALED) {
+        dropped_.increment();
+        return -1;
+      }
+
+      long used = sequence - consumed_.get();
+
+      if (used >= slots_.length) {
+
+        // Do not wait for a consumer that is gone, e.g. killed by an unchecked exception
+        if (backPressure_ != eBackPressure.BLOCK || !consumer_.isAlive()) {
+          dropped_.increment();
+          return -1;
+        }
+        Thread.yield();
+        continue;
+      }
+      if (backPressure_ == eBackPressure.SAMPLE && 2 * used >= slots_.length
+          && sampler_.getAndIncrement() % sampling_ != 0) {
+        sampled_.increment();
+        return -1;
+      }
+      if (claimed_.compareAndSet(sequence, sequence + 1)) {
+        return sequence;
+      }
+    }
+  }
+
+  private void consume() {
+
+    @Var int idle = 0;
+
+    while (true) {
+
+      long next = consumed_.get();
+      @Var int size = 0;
+
+      while (size < batch_.length && published_.get((int) ((next + size) & mask_)) == next + size) {
+        batch_[size] = slots_[(int) ((next + size) & mask_)];
+        size++;
+      }
+
+      if (size > 0) {
+        write(size);
+        consumed_.lazySet(next + size);
+        idle = 0;
+        continue;
+      }
+      if (idle == 0) {
+        flush(next);
+      }
+
+      // A producer may have checked closed_ before close() and not have claimed its slot yet :
+      // sealing the ring buffer makes its claim fail instead of succeeding after the consumer left
+      if (closed_ && claimed_.compareAndSet(next, SEALED)) {
+        break;
+      }
+      if (++idle < SPINS) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(this, PARK_NANOS);
+      }
+    }
+  }
+
+  private void write(int size) {
+    try {
+      if (stream_ != null) {
+        for (int i = 0; i < size; i++) {
+          ByteBuffer buffer = batch_[i];
+          stream_.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+      } else if (channel_ instanceof GatheringByteChannel) {
+
+        @Var long remaining = 0;
+
+        for (int i = 0; i < size; i++) {
+          remaining += batch_[i].remaining();
+        }
+        while (remaining > 0) {
+          remaining -= ((GatheringByteChannel) channel_).write(batch_, 0, size);
+        }
+      } else {
+        for (int i = 0; i < size; i++) {
+          while (batch_[i].hasRemaining()) {
+            channel_.write(batch_[i]);
+          }
+        }
+      }
+      written_.add(size);
+    } catch (IOException e) {
+      error_.compareAndSet(null, e);
+      dropped_.add(size);
+    }
+  }
+
+  private void flush(long consumed) {
+    try {
+      if (stream_ != null) {
+        stream_.flush();
+      }
+    } catch (IOException e) {
+      error_.compareAndSet(null, e);
+    }
+    flushed_.set(consumed);
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return stream_ != null ? ByteBuffer.allocate(capacity) : ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * What a producer does when the ring buffer is full.
+   */
+  public enum eBackPressure {
+
+    /**
+     * Wait until a slot is freed.
+     */
+    BLOCK,
+
+    /**
+     * Drop the line.
+     */
+    DROP,
+
+    /**
+     * Keep one line out of n once the ring buffer is half full, drop the line when the ring buffer
+     * is full.
+     */
+    SAMPLE
+  }
+
+  final public static class Builder {
+
+    private final WritableByteChannel channel_;
+    private final OutputStream stream_;
+    private int capacity_ = 4096;
+    private int slotSize_ = 512;
+    private int batchSize_ = 256;
+    private eBackPressure backPressure_ = eBackPressure.BLOCK;
+    private int sampling_ = 1;
+
+    private Builder(WritableByteChannel channel, OutputStream stream) {
+      channel_ = channel;
+      stream_ = stream;
+    }
+
+    /**
+     * @param capacity the number of slots of the ring buffer. Rounded up to a power of 2.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder capacity(int capacity) {
+
+      Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30), "capacity must be in ]0, 2^30]");
+
+      capacity_ = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+      return this;
+    }
+
+    /**
+     * @param slotSize the initial size in bytes of each slot. Slots grow when a line does not fit.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder slotSize(int slotSize) {
+
+      Preconditions.checkArgument(slotSize > 0, "slotSize must be > 0");
+
+      slotSize_ = slotSize;
+      return this;
+    }
+
+    /**
+     * @param batchSize the maximum number of lines handed over to the channel or stream at once.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder batchSize(int batchSize) {
+
+      Preconditions.checkArgument(batchSize > 0, "batchSize must be > 0");
+
+      batchSize_ = batchSize;
+      return this;
+    }
+
+    @CanIgnoreReturnValue
+    public Builder block() {
+      backPressure_ = eBackPressure.BLOCK;
+      return this;
+    }
+
+    @CanIgnoreReturnValue
+    public Builder drop() {
+      backPressure_ = eBackPressure.DROP;
+      return this;
+    }
+
+    /**
+     * @param n keep one line out of n once the ring buffer is half full.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder sample(int n) {
+
+      Preconditions.checkArgument(n > 0, "n must be > 0");
+
+      backPressure_ = eBackPressure.SAMPLE;
+      sampling_ = n;
+      return this;
+    }
+
+    /**
+     * @return a new sink. Its consumer thread is already running.
+     */
+    public AsyncLogSink build() {
+      return new AsyncLogSink(this);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package com.computablefacts.logfmt;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+
+/**
+ * Find the characters that matter to the parser and to the quoter, skipping the others in bulk.
+ *
+ * A value ends at a space (unquoted values only), a control character, a '=' or a '"' and a
+ * backslash starts an escape sequence. The same characters, space aside, are the ones the quoter
+ * must escape. Everything else, including all non-ASCII characters, is copied as is.
+ *
+ * Direct (and memory-mapped) buffers are scanned 8 bytes at a time with SWAR (SIMD within a
+ * register) bit tricks, {@link java.nio.ByteBuffer#getLong(int)} being a single unaligned load
+ * there. Strings, byte arrays and other char sequences, although they are the most common inputs,
+ * are scanned one element at a time through a lookup table. Java 8 has no Vector API, cannot read
+ * several chars of a String at once without copying them, and can only assemble a word of a byte
+ * array from 8 loads : measured with ParseBenchmark.parseBytesVisitor, that SWAR loop is no faster
+ * than the table and up to 15% slower on short values.
+ */
+@CheckReturnValue
+final class Delimiters {
+
+  private static final byte UNQUOTED = 1;
+  private static final byte QUOTED = 2;
+  private static final byte SAFE = 4;
+  private static final byte[] CLASSES = new byte[128];
+
+  private static final long ONES = 0x0101010101010101L;
+  private static final long HIGHS = 0x8080808080808080L;
+  private static final long EQUAL = ONES * '=';
+  private static final long DOUBLE_QUOTE = ONES * '"';
+  private static final long BACKSLASH = ONES * '\\';
+
+  static {
+    for (int c = 0; c < 128; c++) {
+
+      @Var byte clazz = 0;
+
+      if (c <= ' ' || c == '=' || c == '"' || c == '\\') {
+        clazz |= UNQUOTED;
+      }
+      if (c < ' ' || c == '=' || c == '"' || c == '\\') {
+        clazz |= QUOTED;
+      }
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.') {
+        clazz |= SAFE;
+      }
+      CLASSES[c] = clazz;
+    }
+  }
+
+  private Delimiters() {
+  }
+
+  /**
+   * Find the next character that may end a key or a value, or start an escape sequence.
+   *
+   * @param string the characters to scan.
+   * @param from the index of the first character to scan.
+   * @param to the index after the last character to scan.
+   * @param quoted true iif the scanned characters belong to a quoted value i.e. spaces are allowed.
+   * @return the index of the first delimiter in [from, to) or {@code to} if there is none.
+   */
+  static int indexOf(CharSequence string, int from, int to, boolean quoted) {
+    if (string instanceof Utf8Sequence) {
+      return ((Utf8Sequence) string).indexOfDelimiter(from, to, quoted);
+    }
+
+    byte mask = quoted ? QUOTED : UNQUOTED;
+
+    for (int i = from; i < to; i++) {
+
+      char c = string.charAt(i);
+
+      if (c < 128 && (CLASSES[c] & mask) != 0) {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  /**
+   * Find the next byte that may end a key or a value, or start an escape sequence.
+   *
+   * @param bytes the UTF-8 encoded bytes to scan.
+   * @param from the index of the first byte to scan.
+   * @param to the index after the last byte to scan.
+   * @param quoted true iif the scanned bytes belong to a quoted value.
+   * @return the index of the first delimiter in [from, to) or {@code to} if there is none.
+   */
+  static int indexOf(byte[] bytes, int from, int to, boolean quoted) {
+
+    byte mask = quoted ? QUOTED : UNQUOTED;
+
+    for (int i = from; i < to; i++) {
+
+      byte b = bytes[i];
+
+      if (b >= 0 && (CLASSES[b] & mask) != 0) {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  static boolean isDelimiter(byte b, boolean quoted) {
+    return b >= 0 && (CLASSES[b] & (quoted ? QUOTED : UNQUOTED)) != 0;
+  }
+
+  /**
+   * Find the next character the quoter must escape.
+   *
+   * @param string the characters to scan.
+   * @param from the index of the first character to scan.
+   * @param to the index after the last character to scan.
+   * @return the index of the first character to escape in [from, to) or {@code to} if there is
+   *     none.
+   */
+  static int indexOfEscape(String string, int from, int to) {
+    return indexOf(string, from, to, true);
+  }
+
+  /**
+   * @param string the characters to scan.
+   * @return true iif the string holds a character other than an ASCII letter, an ASCII digit, '-'
+   *     or '.'.
+   */
+  static boolean needsQuoting(String string) {
+    return indexOfUnsafe(string) < string.length();
+  }
+
+  /**
+   * Find the first character that cannot appear in an unquoted value.
+   *
+   * @param string the characters to scan.
+   * @return the index of the first character other than an ASCII letter, an ASCII digit, '-' or
+   *     '.', or the length of the string if there is none.
+   */
+  static int indexOfUnsafe(String string) {
+    for (int i = 0; i < string.length(); i++) {
+
+      char c = string.charAt(i);
+
+      if (c >= 128 || (CLASSES[c] & SAFE) == 0) {
+        return i;
+      }
+    }
+    return string.length();
+  }
+
+  /**
+   * Find the next backslash i.e. the next escape sequence candidate.
+   *
+   * @param string the characters to scan.
+   * @param from the index of the first character to scan.
+   * @param to the index after the last character to scan.
+   * @return the index of the first backslash in [from, to) or -1 if there is none.
+   */
+  static int indexOfBackslash(CharSequence string, int from, int to) {
+    if (string instanceof String) {
+
+      int index = ((String) string).indexOf('\\', from);
+
+      return index < to ? index : -1;
+    }
+    for (int i = from; i < to; i++) {
+      if (string.charAt(i) == '\\') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Flag the delimiters held by 8 bytes read in little-endian order.
+   *
+   * The lowest flagged byte is always a delimiter. Higher bytes may be false positives because
+   * borrows propagate upward, so only the position of the lowest flag must be used.
+   *
+   * @param word 8 bytes, the first one in the least significant position.
+   * @param quoted true iif the bytes belong to a quoted value.
+   * @return a word whose high bit is set in (at least) the lowest byte holding a delimiter or 0 if
+   *     there is none.
+   */
+  static long delimiters(long word, boolean quoted) {
+    long controls = lessThan(word, quoted ? ' ' : ' ' + 1);
+    return controls | zero(word ^ EQUAL) | zero(word ^ DOUBLE_QUOTE) | zero(word ^ BACKSLASH);
+  }
+
+  /**
+   * @param word a word whose high bits are set by {@link #delimiters(long, boolean)}.
+   * @return the index of the lowest flagged byte.
+   */
+  static int firstByte(long word) {
+    return Long.numberOfTrailingZeros(word) >>> 3;
+  }
+
+  private static long zero(long word) {
+    return (word - ONES) & ~word & HIGHS;
+  }
+
+  private static long lessThan(long word, int n) {
+    return (word - ONES * n) & ~word & HIGHS;
+  }
+}
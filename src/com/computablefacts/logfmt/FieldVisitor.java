@@ -0,0 +1,38 @@
+package com.computablefacts.logfmt;
+
+/**
+ * Callback invoked by {@link LogFormatter#parse(CharSequence, FieldVisitor)} for each field of a
+ * log line.
+ *
+ * The key and the value are given as ranges over the original line. Nothing is copied : use
+ * {@link LogFormatter#key(CharSequence, int, int)} and
+ * {@link LogFormatter#value(CharSequence, int, int, int)} to materialize the fields you are
+ * interested in, and {@link LogFormatter#regionMatches(CharSequence, int, int, String)} to test a
+ * key without allocating.
+ */
+@FunctionalInterface
+public interface FieldVisitor {
+
+  /**
+   * The value was enclosed in double quotes. The value range never includes the quotes.
+   */
+  int QUOTED = 1;
+
+  /**
+   * The value contains at least one escape sequence and must be unquoted before use.
+   */
+  int ESCAPED = 2;
+
+  /**
+   * Visit a single field.
+   *
+   * @param log the line being parsed.
+   * @param keyStart the index of the first character of the key.
+   * @param keyEnd the index after the last character of the key.
+   * @param valueStart the index of the first character of the value.
+   * @param valueEnd the index after the last character of the value.
+   * @param flags a combination of {@link #QUOTED} and {@link #ESCAPED}.
+   * @return true to continue scanning the line, false to stop.
+   */
+  boolean visit(CharSequence log, int keyStart, int keyEnd, int valueStart, int valueEnd, int flags);
+}
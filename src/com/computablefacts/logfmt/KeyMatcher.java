@@ -0,0 +1,167 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of keys compiled for {@link LogFormatter#parse(String, KeyMatcher)}.
+ *
+ * The keys are indexed by their length, first and last characters, so that matching a key range
+ * of a log line against the set costs a couple of reads in the common case and never allocates.
+ * Keys are indexed twice, as UTF-16 characters and as UTF-8 bytes, in order to match ranges of
+ * strings and of raw byte buffers alike.
+ *
+ * A matcher is thread-safe and is meant to be shared.
+ */
+@CheckReturnValue
+final public class KeyMatcher {
+
+  private final String[] keys_;
+  private final char[][] chars_;
+  private final char[][] bytes_;
+  private final int[] charsIndex_;
+  private final int[] bytesIndex_;
+
+  private KeyMatcher(Set<String> keys) {
+
+    keys_ = keys.toArray(new String[0]);
+    chars_ = new char[keys_.length][];
+    bytes_ = new char[keys_.length][];
+
+    @Var boolean ascii = true;
+
+    for (int i = 0; i < keys_.length; i++) {
+
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(keys_[i]), "keys should neither be null nor empty");
+
+      chars_[i] = keys_[i].toCharArray();
+
+      byte[] utf8 = keys_[i].getBytes(StandardCharsets.UTF_8);
+
+      if (utf8.length == chars_[i].length) {
+        bytes_[i] = chars_[i];
+      } else {
+
+        ascii = false;
+        bytes_[i] = new char[utf8.length];
+
+        for (int j = 0; j < utf8.length; j++) {
+          bytes_[i][j] = (char) (utf8[j] & 0xFF);
+        }
+      }
+    }
+
+    charsIndex_ = index(chars_);
+    bytesIndex_ = ascii ? charsIndex_ : index(bytes_);
+  }
+
+  public static KeyMatcher of(String... keys) {
+
+    Preconditions.checkNotNull(keys, "keys should not be null");
+
+    Set<String> set = new LinkedHashSet<>();
+
+    for (String key : keys) {
+      set.add(key);
+    }
+    return new KeyMatcher(set);
+  }
+
+  public static KeyMatcher of(Collection<String> keys) {
+
+    Preconditions.checkNotNull(keys, "keys should not be null");
+
+    return new KeyMatcher(new LinkedHashSet<>(keys));
+  }
+
+  private static int hash(int length, char first, char last) {
+    int hash = (length * 31 + first) * 31 + last;
+    return hash ^ (hash >>> 7);
+  }
+
+  private static int[] index(char[][] keys) {
+
+    int[] index = new int[Integer.highestOneBit(Math.max(1, keys.length)) * 4];
+    int mask = index.length - 1;
+
+    for (int i = 0; i < keys.length; i++) {
+
+      char[] key = keys[i];
+      @Var int slot = hash(key.length, key[0], key[key.length - 1]) & mask;
+
+      while (index[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      index[slot] = i + 1;
+    }
+    return index;
+  }
+
+  /**
+   * @return the number of keys in the set.
+   */
+  public int size() {
+    return keys_.length;
+  }
+
+  /**
+   * @param slot a slot in [0, size()).
+   * @return the key stored in the slot.
+   */
+  public String key(int slot) {
+    return keys_[slot];
+  }
+
+  /**
+   * Find the slot of the key held by a range of a log line, without materializing the range.
+   *
+   * @param log the log line.
+   * @param start the index of the first character of the key.
+   * @param end the index after the last character of the key.
+   * @return the slot of the key or -1 if the key does not belong to the set.
+   */
+  public int slot(CharSequence log, int start, int end) {
+
+    Preconditions.checkNotNull(log, "log should not be null");
+
+    if (end <= start) {
+      return -1;
+    }
+
+    boolean utf8 = log instanceof Utf8Sequence;
+    char[][] keys = utf8 ? bytes_ : chars_;
+    int[] index = utf8 ? bytesIndex_ : charsIndex_;
+    int mask = index.length - 1;
+    int length = end - start;
+
+    for (int i = hash(length, log.charAt(start), log.charAt(end - 1)) & mask; ; i = (i + 1) & mask) {
+
+      int slot = index[i] - 1;
+
+      if (slot < 0) {
+        return -1;
+      }
+      if (matches(log, start, length, keys[slot])) {
+        return slot;
+      }
+    }
+  }
+
+  private static boolean matches(CharSequence log, int start, int length, char[] key) {
+    if (key.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (log.charAt(start + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,858 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collector;
+import java.util.stream.StreamSupport;
+
+/**
+ * Aggregate the fields of log lines in a single pass, without building a map per line.
+ *
+ * An aggregator is a list of operators over keys : exact counts by value, sums, quantiles,
+ * distinct counts and heavy hitters. It creates {@link Aggregate} instances that consume the
+ * field events of the parser directly : the values of the aggregated keys are decoded in place,
+ * values counted by {@link Builder#countBy(String)} are interned instead of being copied and the
+ * other keys are skipped. Aggregates are mergeable : each thread fills its own partial aggregate
+ * and the partial aggregates are merged at the end, see {@link #collector()} and
+ * {@link #aggregate(MappedLogReader, boolean)}.
+ *
+ * Except for exact counts, the memory used by an aggregate does not depend on the number of lines
+ * nor on the number of distinct values : quantiles are kept in a log-bucketed digest with a 1%
+ * relative error, distinct counts in a HyperLogLog with a 0.8% standard error and heavy hitters in
+ * a count-min sketch. When a key appears several times in a line, its first value is used, as with
+ * {@link LogFormatter#parse(String, KeyMatcher)}.
+ *
+ * An aggregator is immutable, thread-safe and is meant to be shared. Aggregates are not
+ * thread-safe.
+ */
+@CheckReturnValue
+final public class LogAggregator {
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final List<Operator> operators_;
+  private final KeyMatcher keys_;
+  private final int[] slots_;
+  private final LogQuery where_;
+
+  private LogAggregator(Builder builder) {
+
+    Set<String> keys = new LinkedHashSet<>();
+
+    for (Operator operator : builder.operators_) {
+      keys.add(operator.key_);
+    }
+
+    operators_ = new ArrayList<>(builder.operators_);
+    keys_ = KeyMatcher.of(keys);
+    slots_ = new int[operators_.size()];
+    where_ = builder.where_;
+
+    for (int i = 0; i < slots_.length; i++) {
+      for (int slot = 0; slot < keys_.size(); slot++) {
+        if (keys_.key(slot).equals(operators_.get(i).key_)) {
+          slots_[i] = slot;
+        }
+      }
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @return a new, empty, aggregate.
+   */
+  public Aggregate create() {
+    return new Aggregate();
+  }
+
+  /**
+   * Aggregate the lines of a stream, one partial aggregate per thread when the stream is parallel.
+   *
+   * @return a collector of log lines.
+   */
+  public Collector<String, Aggregate, Aggregate> collector() {
+    return Collector.of(this::create, Aggregate::add, Aggregate::merge, Collector.Characteristics.UNORDERED);
+  }
+
+  /**
+   * Aggregate the lines of a file. When the file is scanned in parallel, each chunk is aggregated
+   * into a partial aggregate and the partial aggregates are merged.
+   *
+   * @param reader the file.
+   * @param parallel true iif the chunks should be aggregated concurrently.
+   * @return the aggregate.
+   */
+  public Aggregate aggregate(MappedLogReader reader, boolean parallel) {
+
+    Preconditions.checkNotNull(reader, "reader should not be null");
+
+    // The line is aggregated by the same call to tryAdvance() it has been mapped by : it does not
+    // escape the spliterator
+    return StreamSupport.stream(reader.spliterator(line -> line, false), parallel)
+        .collect(this::create, Aggregate::add, Aggregate::merge);
+  }
+
+  /**
+   * Hash the unescaped value of a field. The hash does not depend on whether the line is a
+   * {@link String} or a UTF-8 encoded {@link Utf8Sequence}.
+   */
+  static long hash(CharSequence log, int start, int end, int flags) {
+
+    if ((flags & FieldVisitor.ESCAPED) == 0) {
+
+      boolean utf8 = log instanceof Utf8Sequence;
+      @Var long hash = FNV_OFFSET;
+      @Var int i = start;
+
+      for (; i < end; i++) {
+
+        char c = log.charAt(i);
+
+        if (utf8 && c >= 0x80) {
+          break;
+        }
+        hash = (hash ^ c) * FNV_PRIME;
+      }
+      if (i == end) {
+        return mix(hash);
+      }
+    }
+
+    String value = LogFormatter.value(log, start, end, flags);
+    @Var long hash = FNV_OFFSET;
+
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * The finalizer of MurmurHash3 : FNV-1a alone does not spread its bits enough for HyperLogLog.
+   */
+  private static long mix(@Var long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  private enum eOperator {
+    COUNT_BY, SUM, QUANTILES, DISTINCT, HEAVY_HITTERS
+  }
+
+  private static final class Operator {
+
+    final eOperator operator_;
+    final String key_;
+    final int size_;
+
+    Operator(eOperator operator, String key, int size) {
+      operator_ = operator;
+      key_ = key;
+      size_ = size;
+    }
+  }
+
+  /**
+   * The aggregated values of a set of lines.
+   */
+  final public class Aggregate {
+
+    private final Object[] states_ = new Object[operators_.size()];
+    private final boolean[] seen_ = new boolean[keys_.size()];
+    private final StringInterner interner_ = StringInterner.create(1024);
+    private final FieldVisitor visitor_ = this::visit;
+    private long count_ = 0;
+    private int nbSeen_ = 0;
+
+    private Aggregate() {
+      for (int i = 0; i < states_.length; i++) {
+
+        Operator operator = operators_.get(i);
+
+        switch (operator.operator_) {
+          case COUNT_BY:
+            states_[i] = new HashMap<String, long[]>();
+            break;
+          case SUM:
+            states_[i] = new Summary();
+            break;
+          case QUANTILES:
+            states_[i] = new Quantiles();
+            break;
+          case DISTINCT:
+            states_[i] = new HyperLogLog();
+            break;
+          default:
+            states_[i] = new HeavyHitters(operator.size_);
+        }
+      }
+    }
+
+    /**
+     * @return the number of lines aggregated.
+     */
+    public long count() {
+      return count_;
+    }
+
+    /**
+     * @param key a key counted by value.
+     * @return the number of lines holding each value of the key.
+     */
+    public Map<String, Long> counts(String key) {
+
+      Map<String, long[]> counts = state(eOperator.COUNT_BY, key);
+      Map<String, Long> copy = new HashMap<>();
+
+      for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+        copy.put(entry.getKey(), entry.getValue()[0]);
+      }
+      return copy;
+    }
+
+    /**
+     * @param key a summed key.
+     * @return the sum, the minimum and the maximum of the numeric values of the key.
+     */
+    public Summary summary(String key) {
+      return state(eOperator.SUM, key);
+    }
+
+    /**
+     * @param key a key whose quantiles are tracked.
+     * @return the quantiles of the numeric values of the key.
+     */
+    public Quantiles quantiles(String key) {
+      return state(eOperator.QUANTILES, key);
+    }
+
+    /**
+     * @param key a key whose distinct values are counted.
+     * @return an estimate of the number of distinct values of the key.
+     */
+    public long distinct(String key) {
+      return this.<HyperLogLog>state(eOperator.DISTINCT, key).estimate();
+    }
+
+    /**
+     * @param key a key whose most frequent values are tracked.
+     * @return the most frequent values of the key and an upper bound of their number of
+     *     occurrences, most frequent first.
+     */
+    public Map<String, Long> heavyHitters(String key) {
+      return this.<HeavyHitters>state(eOperator.HEAVY_HITTERS, key).top();
+    }
+
+    /**
+     * @param log a log line.
+     * @return this aggregate.
+     */
+    @CanIgnoreReturnValue
+    public Aggregate add(String log) {
+
+      Preconditions.checkNotNull(log, "log should not be null");
+
+      return add((CharSequence) log);
+    }
+
+    /**
+     * Aggregate a UTF-8 encoded log line without decoding it.
+     *
+     * @param log the buffer holding the log line.
+     * @param offset the index of the first byte of the log line.
+     * @param length the length of the log line in bytes.
+     * @return this aggregate.
+     */
+    @CanIgnoreReturnValue
+    public Aggregate add(byte[] log, int offset, int length) {
+      return add(new Utf8Sequence(log, offset, length));
+    }
+
+    /**
+     * Merge another aggregate of the same aggregator into this one.
+     *
+     * @param aggregate the other aggregate.
+     * @return this aggregate.
+     */
+    @CanIgnoreReturnValue
+    @SuppressWarnings("unchecked")
+    public Aggregate merge(Aggregate aggregate) {
+
+      Preconditions.checkNotNull(aggregate, "aggregate should not be null");
+      Preconditions.checkArgument(aggregate.aggregator() == LogAggregator.this,
+          "aggregate should belong to the same aggregator");
+
+      count_ += aggregate.count_;
+
+      for (int i = 0; i < states_.length; i++) {
+        switch (operators_.get(i).operator_) {
+          case COUNT_BY:
+
+            Map<String, long[]> counts = (Map<String, long[]>) states_[i];
+
+            ((Map<String, long[]>) aggregate.states_[i]).forEach(
+                (value, count) -> counts.computeIfAbsent(value, v -> new long[1])[0] += count[0]);
+            break;
+          case SUM:
+            ((Summary) states_[i]).merge((Summary) aggregate.states_[i]);
+            break;
+          case QUANTILES:
+            ((Quantiles) states_[i]).merge((Quantiles) aggregate.states_[i]);
+            break;
+          case DISTINCT:
+            ((HyperLogLog) states_[i]).merge((HyperLogLog) aggregate.states_[i]);
+            break;
+          default:
+            ((HeavyHitters) states_[i]).merge((HeavyHitters) aggregate.states_[i]);
+        }
+      }
+      return this;
+    }
+
+    @CanIgnoreReturnValue
+    Aggregate add(CharSequence log) {
+      if (where_ == null || where_.matches(log)) {
+        count_++;
+        nbSeen_ = 0;
+        Arrays.fill(seen_, false);
+        LogFormatter.parse(log, visitor_);
+      }
+      return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visit(CharSequence log, int keyStart, int keyEnd, int valueStart, int valueEnd, int flags) {
+
+      int slot = keys_.slot(log, keyStart, keyEnd);
+
+      if (slot < 0 || seen_[slot]) {
+        return true;
+      }
+
+      seen_[slot] = true;
+      nbSeen_++;
+
+      for (int i = 0; i < states_.length; i++) {
+        if (slots_[i] == slot) {
+          switch (operators_.get(i).operator_) {
+            case COUNT_BY:
+              ((Map<String, long[]>) states_[i]).computeIfAbsent(value(log, valueStart, valueEnd, flags),
+                  v -> new long[1])[0]++;
+              break;
+            case SUM:
+              ((Summary) states_[i]).add(log, valueStart, valueEnd, flags);
+              break;
+            case QUANTILES:
+              ((Quantiles) states_[i]).add(log, valueStart, valueEnd, flags);
+              break;
+            case DISTINCT:
+              ((HyperLogLog) states_[i]).add(hash(log, valueStart, valueEnd, flags));
+              break;
+            default:
+              ((HeavyHitters) states_[i]).add(this, log, valueStart, valueEnd, flags);
+          }
+        }
+      }
+
+      // Stop scanning the line once every aggregated key has been seen
+      return nbSeen_ < seen_.length;
+    }
+
+    String value(CharSequence log, int start, int end, int flags) {
+      if ((flags & FieldVisitor.ESCAPED) != 0) {
+        return LogFormatter.value(log, start, end, flags);
+      }
+      return interner_.intern(log, start, end);
+    }
+
+    private LogAggregator aggregator() {
+      return LogAggregator.this;
+    }
+
+    @SuppressWarnings({"unchecked", "TypeParameterUnusedInFormals"})
+    private <T> T state(eOperator operator, String key) {
+      for (int i = 0; i < states_.length; i++) {
+        if (operators_.get(i).operator_ == operator && operators_.get(i).key_.equals(key)) {
+          return (T) states_[i];
+        }
+      }
+      throw new IllegalArgumentException("no " + operator.name().toLowerCase() + " operator for key " + key);
+    }
+  }
+
+  /**
+   * The count, sum, minimum and maximum of the numeric values of a key. Values that are not numbers
+   * are ignored.
+   */
+  final public static class Summary {
+
+    private long count_ = 0;
+    private double sum_ = 0;
+    private double min_ = Double.NaN;
+    private double max_ = Double.NaN;
+
+    private Summary() {
+    }
+
+    /**
+     * @return the number of numeric values.
+     */
+    public long count() {
+      return count_;
+    }
+
+    public double sum() {
+      return sum_;
+    }
+
+    /**
+     * @return the smallest value or NaN if there is none.
+     */
+    public double min() {
+      return min_;
+    }
+
+    /**
+     * @return the largest value or NaN if there is none.
+     */
+    public double max() {
+      return max_;
+    }
+
+    /**
+     * @return the mean of the values or NaN if there is none.
+     */
+    public double mean() {
+      return count_ == 0 ? Double.NaN : sum_ / count_;
+    }
+
+    void add(CharSequence log, int start, int end, int flags) {
+      try {
+        add(LogRecord.decodeDouble(log, start, end, flags));
+      } catch (NumberFormatException e) {
+        // Not a number
+      }
+    }
+
+    void add(double value) {
+      if (Double.isNaN(value)) {
+        return;
+      }
+      if (count_++ == 0) {
+        min_ = value;
+        max_ = value;
+      } else {
+        min_ = Math.min(min_, value);
+        max_ = Math.max(max_, value);
+      }
+      sum_ += value;
+    }
+
+    void merge(Summary summary) {
+      if (summary.count_ > 0) {
+        if (count_ == 0) {
+          min_ = summary.min_;
+          max_ = summary.max_;
+        } else {
+          min_ = Math.min(min_, summary.min_);
+          max_ = Math.max(max_, summary.max_);
+        }
+        count_ += summary.count_;
+        sum_ += summary.sum_;
+      }
+    }
+  }
+
+  /**
+   * A mergeable quantile digest of the numeric values of a key, with a 1% relative error.
+   *
+   * Values are counted in buckets whose bounds grow geometrically : bucket i holds the values in
+   * (g^(i-1), g^i] with g = 1.01 / 0.99 and a quantile is estimated by the middle of its bucket.
+   * Absolute values below 1e-9 are counted as 0 and above 1e12 as 1e12. Values that are not
+   * numbers are ignored.
+   */
+  final public static class Quantiles {
+
+    private static final double RELATIVE_ERROR = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ERROR) / (1 - RELATIVE_ERROR);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final double MIN_VALUE = 1e-9;
+    private static final double MAX_VALUE = 1e12;
+    private static final int OFFSET = (int) Math.ceil(Math.log(MIN_VALUE) / LOG_GAMMA);
+    private static final int NB_BUCKETS = (int) Math.ceil(Math.log(MAX_VALUE) / LOG_GAMMA) - OFFSET + 1;
+
+    private final long[] positives_ = new long[NB_BUCKETS];
+    private final long[] negatives_ = new long[NB_BUCKETS];
+    private long zeros_ = 0;
+    private final Summary summary_ = new Summary();
+
+    private Quantiles() {
+    }
+
+    private static int bucket(double value) {
+      return (int) Math.ceil(Math.log(Math.min(value, MAX_VALUE)) / LOG_GAMMA) - OFFSET;
+    }
+
+    private static double value(int bucket) {
+      return 2 * Math.pow(GAMMA, bucket + OFFSET) / (GAMMA + 1);
+    }
+
+    /**
+     * @return the number of numeric values.
+     */
+    public long count() {
+      return summary_.count();
+    }
+
+    /**
+     * @param quantile a quantile in [0, 1] e.g. 0.99 for the 99th percentile.
+     * @return an estimate of the quantile, within 1% of the exact value, or NaN if there is no
+     *     value. Quantiles 0 and 1 are the exact minimum and maximum.
+     */
+    public double quantile(double quantile) {
+
+      Preconditions.checkArgument(quantile >= 0 && quantile <= 1, "quantile must be in [0, 1]");
+
+      if (summary_.count() == 0) {
+        return Double.NaN;
+      }
+      if (quantile == 0) {
+        return summary_.min();
+      }
+      if (quantile == 1) {
+        return summary_.max();
+      }
+
+      long rank = (long) (quantile * (summary_.count() - 1));
+      @Var long seen = 0;
+      @Var double value = 0;
+      @Var boolean found = false;
+
+      for (int i = NB_BUCKETS - 1; i >= 0 && !found; i--) {
+        seen += negatives_[i];
+        if (seen > rank) {
+          value = -value(i);
+          found = true;
+        }
+      }
+      if (!found) {
+        seen += zeros_;
+        found = seen > rank;
+      }
+      for (int i = 0; i < NB_BUCKETS && !found; i++) {
+        seen += positives_[i];
+        if (seen > rank) {
+          value = value(i);
+          found = true;
+        }
+      }
+      return Math.max(summary_.min(), Math.min(summary_.max(), value));
+    }
+
+    void add(CharSequence log, int start, int end, int flags) {
+      try {
+        add(LogRecord.decodeDouble(log, start, end, flags));
+      } catch (NumberFormatException e) {
+        // Not a number
+      }
+    }
+
+    void add(double value) {
+      if (Double.isNaN(value)) {
+        return;
+      }
+      if (value >= MIN_VALUE) {
+        positives_[bucket(value)]++;
+      } else if (value <= -MIN_VALUE) {
+        negatives_[bucket(-value)]++;
+      } else {
+        zeros_++;
+      }
+      summary_.add(value);
+    }
+
+    void merge(Quantiles quantiles) {
+      for (int i = 0; i < NB_BUCKETS; i++) {
+        positives_[i] += quantiles.positives_[i];
+        negatives_[i] += quantiles.negatives_[i];
+      }
+      zeros_ += quantiles.zeros_;
+      summary_.merge(quantiles.summary_);
+    }
+  }
+
+  /**
+   * A HyperLogLog sketch with 2^14 registers.
+   */
+  private static final class HyperLogLog {
+
+    private static final int PRECISION = 14;
+    private static final int NB_REGISTERS = 1 << PRECISION;
+
+    private final byte[] registers_ = new byte[NB_REGISTERS];
+
+    void add(long hash) {
+
+      int register = (int) (hash >>> (64 - PRECISION));
+      byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+
+      if (registers_[register] < rank) {
+        registers_[register] = rank;
+      }
+    }
+
+    void merge(HyperLogLog hyperLogLog) {
+      for (int i = 0; i < NB_REGISTERS; i++) {
+        registers_[i] = (byte) Math.max(registers_[i], hyperLogLog.registers_[i]);
+      }
+    }
+
+    long estimate() {
+
+      @Var double sum = 0;
+      @Var int zeros = 0;
+
+      for (byte register : registers_) {
+        sum += Math.scalb(1.0, -register);
+        if (register == 0) {
+          zeros++;
+        }
+      }
+
+      double alpha = 0.7213 / (1 + 1.079 / NB_REGISTERS);
+      double estimate = alpha * NB_REGISTERS * NB_REGISTERS / sum;
+
+      // Small range correction : linear counting
+      if (estimate <= 2.5 * NB_REGISTERS && zeros > 0) {
+        return Math.round(NB_REGISTERS * Math.log((double) NB_REGISTERS / zeros));
+      }
+      return Math.round(estimate);
+    }
+  }
+
+  /**
+   * A count-min sketch of the values of a key and the values with the highest estimated count.
+   */
+  private static final class HeavyHitters {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+
+    private final long[] sketch_ = new long[DEPTH * WIDTH];
+    private final Map<String, Long> candidates_ = new HashMap<>();
+    private final int size_;
+    private long min_ = 0;
+    private String minValue_ = null;
+
+    HeavyHitters(int size) {
+      size_ = size;
+    }
+
+    void add(Aggregate aggregate, CharSequence log, int start, int end, int flags) {
+
+      long estimate = add(hash(log, start, end, flags), 1);
+
+      // The value is only materialized if it may belong to the top values
+      if (candidates_.size() < size_ || estimate > min_) {
+        offer(aggregate.value(log, start, end, flags), estimate);
+      }
+    }
+
+    void merge(HeavyHitters heavyHitters) {
+
+      for (int i = 0; i < sketch_.length; i++) {
+        sketch_[i] += heavyHitters.sketch_[i];
+      }
+
+      Set<String> values = new LinkedHashSet<>(candidates_.keySet());
+
+      values.addAll(heavyHitters.candidates_.keySet());
+      candidates_.clear();
+      min_ = 0;
+      minValue_ = null;
+
+      for (String value : values) {
+        offer(value, add(hash(value, 0, value.length(), 0), 0));
+      }
+    }
+
+    Map<String, Long> top() {
+
+      List<Map.Entry<String, Long>> entries = new ArrayList<>(candidates_.entrySet());
+      Map<String, Long> top = new LinkedHashMap<>();
+
+      entries.sort((e1, e2) -> Long.compare(e2.getValue(), e1.getValue()));
+
+      for (Map.Entry<String, Long> entry : entries) {
+        top.put(entry.getKey(), entry.getValue());
+      }
+      return top;
+    }
+
+    /**
+     * @return the estimated count of the value after adding {@code count} occurrences.
+     */
+    private long add(long hash, int count) {
+
+      int hash1 = (int) hash;
+      int hash2 = (int) (hash >>> 32);
+      @Var long estimate = Long.MAX_VALUE;
+
+      for (int i = 0; i < DEPTH; i++) {
+
+        int cell = i * WIDTH + ((hash1 + i * hash2) & (WIDTH - 1));
+
+        sketch_[cell] += count;
+        estimate = Math.min(estimate, sketch_[cell]);
+      }
+      return estimate;
+    }
+
+    /**
+     * Estimates only grow : the minimum of the candidates only has to be looked for again when the
+     * candidate holding it is evicted or updated, not on every hit.
+     */
+    private void offer(String value, long estimate) {
+
+      Long previous = candidates_.put(value, estimate);
+
+      if (candidates_.size() > size_) {
+        candidates_.remove(estimate > min_ ? minValue_ : value);
+        updateMin();
+      } else if (candidates_.size() == size_ && (previous == null || value.equals(minValue_))) {
+        updateMin();
+      }
+    }
+
+    private void updateMin() {
+
+      min_ = Long.MAX_VALUE;
+      minValue_ = null;
+
+      for (Map.Entry<String, Long> entry : candidates_.entrySet()) {
+        if (entry.getValue() < min_) {
+          min_ = entry.getValue();
+          minValue_ = entry.getKey();
+        }
+      }
+    }
+  }
+
+  final public static class Builder {
+
+    private final List<Operator> operators_ = new ArrayList<>();
+    private LogQuery where_ = null;
+
+    private Builder() {
+    }
+
+    /**
+     * Count the lines holding each value of a key. The counts are exact : the memory used grows
+     * with the number of distinct values.
+     *
+     * @param key a key.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder countBy(String key) {
+      return add(eOperator.COUNT_BY, key, 0);
+    }
+
+    /**
+     * Sum the numeric values of a key and track their minimum and maximum.
+     *
+     * @param key a key.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder sum(String key) {
+      return add(eOperator.SUM, key, 0);
+    }
+
+    /**
+     * Track the quantiles of the numeric values of a key.
+     *
+     * @param key a key.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder quantiles(String key) {
+      return add(eOperator.QUANTILES, key, 0);
+    }
+
+    /**
+     * Estimate the number of distinct values of a key.
+     *
+     * @param key a key.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder distinct(String key) {
+      return add(eOperator.DISTINCT, key, 0);
+    }
+
+    /**
+     * Track the most frequent values of a key.
+     *
+     * @param key a key.
+     * @param size the number of values to track.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder heavyHitters(String key, int size) {
+
+      Preconditions.checkArgument(size > 0, "size must be > 0");
+
+      return add(eOperator.HEAVY_HITTERS, key, size);
+    }
+
+    /**
+     * Aggregate only the lines matching a query. A matching line is scanned twice, once by the query
+     * and once more by the aggregator.
+     *
+     * @param query the query.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder where(LogQuery query) {
+      where_ = Preconditions.checkNotNull(query, "query should not be null");
+      return this;
+    }
+
+    public LogAggregator build() {
+      return new LogAggregator(this);
+    }
+
+    @CanIgnoreReturnValue
+    private Builder add(eOperator operator, String key, int size) {
+
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(key), "key should neither be null nor empty");
+
+      for (Operator op : operators_) {
+        Preconditions.checkArgument(op.operator_ != operator || !op.key_.equals(key),
+            "duplicate %s operator for key %s", operator, key);
+      }
+
+      operators_.add(new Operator(operator, key, size));
+      return this;
+    }
+  }
+}
@@ -0,0 +1,479 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parse log lines into columns.
+ *
+ * Each key found in the lines becomes a {@link Column}. A column stores, for each row, whether the
+ * key is present (as a bitmap) and the code of its value in a per-column dictionary. Dictionary
+ * entries are kept raw, as found in the lines, and are only unescaped and decoded the first time
+ * they are read. Neither keys nor values are materialized while the lines are added : a batch of
+ * N lines holds one string per distinct key and, once read, one string per distinct value.
+ *
+ * Values are deduplicated on their raw form. When a batch mixes strings and UTF-8 buffers, a value
+ * holding non-ASCII characters may thus get one dictionary entry per form.
+ *
+ * A batch is not thread-safe while lines are added. Once complete, it can be read concurrently.
+ */
+@CheckReturnValue
+final public class LogBatch {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final List<Column> columns_ = new ArrayList<>();
+  private final Map<String, Column> byKey_ = new HashMap<>();
+  private final FieldVisitor visitor_ = this::visit;
+  private int[] index_ = new int[16];
+  private int[] hashes_ = new int[16];
+  private int aliases_ = 0;
+  private int size_ = 0;
+
+  private LogBatch() {
+  }
+
+  public static LogBatch create() {
+    return new LogBatch();
+  }
+
+  private static int hash(CharSequence chars, int start, int end) {
+
+    @Var int hash = 0;
+
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + chars.charAt(i);
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @return the number of rows i.e. of lines added so far.
+   */
+  public int size() {
+    return size_;
+  }
+
+  /**
+   * @return the columns, in the order their key was first found.
+   */
+  public List<Column> columns() {
+    return Collections.unmodifiableList(columns_);
+  }
+
+  /**
+   * @param key a key.
+   * @return the column of the key or null if no line holds this key.
+   */
+  public Column column(String key) {
+    return byKey_.get(key);
+  }
+
+  @CanIgnoreReturnValue
+  public LogBatch add(String line) {
+
+    Preconditions.checkNotNull(line, "line should not be null");
+
+    return add((CharSequence) line);
+  }
+
+  /**
+   * Add a UTF-8 encoded line without decoding it.
+   *
+   * @param line the buffer holding the log line.
+   * @param offset the index of the first byte of the log line.
+   * @param length the length of the log line in bytes.
+   * @return this batch.
+   */
+  @CanIgnoreReturnValue
+  public LogBatch add(byte[] line, int offset, int length) {
+    return add(new Utf8Sequence(line, offset, length));
+  }
+
+  @CanIgnoreReturnValue
+  LogBatch add(CharSequence line) {
+    LogFormatter.parse(line, visitor_);
+    size_++;
+    return this;
+  }
+
+  private boolean visit(CharSequence line, int keyStart, int keyEnd, int valueStart, int valueEnd, int flags) {
+    column(line, keyStart, keyEnd).set(size_, line, valueStart, valueEnd, flags);
+    return true;
+  }
+
+  /**
+   * Find the column of a key range. Several hashes may lead to the same column because the hash of
+   * a non-ASCII key depends on the form (string or UTF-8 buffer) of the line.
+   */
+  private Column column(CharSequence line, int start, int end) {
+
+    int hash = hash(line, start, end);
+    int mask = index_.length - 1;
+    @Var int slot = hash & mask;
+
+    for (; index_[slot] != 0; slot = (slot + 1) & mask) {
+
+      Column column = columns_.get(index_[slot] - 1);
+
+      if (hashes_[slot] == hash && LogFormatter.regionMatches(line, start, end, column.key_)) {
+        return column;
+      }
+    }
+
+    String key = LogFormatter.key(line, start, end);
+    @Var Column column = byKey_.get(key);
+
+    if (column == null) {
+      column = new Column(key);
+      columns_.add(column);
+      byKey_.put(key, column);
+    }
+
+    index_[slot] = columns_.indexOf(column) + 1;
+    hashes_[slot] = hash;
+    aliases_++;
+
+    if (2 * aliases_ > index_.length) {
+      rehash();
+    }
+    return column;
+  }
+
+  private void rehash() {
+
+    int[] index = new int[index_.length * 2];
+    int[] hashes = new int[index.length];
+    int mask = index.length - 1;
+
+    for (int i = 0; i < index_.length; i++) {
+      if (index_[i] != 0) {
+
+        @Var int slot = hashes_[i] & mask;
+
+        while (index[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        index[slot] = index_[i];
+        hashes[slot] = hashes_[i];
+      }
+    }
+
+    index_ = index;
+    hashes_ = hashes;
+  }
+
+  /**
+   * The values of a key, one per row.
+   */
+  final public class Column {
+
+    private static final byte UTF8 = 4;
+
+    private final String key_;
+    private long[] presence_ = new long[1];
+    private int[] codes_ = new int[0];
+    private int count_ = 0;
+
+    // Dictionary : raw values stored back to back in a char arena
+    private char[] arena_ = new char[256];
+    private int arenaLength_ = 0;
+    private int[] offsets_ = new int[INITIAL_CAPACITY];
+    private int[] lengths_ = new int[INITIAL_CAPACITY];
+    private int[] entryHashes_ = new int[INITIAL_CAPACITY];
+    private byte[] flags_ = new byte[INITIAL_CAPACITY];
+    private String[] decoded_ = new String[INITIAL_CAPACITY];
+    private int cardinality_ = 0;
+    private int[] entries_ = new int[INITIAL_CAPACITY * 2];
+
+    private volatile long[] longs_;
+    private volatile double[] doubles_;
+
+    private Column(String key) {
+      key_ = key;
+    }
+
+    public String key() {
+      return key_;
+    }
+
+    /**
+     * @return the number of rows holding the key.
+     */
+    public int count() {
+      return count_;
+    }
+
+    /**
+     * @return the number of distinct values.
+     */
+    public int cardinality() {
+      return cardinality_;
+    }
+
+    /**
+     * @param row a row in [0, size()).
+     * @return true iif the row holds the key.
+     */
+    public boolean isPresent(int row) {
+      Preconditions.checkElementIndex(row, size_, "row");
+      int word = row >>> 6;
+      return word < presence_.length && (presence_[word] & (1L << row)) != 0;
+    }
+
+    /**
+     * @param row a row in [0, size()).
+     * @return the dictionary code of the value of the row or -1 if the row does not hold the key.
+     */
+    public int code(int row) {
+      return isPresent(row) ? codes_[row] : -1;
+    }
+
+    /**
+     * @param code a dictionary code in [0, cardinality()).
+     * @return the value associated to the code.
+     */
+    public String dictionary(int code) {
+
+      Preconditions.checkElementIndex(code, cardinality_, "code");
+
+      @Var String decoded = decoded_[code];
+
+      if (decoded == null) {
+        decoded = decode(code);
+        decoded_[code] = decoded;
+      }
+      return decoded;
+    }
+
+    /**
+     * @param row a row in [0, size()).
+     * @return the value of the row or null if the row does not hold the key.
+     */
+    public String value(int row) {
+      int code = code(row);
+      return code < 0 ? null : dictionary(code);
+    }
+
+    /**
+     * @return true iif all the values of the column are integers.
+     */
+    public boolean isLong() {
+      return longs() != null;
+    }
+
+    /**
+     * @return true iif all the values of the column are numbers.
+     */
+    public boolean isDouble() {
+      return doubles() != null;
+    }
+
+    /**
+     * A typed view of the column. Rows without the key are set to 0.
+     *
+     * @return the values of the column, one per row, or null if a value is not an integer.
+     */
+    public long[] longs() {
+
+      @Var long[] longs = longs_;
+
+      if (longs == null && cardinality_ > 0) {
+
+        long[] dictionary = new long[cardinality_];
+
+        for (int i = 0; i < cardinality_; i++) {
+
+          Long value = Longs.tryParse(dictionary(i));
+
+          if (value == null) {
+            return null;
+          }
+          dictionary[i] = value;
+        }
+
+        longs = new long[size_];
+
+        for (int row = 0; row < size_; row++) {
+          int code = code(row);
+          longs[row] = code < 0 ? 0 : dictionary[code];
+        }
+        longs_ = longs;
+      }
+      return longs == null ? null : longs.clone();
+    }
+
+    /**
+     * A typed view of the column. Rows without the key are set to {@link Double#NaN}.
+     *
+     * @return the values of the column, one per row, or null if a value is not a number.
+     */
+    public double[] doubles() {
+
+      @Var double[] doubles = doubles_;
+
+      if (doubles == null && cardinality_ > 0) {
+
+        double[] dictionary = new double[cardinality_];
+
+        for (int i = 0; i < cardinality_; i++) {
+
+          Double value = Doubles.tryParse(dictionary(i));
+
+          if (value == null) {
+            return null;
+          }
+          dictionary[i] = value;
+        }
+
+        doubles = new double[size_];
+
+        for (int row = 0; row < size_; row++) {
+          int code = code(row);
+          doubles[row] = code < 0 ? Double.NaN : dictionary[code];
+        }
+        doubles_ = doubles;
+      }
+      return doubles == null ? null : doubles.clone();
+    }
+
+    private void set(int row, CharSequence line, int start, int end, int flags) {
+
+      int word = row >>> 6;
+
+      if (word >= presence_.length) {
+        presence_ = Arrays.copyOf(presence_, Math.max(word + 1, presence_.length * 2));
+      }
+      if (row >= codes_.length) {
+        codes_ = Arrays.copyOf(codes_, Math.max(row + 1, Math.max(INITIAL_CAPACITY, codes_.length * 2)));
+      }
+      if ((presence_[word] & (1L << row)) == 0) {
+        presence_[word] |= 1L << row;
+        count_++;
+      }
+
+      codes_[row] = lookup(line, start, end, flags);
+      longs_ = null;
+      doubles_ = null;
+    }
+
+    private int lookup(CharSequence line, int start, int end, int flags) {
+
+      @Var int hash = 0;
+      @Var int bits = 0;
+
+      for (int i = start; i < end; i++) {
+        char c = line.charAt(i);
+        hash = 31 * hash + c;
+        bits |= c;
+      }
+
+      // ASCII values from UTF-8 buffers are stored like values from strings
+      byte entryFlags = (byte) ((flags & FieldVisitor.ESCAPED) | (line instanceof Utf8Sequence && bits >= 0x80 ? UTF8
+          : 0));
+      hash = (hash ^ (hash >>> 16)) * 31 + entryFlags;
+
+      int mask = entries_.length - 1;
+      @Var int slot = hash & mask;
+
+      for (; entries_[slot] != 0; slot = (slot + 1) & mask) {
+
+        int code = entries_[slot] - 1;
+
+        if (entryHashes_[code] == hash && flags_[code] == entryFlags && matches(code, line, start, end)) {
+          return code;
+        }
+      }
+
+      int code = cardinality_++;
+      int length = end - start;
+
+      if (code >= offsets_.length) {
+        offsets_ = Arrays.copyOf(offsets_, offsets_.length * 2);
+        lengths_ = Arrays.copyOf(lengths_, lengths_.length * 2);
+        entryHashes_ = Arrays.copyOf(entryHashes_, entryHashes_.length * 2);
+        flags_ = Arrays.copyOf(flags_, flags_.length * 2);
+        decoded_ = Arrays.copyOf(decoded_, decoded_.length * 2);
+      }
+      if (arenaLength_ + length > arena_.length) {
+        arena_ = Arrays.copyOf(arena_, Math.max(arenaLength_ + length, arena_.length * 2));
+      }
+      for (int i = 0; i < length; i++) {
+        arena_[arenaLength_ + i] = line.charAt(start + i);
+      }
+
+      offsets_[code] = arenaLength_;
+      lengths_[code] = length;
+      entryHashes_[code] = hash;
+      flags_[code] = entryFlags;
+      arenaLength_ += length;
+      entries_[slot] = code + 1;
+
+      if (2 * cardinality_ > entries_.length) {
+        rehashEntries();
+      }
+      return code;
+    }
+
+    private boolean matches(int code, CharSequence line, int start, int end) {
+
+      int offset = offsets_[code];
+
+      if (lengths_[code] != end - start) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (arena_[offset + i - start] != line.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void rehashEntries() {
+
+      int[] entries = new int[entries_.length * 2];
+      int mask = entries.length - 1;
+
+      for (int code = 0; code < cardinality_; code++) {
+
+        @Var int slot = entryHashes_[code] & mask;
+
+        while (entries[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        entries[slot] = code + 1;
+      }
+      entries_ = entries;
+    }
+
+    private String decode(int code) {
+
+      int offset = offsets_[code];
+      int length = lengths_[code];
+      int flags = flags_[code] & FieldVisitor.ESCAPED;
+
+      if ((flags_[code] & UTF8) == 0) {
+        return LogFormatter.value(CharBuffer.wrap(arena_, offset, length), 0, length, flags);
+      }
+
+      byte[] bytes = new byte[length];
+
+      for (int i = 0; i < length; i++) {
+        bytes[i] = (byte) arena_[offset + i];
+      }
+      return LogFormatter.value(new Utf8Sequence(bytes, 0, length), 0, length, flags);
+    }
+  }
+}
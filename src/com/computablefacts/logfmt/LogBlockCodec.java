@@ -0,0 +1,972 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact binary encoding of log lines, for storage and transport.
+ *
+ * Lines are grouped into blocks. Each block starts with a dictionary of the keys used by its
+ * lines, and each field is then encoded as the index of its key in the dictionary followed by its
+ * value : integers written without leading zeros as zig-zag varints, other values as their
+ * unescaped UTF-8 bytes prefixed by their length. Nothing is ever escaped nor quoted. Blocks are
+ * compressed with {@link Deflater} unless the compression level is 0.
+ *
+ * Stored blocks are the ones to use for read-heavy workloads : visiting the fields of a line from a
+ * stored block is several times faster than {@link LogFormatter#parse(CharSequence, FieldVisitor)}
+ * on the text, since fields are visited where they sit in the block. Inflating a block costs more
+ * than decoding its lines : deflated blocks, the default of {@link #create()}, trade that speed for
+ * size and read about as fast as the text is parsed.
+ *
+ * The encoding keeps the order of the fields and whether a value was quoted : decoding a block
+ * gives back the exact text produced by {@link LogFormatter#format()}. Reading the fields back
+ * neither scans for delimiters nor unescapes values. Lines that are not in this canonical form, e.g.
+ * with a key without value, extra spaces or an escape sequence {@code format()} would not produce,
+ * cannot be rebuilt from their fields : they are stored as raw text instead, so that every line
+ * round-trips byte for byte.
+ *
+ * The layout of a block is :
+ *
+ * <pre>
+ * block   := method:byte length:varint stored:varint payload:byte[stored]
+ * payload := nbLines:varint nbKeys:varint (length:varint key:utf8)* line*
+ * line    := (nbFields &lt;&lt; 1):varint field* | (length &lt;&lt; 1 | 1):varint raw:utf8
+ * field   := (keyIndex &lt;&lt; 2 | tag):varint (zigzag:varint | length:varint value:utf8)
+ * </pre>
+ *
+ * where {@code method} is 0 for a stored payload and 1 for a deflated one, and {@code tag} is 0
+ * for a bare value, 1 for a quoted value and 2 for an integer. {@code length} is the size of the
+ * payload and {@code stored} the number of bytes that follow, equal for a stored payload, both
+ * at most 1 GiB. A block that does not follow this layout is rejected with an {@link IOException}.
+ *
+ * A codec is immutable, thread-safe and is meant to be shared. Writers and readers are not
+ * thread-safe.
+ */
+@CheckReturnValue
+final public class LogBlockCodec {
+
+  private static final byte STORED = 0;
+  private static final byte DEFLATED = 1;
+  private static final int BARE = 0;
+  private static final int QUOTED = 1;
+  private static final int LONG = 2;
+  private static final int TAG_BITS = 2;
+  private static final int TAG_MASK = (1 << TAG_BITS) - 1;
+  private static final int MAX_BLOCK_LENGTH = 1 << 30;
+
+  private final int blockSize_;
+  private final int level_;
+
+  private LogBlockCodec(Builder builder) {
+    blockSize_ = builder.blockSize_;
+    level_ = builder.level_;
+  }
+
+  /**
+   * @return a codec writing blocks of 64 KiB compressed with {@link Deflater#BEST_SPEED}, for
+   *     storage. Use {@code builder().compression(0).build()} when reads matter more than size.
+   */
+  public static LogBlockCodec create() {
+    return builder().build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @param stream the destination.
+   * @return a writer of blocks.
+   */
+  public Writer writer(OutputStream stream) {
+    return new Writer(Preconditions.checkNotNull(stream, "stream should not be null"));
+  }
+
+  /**
+   * @param stream the source.
+   * @return a reader of blocks.
+   */
+  public Reader reader(InputStream stream) {
+    return new Reader(Preconditions.checkNotNull(stream, "stream should not be null"));
+  }
+
+  /**
+   * Encode the lines into blocks.
+   */
+  final public class Writer implements Closeable, Flushable {
+
+    private final OutputStream stream_;
+    private final Deflater deflater_;
+    private final StringInterner interner_ = StringInterner.create(1024);
+    private final Map<String, Integer> keys_ = new HashMap<>();
+    private final List<String> dictionary_ = new ArrayList<>();
+    private final Bytes lines_ = new Bytes(blockSize_ + 1024);
+    private final Bytes line_ = new Bytes(1024);
+    private final Bytes payload_ = new Bytes(blockSize_ + 1024);
+    private final FieldVisitor visitor_ = this::visit;
+    private int nbLines_ = 0;
+    private int nbFields_ = 0;
+    private int next_ = 0;
+    private boolean canonical_ = true;
+
+    private Writer(OutputStream stream) {
+      stream_ = stream;
+      deflater_ = level_ > 0 ? new Deflater(level_, true) : null;
+    }
+
+    /**
+     * @param log a log line.
+     * @return this writer.
+     */
+    @CanIgnoreReturnValue
+    public Writer write(String log) throws IOException {
+
+      Preconditions.checkNotNull(log, "log should not be null");
+
+      return write((CharSequence) log);
+    }
+
+    /**
+     * Encode a UTF-8 encoded log line without decoding it.
+     *
+     * @param log the buffer holding the log line.
+     * @param offset the index of the first byte of the log line.
+     * @param length the length of the log line in bytes.
+     * @return this writer.
+     */
+    @CanIgnoreReturnValue
+    public Writer write(byte[] log, int offset, int length) throws IOException {
+      return write(new Utf8Sequence(log, offset, length));
+    }
+
+    /**
+     * Write the pending lines as a block, then flush the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+      writeBlock();
+      stream_.flush();
+    }
+
+    /**
+     * Write the pending lines as a block, then close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        writeBlock();
+      } finally {
+        if (deflater_ != null) {
+          deflater_.end();
+        }
+        stream_.close();
+      }
+    }
+
+    private Writer write(CharSequence log) throws IOException {
+
+      line_.clear();
+      nbFields_ = 0;
+      next_ = 0;
+      canonical_ = true;
+      LogFormatter.parse(log, visitor_);
+
+      if (canonical_ && (nbFields_ == 0 ? log.length() == 0 : next_ == log.length() + 1)) {
+        lines_.writeVarint((long) nbFields_ << 1);
+        lines_.write(line_.data_, 0, line_.size_);
+      } else if (log instanceof Utf8Sequence) {
+
+        // The bytes are already UTF-8 encoded
+        lines_.writeVarint(((long) log.length() << 1) | 1);
+        lines_.ensureCapacity(log.length());
+        ((Utf8Sequence) log).getBytes(0, log.length(), lines_.data_, lines_.size_);
+        lines_.size_ += log.length();
+      } else {
+        lines_.writeVarint(((long) Utf8Sequence.encodedLength(log, 0, log.length()) << 1) | 1);
+        lines_.putUtf8(log, 0, log.length());
+      }
+      nbLines_++;
+
+      if (lines_.size_ >= blockSize_) {
+        writeBlock();
+      }
+      return this;
+    }
+
+    private boolean visit(CharSequence log, int keyStart, int keyEnd, int valueStart, int valueEnd, int flags) {
+
+      String key = interner_.intern(log, keyStart, keyEnd);
+      @Var Integer index = keys_.get(key);
+
+      if (index == null) {
+        index = dictionary_.size();
+        keys_.put(key, index);
+        dictionary_.add(key);
+      }
+
+      nbFields_++;
+
+      if (canonical_) {
+        canonical_ = isCanonical(log, keyStart, keyEnd, valueStart, valueEnd, flags);
+      }
+      if (flags == 0 && isCanonicalLong(log, valueStart, valueEnd)) {
+        line_.writeVarint(((long) index << TAG_BITS) | LONG);
+        line_.writeVarint(zigzag(parseLong(log, valueStart, valueEnd)));
+        return true;
+      }
+
+      line_.writeVarint(((long) index << TAG_BITS) | ((flags & FieldVisitor.QUOTED) != 0 ? QUOTED : BARE));
+
+      if ((flags & FieldVisitor.ESCAPED) != 0) {
+        String value = LogFormatter.value(log, valueStart, valueEnd, flags);
+        line_.writeUtf8(value, 0, value.length());
+      } else if (log instanceof Utf8Sequence) {
+
+        // The bytes are already UTF-8 encoded
+        line_.writeVarint(valueEnd - valueStart);
+
+        for (int i = valueStart; i < valueEnd; i++) {
+          line_.writeByte(log.charAt(i));
+        }
+      } else {
+        line_.writeUtf8(log, valueStart, valueEnd);
+      }
+      return true;
+    }
+
+    /**
+     * Check that a field is laid out as {@link LogFormatter#format()} would lay it out and move
+     * {@code next_} to where the next field must start : the field starts right after the previous
+     * one and a single space, the key is followed by '=' and a quoted value is escaped exactly like
+     * {@link LogEncoder#escape(StringBuilder, String, int, int)} would escape it.
+     */
+    private boolean isCanonical(CharSequence log, int keyStart, int keyEnd, int valueStart, int valueEnd, int flags) {
+
+      boolean quoted = (flags & FieldVisitor.QUOTED) != 0;
+      int start = next_;
+      int end = quoted ? valueEnd + 1 : valueEnd;
+
+      next_ = end + 1;
+
+      if (keyStart != start || keyEnd >= log.length() || log.charAt(keyEnd) != '=') {
+        return false;
+      }
+      if (end > log.length() || (end < log.length() && log.charAt(end) != ' ')) {
+        return false;
+      }
+      if (!quoted) {
+        return valueStart == keyEnd + 1 && (flags & FieldVisitor.ESCAPED) == 0;
+      }
+      if (valueStart != keyEnd + 2 || log.charAt(valueEnd) != '"') {
+        return false;
+      }
+      if ((flags & FieldVisitor.ESCAPED) == 0) {
+        return Delimiters.indexOf(log, valueStart, valueEnd, true) >= valueEnd;
+      }
+
+      String value = LogFormatter.value(log, valueStart, valueEnd, flags);
+      StringBuilder escaped = new StringBuilder(valueEnd - valueStart);
+
+      LogEncoder.escape(escaped, value, 0, value.length());
+      return LogFormatter.regionMatches(log, valueStart, valueEnd, escaped.toString());
+    }
+
+    private void writeBlock() throws IOException {
+
+      if (nbLines_ == 0) {
+        return;
+      }
+
+      payload_.clear();
+      payload_.writeVarint(nbLines_);
+      payload_.writeVarint(dictionary_.size());
+
+      for (String key : dictionary_) {
+        payload_.writeUtf8(key, 0, key.length());
+      }
+
+      payload_.write(lines_.data_, 0, lines_.size_);
+
+      if (payload_.size_ > MAX_BLOCK_LENGTH) {
+        throw new IOException("block of " + payload_.size_ + " bytes exceeds " + MAX_BLOCK_LENGTH + " bytes");
+      }
+
+      byte[] header = new byte[21];
+      @Var byte[] stored = payload_.data_;
+      @Var int length = payload_.size_;
+
+      if (deflater_ != null) {
+
+        @Var byte[] deflated = new byte[payload_.size_ + payload_.size_ / 1000 + 64];
+
+        deflater_.reset();
+        deflater_.setInput(payload_.data_, 0, payload_.size_);
+        deflater_.finish();
+
+        @Var int size = 0;
+
+        while (!deflater_.finished()) {
+          size += deflater_.deflate(deflated, size, deflated.length - size);
+          if (size == deflated.length && !deflater_.finished()) {
+            deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+          }
+        }
+
+        stored = deflated;
+        length = size;
+      }
+
+      header[0] = deflater_ != null ? DEFLATED : STORED;
+
+      int headerSize = Bytes.putVarint(header, Bytes.putVarint(header, 1, payload_.size_), length);
+
+      stream_.write(header, 0, headerSize);
+      stream_.write(stored, 0, length);
+
+      keys_.clear();
+      dictionary_.clear();
+      lines_.clear();
+      nbLines_ = 0;
+    }
+  }
+
+  /**
+   * Decode the lines from blocks.
+   */
+  final public static class Reader implements Closeable {
+
+    private final InputStream stream_;
+    private final Inflater inflater_ = new Inflater(true);
+    private byte[] stored_ = new byte[0];
+    private byte[] block_ = new byte[0];
+    private char[] chars_ = new char[256];
+    private String[] keys_ = new String[0];
+    private int[] keyOffsets_ = new int[0];
+    private int position_ = 0;
+    private int limit_ = 0;
+    private int nbKeys_ = 0;
+    private int nbLines_ = 0;
+
+    private Reader(InputStream stream) {
+      stream_ = stream;
+    }
+
+    /**
+     * @return the next line, exactly as it has been written, or null if there is none.
+     */
+    public String readLine() throws IOException {
+
+      if (!next()) {
+        return null;
+      }
+
+      long header = readVarint();
+
+      if ((header & 1) != 0) {
+        return readString(checkLength(header >>> 1));
+      }
+
+      StringBuilder builder = new StringBuilder(128);
+      int nbFields = checkLength(header >>> 1);
+
+      for (int i = 0; i < nbFields; i++) {
+
+        int field = readField();
+        int tag = field & TAG_MASK;
+
+        if (i > 0) {
+          builder.append(' ');
+        }
+
+        builder.append(key(field >>> TAG_BITS)).append('=');
+
+        if (tag == LONG) {
+          builder.append(unzigzag(readVarint()));
+        } else if (tag == BARE) {
+          builder.append(readString());
+        } else {
+
+          String value = readString();
+
+          builder.append('"');
+          LogEncoder.escape(builder, value, 0, value.length());
+          builder.append('"');
+        }
+      }
+      return builder.toString();
+    }
+
+    /**
+     * @return the fields of the next line, as returned by {@link LogFormatter#parse(String)}, or
+     *     null if there is none.
+     */
+    public Map<String, String> read() throws IOException {
+
+      if (!next()) {
+        return null;
+      }
+
+      long header = readVarint();
+
+      if ((header & 1) != 0) {
+
+        int length = checkLength(header >>> 1);
+        Map<String, String> fields = LogFormatter.parse(block_, position_, length);
+
+        position_ += length;
+        return fields;
+      }
+
+      int nbFields = checkLength(header >>> 1);
+      Map<String, String> fields = new HashMap<>(Math.max(16, 2 * nbFields));
+
+      for (int i = 0; i < nbFields; i++) {
+
+        int field = readField();
+        String key = key(field >>> TAG_BITS);
+
+        if ((field & TAG_MASK) == LONG) {
+          fields.put(key, Long.toString(unzigzag(readVarint())));
+        } else {
+          fields.put(key, readString());
+        }
+      }
+      return fields;
+    }
+
+    /**
+     * Visit the fields of the next line without materializing them. The visitor gets UTF-8 encoded
+     * ranges over the decoded block rather than over the line alone : keys are visited where they
+     * sit in the dictionary and values where they sit in the line, without being copied. Only
+     * integers are rendered, past the end of the block. Lines written in the canonical form of
+     * {@link LogFormatter#format()} never have a value flagged as {@link FieldVisitor#ESCAPED} :
+     * other lines are parsed as is.
+     *
+     * @param visitor the callback invoked for each field.
+     * @return true iif a line has been read.
+     */
+    @CanIgnoreReturnValue
+    public boolean read(FieldVisitor visitor) throws IOException {
+
+      Preconditions.checkNotNull(visitor, "visitor should not be null");
+
+      if (!next()) {
+        return false;
+      }
+
+      long header = readVarint();
+
+      if ((header & 1) != 0) {
+
+        int length = checkLength(header >>> 1);
+
+        LogFormatter.parse(block_, position_, length, visitor);
+        position_ += length;
+        return true;
+      }
+
+      int nbFields = checkLength(header >>> 1);
+
+      // Room for the digits of the integers, a sign included
+      if (block_.length < limit_ + 20 * nbFields) {
+        block_ = Arrays.copyOf(block_, Math.max(limit_ + 20 * nbFields, 2 * block_.length));
+      }
+
+      Utf8Sequence log = new Utf8Sequence(block_, 0, block_.length);
+      @Var int digits = limit_;
+      @Var boolean visiting = true;
+
+      for (int i = 0; i < nbFields; i++) {
+
+        int field = readField();
+        int key = field >>> TAG_BITS;
+        int keyStart = keyOffsets_[2 * key];
+        int keyEnd = keyStart + keyOffsets_[2 * key + 1];
+        int tag = field & TAG_MASK;
+
+        if (tag == LONG) {
+
+          long value = unzigzag(readVarint());
+
+          if (visiting) {
+            int start = digits;
+            digits = putLong(block_, digits, value);
+            visiting = visitor.visit(log, keyStart, keyEnd, start, digits, 0);
+          }
+        } else {
+
+          int length = readLength();
+          int start = position_;
+
+          position_ += length;
+
+          if (visiting) {
+            visiting = visitor.visit(log, keyStart, keyEnd, start, position_, tag == QUOTED ? FieldVisitor.QUOTED : 0);
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater_.end();
+      stream_.close();
+    }
+
+    /**
+     * @return true iif there is one more line to read.
+     */
+    private boolean next() throws IOException {
+
+      if (nbLines_ > 0) {
+        nbLines_--;
+        return true;
+      }
+      if (position_ != limit_) {
+        throw new IOException("corrupted block : " + (limit_ - position_) + " trailing bytes");
+      }
+
+      int method = stream_.read();
+
+      if (method < 0) {
+        return false;
+      }
+
+      long length = readVarint(stream_);
+      long stored = readVarint(stream_);
+
+      if (length < 0 || length > MAX_BLOCK_LENGTH || stored < 0 || stored > MAX_BLOCK_LENGTH) {
+        throw new IOException("corrupted block header : length=" + length + ", stored=" + stored);
+      }
+      if (method == STORED) {
+
+        if (stored != length) {
+          throw new IOException("corrupted block header : length=" + length + ", stored=" + stored);
+        }
+
+        block_ = readFully(block_, (int) stored);
+      } else if (method == DEFLATED) {
+
+        // Deflate cannot shrink its input more than 1032 times
+        if (length > 1032 * stored + 64) {
+          throw new IOException("corrupted block header : length=" + length + ", stored=" + stored);
+        }
+
+        stored_ = readFully(stored_, (int) stored);
+
+        if (block_.length < length) {
+          block_ = new byte[(int) Math.max(length, Math.min(MAX_BLOCK_LENGTH, 2L * block_.length))];
+        }
+
+        inflater_.reset();
+        inflater_.setInput(stored_, 0, (int) stored);
+
+        try {
+
+          @Var int size = 0;
+
+          while (size < length) {
+
+            int count = inflater_.inflate(block_, size, (int) length - size);
+
+            if (count == 0 && (inflater_.finished() || inflater_.needsInput() || inflater_.needsDictionary())) {
+              throw new IOException("truncated block");
+            }
+            size += count;
+          }
+        } catch (DataFormatException e) {
+          throw new IOException("corrupted block", e);
+        }
+      } else {
+        throw new IOException("unknown block compression method " + method);
+      }
+
+      position_ = 0;
+      limit_ = (int) length;
+      nbLines_ = checkLength(readVarint());
+      nbKeys_ = 0;
+
+      int nbKeys = checkLength(readVarint());
+
+      if (keys_.length < nbKeys) {
+        keys_ = new String[Math.max(nbKeys, 2 * keys_.length)];
+        keyOffsets_ = new int[2 * keys_.length];
+      }
+      for (int i = 0; i < nbKeys; i++) {
+
+        int keyLength = readLength();
+
+        // Keys are only decoded when a line is rendered or materialized, not when it is visited
+        keyOffsets_[2 * i] = position_;
+        keyOffsets_[2 * i + 1] = keyLength;
+        keys_[i] = null;
+        position_ += keyLength;
+      }
+
+      nbKeys_ = nbKeys;
+      return next();
+    }
+
+    /**
+     * Read exactly {@code length} bytes, growing the buffer as they arrive so that a corrupted
+     * length cannot trigger a huge allocation on its own.
+     *
+     * @return the buffer, or a larger copy of it.
+     */
+    private byte[] readFully(@Var byte[] bytes, int length) throws IOException {
+
+      @Var int read = 0;
+
+      while (read < length) {
+
+        if (read == bytes.length) {
+          bytes = Arrays.copyOf(bytes, (int) Math.min(length, Math.max(64 * 1024, 2L * bytes.length)));
+        }
+
+        int count = stream_.read(bytes, read, Math.min(length, bytes.length) - read);
+
+        if (count < 0) {
+          throw new EOFException("truncated block");
+        }
+        read += count;
+      }
+      return bytes;
+    }
+
+    private long readVarint(InputStream stream) throws IOException {
+
+      @Var long value = 0;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+
+        int b = stream.read();
+
+        if (b < 0) {
+          throw new EOFException("truncated block header");
+        }
+
+        value |= (long) (b & 0x7F) << shift;
+
+        if (b < 0x80) {
+          return value;
+        }
+      }
+      throw new IOException("corrupted block header : varint too long");
+    }
+
+    private long readVarint() throws IOException {
+
+      @Var long value = 0;
+
+      for (int shift = 0; shift < 64 && position_ < limit_; shift += 7) {
+
+        byte b = block_[position_++];
+
+        value |= (long) (b & 0x7F) << shift;
+
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IOException("corrupted block : invalid varint at " + position_);
+    }
+
+    /**
+     * @return a count of items that take at least one byte each, checked against the bytes left.
+     */
+    private int checkLength(long length) throws IOException {
+      if (length < 0 || length > limit_ - position_) {
+        throw new IOException("corrupted block : length " + length + " at " + position_ + " exceeds " + limit_);
+      }
+      return (int) length;
+    }
+
+    private int readLength() throws IOException {
+      return checkLength(readVarint());
+    }
+
+    /**
+     * @return the key index and the tag of a field, checked against the dictionary.
+     */
+    private int readField() throws IOException {
+
+      long field = readVarint();
+
+      if ((field >>> TAG_BITS) >= nbKeys_ || (field & TAG_MASK) > LONG) {
+        throw new IOException("corrupted block : invalid field " + field + " at " + position_);
+      }
+      return (int) field;
+    }
+
+    private String key(int index) {
+      if (keys_[index] == null) {
+        keys_[index] = decode(keyOffsets_[2 * index], keyOffsets_[2 * index + 1]);
+      }
+      return keys_[index];
+    }
+
+    private String readString() throws IOException {
+      return readString(readLength());
+    }
+
+    private String readString(int length) {
+
+      int start = position_;
+
+      position_ += length;
+      return decode(start, length);
+    }
+
+    private String decode(int start, int length) {
+
+      if (chars_.length < length) {
+        chars_ = new char[Math.max(length, 2 * chars_.length)];
+      }
+
+      // Most values are ASCII : widen the bytes instead of going through a charset decoder
+      for (int i = 0; i < length; i++) {
+
+        byte b = block_[start + i];
+
+        if (b < 0) {
+          return new String(block_, start, length, StandardCharsets.UTF_8);
+        }
+        chars_[i] = (char) b;
+      }
+      return new String(chars_, 0, length);
+    }
+  }
+
+  /**
+   * @return true iif the range holds an integer as rendered by {@link Long#toString(long)} i.e.
+   *     without sign, leading zeros or overflow, so that it can be rendered back as is.
+   */
+  private static boolean isCanonicalLong(CharSequence log, int start, int end) {
+
+    int digits = start < end && log.charAt(start) == '-' ? start + 1 : start;
+    int length = end - digits;
+
+    if (length <= 0 || length > 19 || (log.charAt(digits) == '0' && (length > 1 || digits > start))) {
+      return false;
+    }
+    for (int i = digits; i < end; i++) {
+
+      char c = log.charAt(i);
+
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    if (length < 19) {
+      return true;
+    }
+
+    // 19 digits may overflow : compare with the extreme values
+    String bound = digits > start ? "9223372036854775808" : "9223372036854775807";
+
+    for (int i = 0; i < length; i++) {
+
+      char c = log.charAt(digits + i);
+
+      if (c != bound.charAt(i)) {
+        return c < bound.charAt(i);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the integer held by a range checked by {@link #isCanonicalLong(CharSequence, int, int)}.
+   */
+  private static long parseLong(CharSequence log, int start, int end) {
+
+    boolean negative = log.charAt(start) == '-';
+    @Var long value = 0;
+
+    // Accumulate negatively so that Long.MIN_VALUE does not overflow
+    for (int i = negative ? start + 1 : start; i < end; i++) {
+      value = value * 10 - (log.charAt(i) - '0');
+    }
+    return negative ? value : -value;
+  }
+
+  /**
+   * Write the decimal representation of an integer as ASCII bytes.
+   *
+   * @return the index after the last digit.
+   */
+  private static int putLong(byte[] bytes, @Var int position, long value) {
+
+    if (value < 0) {
+      bytes[position++] = '-';
+    }
+
+    // Work on the negative value so that Long.MIN_VALUE does not overflow
+    @Var long negative = value < 0 ? value : -value;
+    int end = position + digits(negative);
+
+    for (int i = end - 1; i >= position; i--) {
+      bytes[i] = (byte) ('0' - negative % 10);
+      negative /= 10;
+    }
+    return end;
+  }
+
+  private static int digits(@Var long negative) {
+
+    @Var int digits = 1;
+
+    while (negative <= -10) {
+      negative /= 10;
+      digits++;
+    }
+    return digits;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * A growable byte array.
+   */
+  private static final class Bytes {
+
+    byte[] data_;
+    int size_ = 0;
+
+    Bytes(int capacity) {
+      data_ = new byte[capacity];
+    }
+
+    /**
+     * @return the index after the varint.
+     */
+    static int putVarint(byte[] bytes, @Var int position, @Var long value) {
+      while ((value & ~0x7FL) != 0) {
+        bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[position++] = (byte) value;
+      return position;
+    }
+
+    void clear() {
+      size_ = 0;
+    }
+
+    void writeByte(int b) {
+      ensureCapacity(1);
+      data_[size_++] = (byte) b;
+    }
+
+    void writeVarint(long value) {
+      ensureCapacity(10);
+      size_ = putVarint(data_, size_, value);
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+      ensureCapacity(length);
+      System.arraycopy(bytes, offset, data_, size_, length);
+      size_ += length;
+    }
+
+    /**
+     * Write the length of the UTF-8 encoding of a range of characters then the encoding itself.
+     */
+    void writeUtf8(CharSequence chars, int start, int end) {
+      writeVarint(Utf8Sequence.encodedLength(chars, start, end));
+      putUtf8(chars, start, end);
+    }
+
+    void putUtf8(CharSequence chars, int start, int end) {
+
+      ensureCapacity(Utf8Sequence.encodedLength(chars, start, end));
+
+      for (int i = start; i < end; i++) {
+
+        char c = chars.charAt(i);
+
+        if (c >= 0x80) {
+
+          // Rare : encode the remaining characters in place
+          ByteBuffer buffer = ByteBuffer.wrap(data_, size_, data_.length - size_);
+
+          Utf8Sequence.put(chars, i, end, buffer);
+          size_ = buffer.position();
+          return;
+        }
+        data_[size_++] = (byte) c;
+      }
+    }
+
+    private void ensureCapacity(int length) {
+      if (size_ + length > data_.length) {
+        data_ = Arrays.copyOf(data_, Math.max(size_ + length, 2 * data_.length));
+      }
+    }
+  }
+
+  final public static class Builder {
+
+    private int blockSize_ = 64 * 1024;
+    private int level_ = Deflater.BEST_SPEED;
+
+    private Builder() {
+    }
+
+    /**
+     * @param blockSize the size above which the pending lines are written as a block, in bytes,
+     *     before compression.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder blockSize(int blockSize) {
+
+      Preconditions.checkArgument(blockSize > 0, "blockSize must be > 0");
+
+      blockSize_ = blockSize;
+      return this;
+    }
+
+    /**
+     * @param level the {@link Deflater} compression level, in [0, 9]. 0 disables the compression.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder compression(int level) {
+
+      Preconditions.checkArgument(level >= 0 && level <= 9, "level must be in [0, 9]");
+
+      level_ = level;
+      return this;
+    }
+
+    public LogBlockCodec build() {
+      return new LogBlockCodec(this);
+    }
+  }
+}
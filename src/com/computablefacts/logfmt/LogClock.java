@@ -0,0 +1,241 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.time.Clock;
+import java.time.Instant;
+
+/**
+ * The source and the format of the {@code timestamp} field added by
+ * {@link LogFormatter#formatInfo()} and its siblings.
+ *
+ * ISO-8601 timestamps are rendered exactly like {@link Instant#toString()}. The
+ * {@code yyyy-MM-ddTHH:mm:ss} part is cached per second, so only the fraction of second is
+ * rendered on each line. Epoch timestamps are rendered as plain numbers.
+ */
+@CheckReturnValue
+final public class LogClock {
+
+  private static final LogClock ISO_8601 = new LogClock(Clock.systemUTC(), eFormat.ISO_8601);
+  private static final int CACHE_SIZE = 16;
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  // Racy, but safe : entries are immutable and a missing or stale entry is simply rebuilt.
+  private static final Second[] CACHE = new Second[CACHE_SIZE];
+
+  private final Clock clock_;
+  private final eFormat format_;
+
+  private LogClock(Clock clock, eFormat format) {
+    clock_ = Preconditions.checkNotNull(clock, "clock should not be null");
+    format_ = format;
+  }
+
+  /**
+   * @return ISO-8601 timestamps read from the system UTC clock. This is the default.
+   */
+  public static LogClock iso8601() {
+    return ISO_8601;
+  }
+
+  public static LogClock iso8601(Clock clock) {
+    return new LogClock(clock, eFormat.ISO_8601);
+  }
+
+  public static LogClock epochMillis() {
+    return epochMillis(Clock.systemUTC());
+  }
+
+  public static LogClock epochMillis(Clock clock) {
+    return new LogClock(clock, eFormat.EPOCH_MILLIS);
+  }
+
+  public static LogClock epochNanos() {
+    return epochNanos(Clock.systemUTC());
+  }
+
+  public static LogClock epochNanos(Clock clock) {
+    return new LogClock(clock, eFormat.EPOCH_NANOS);
+  }
+
+  /**
+   * Append an ISO-8601 instant to a builder. The output is the same as {@link Instant#toString()}.
+   *
+   * @param builder the destination.
+   * @param epochSecond the number of seconds since the epoch.
+   * @param nanos the nanosecond of second.
+   */
+  static void appendIso8601(StringBuilder builder, long epochSecond, int nanos) {
+
+    int slot = (int) (epochSecond & (CACHE_SIZE - 1));
+    @Var Second second = CACHE[slot];
+
+    if (second == null || second.epochSecond_ != epochSecond) {
+      second = new Second(epochSecond);
+      CACHE[slot] = second;
+    }
+
+    builder.append(second.chars_);
+
+    if (nanos > 0) {
+
+      builder.append('.');
+
+      if (nanos % 1_000_000 == 0) {
+        appendDigits(builder, nanos / 1_000_000, 3);
+      } else if (nanos % 1_000 == 0) {
+        appendDigits(builder, nanos / 1_000, 6);
+      } else {
+        appendDigits(builder, nanos, 9);
+      }
+    }
+    builder.append('Z');
+  }
+
+  /**
+   * Decode an ISO-8601 instant with the fixed layout written by {@link #appendIso8601} i.e.
+   * {@code yyyy-MM-ddTHH:mm:ss[.f{1,9}]Z}. Other layouts accepted by {@link Instant#parse} are
+   * rejected rather than decoded.
+   *
+   * @param chars the characters to decode.
+   * @param start the index of the first character of the instant.
+   * @param end the index after the last character of the instant.
+   * @return the instant or null if the range does not have the fixed layout.
+   */
+  static Instant parseIso8601(CharSequence chars, int start, int end) {
+
+    int length = end - start;
+
+    if (length < 20 || length == 21 || length > 30 || chars.charAt(end - 1) != 'Z' || chars.charAt(start + 4) != '-'
+        || chars.charAt(start + 7) != '-' || chars.charAt(start + 10) != 'T' || chars.charAt(start + 13) != ':'
+        || chars.charAt(start + 16) != ':' || (length > 20 && chars.charAt(start + 19) != '.')) {
+      return null;
+    }
+
+    int year = digits(chars, start, 4);
+    int month = digits(chars, start + 5, 2);
+    int day = digits(chars, start + 8, 2);
+    int hour = digits(chars, start + 11, 2);
+    int minute = digits(chars, start + 14, 2);
+    int second = digits(chars, start + 17, 2);
+
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour < 0 || hour > 23
+        || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return null;
+    }
+
+    @Var int nanos = 0;
+
+    if (length > 20) {
+
+      int nbDigits = length - 21;
+      int fraction = digits(chars, start + 20, nbDigits);
+
+      if (fraction < 0) {
+        return null;
+      }
+
+      nanos = fraction;
+
+      for (int i = nbDigits; i < 9; i++) {
+        nanos *= 10;
+      }
+    }
+    return Instant.ofEpochSecond(epochDay(year, month, day) * 86_400L + hour * 3_600L + minute * 60L + second, nanos);
+  }
+
+  /**
+   * @return the number of days since 1970-01-01 of a date of the proleptic Gregorian calendar.
+   */
+  private static long epochDay(int year, int month, int day) {
+
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+    return era * 146_097L + dayOfEra - 719_468L;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2) {
+      return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+    }
+    return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+  }
+
+  /**
+   * @return the value of {@code nbDigits} ASCII digits or -1 if a character is not a digit.
+   */
+  private static int digits(CharSequence chars, int start, int nbDigits) {
+
+    @Var int value = 0;
+
+    for (int i = start; i < start + nbDigits; i++) {
+
+      int digit = chars.charAt(i) - '0';
+
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  private static void appendDigits(StringBuilder builder, int value, int nbDigits) {
+    @Var int divisor = 1;
+    for (int i = 1; i < nbDigits; i++) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      builder.append((char) ('0' + (value / divisor) % 10));
+    }
+  }
+
+  /**
+   * @return the type of the timestamp field i.e. {@link LogEncoder#TIMESTAMP} or
+   *     {@link LogEncoder#LONG}.
+   */
+  byte type() {
+    return format_ == eFormat.ISO_8601 ? LogEncoder.TIMESTAMP : LogEncoder.LONG;
+  }
+
+  /**
+   * Read the clock.
+   *
+   * @return the current time in nanoseconds since the epoch for ISO-8601 and epoch nanos
+   *     timestamps, in milliseconds since the epoch for epoch millis timestamps.
+   * @throws ArithmeticException if the clock goes beyond the year 2262 and the timestamp is
+   *     expressed in nanoseconds.
+   */
+  long tick() {
+    if (format_ == eFormat.EPOCH_MILLIS) {
+      return clock_.millis();
+    }
+
+    Instant instant = clock_.instant();
+
+    return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), NANOS_PER_SECOND), instant.getNano());
+  }
+
+  private enum eFormat {
+    ISO_8601, EPOCH_MILLIS, EPOCH_NANOS
+  }
+
+  private static final class Second {
+
+    final long epochSecond_;
+    final char[] chars_;
+
+    Second(long epochSecond) {
+
+      String instant = Instant.ofEpochSecond(epochSecond).toString();
+
+      epochSecond_ = epochSecond;
+      chars_ = instant.substring(0, instant.length() - 1).toCharArray();
+    }
+  }
+}
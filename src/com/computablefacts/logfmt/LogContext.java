@@ -0,0 +1,194 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable set of fields shared by many log lines, e.g. the service name, its version and the
+ * host it runs on.
+ *
+ * The fields are sorted and rendered once, when the context is built. A {@link LogFormatter} the
+ * context is attached to with {@link LogFormatter#context(LogContext)} merges the rendered fields
+ * into its sorted output by copying runs of them in bulk : context fields are neither hashed,
+ * sorted nor quoted again on each line. When the formatter holds a key of the context, the value of
+ * the formatter wins.
+ *
+ * The fields are redacted with the policy of the builder, {@link LogRedactor#passwords()} by
+ * default. Once attached to a formatter with another policy, they are rendered again with the
+ * policy of the formatter : a context never bypasses {@link LogFormatter#redactor(LogRedactor)}.
+ * The rendering is cached per policy, so that a context shared by formatters with different
+ * policies is only rendered once per policy, not on each attachment.
+ *
+ * A context is thread-safe and is meant to be shared.
+ */
+@CheckReturnValue
+final public class LogContext {
+
+  private static final LogContext EMPTY = builder().build();
+  private static final int MAX_VARIANTS = 8;
+
+  private final Map<String, Object> values_;
+  private final LogRedactor redactor_;
+  private final String[] keys_;
+  private final char[] rendered_;
+  private final int[] starts_;
+  private final int[] ends_;
+
+  // The renderings of the same fields with other policies, shared by all of them
+  private final ConcurrentMap<LogRedactor, LogContext> variants_;
+
+  private LogContext(Map<String, Object> values, LogRedactor redactor,
+      ConcurrentMap<LogRedactor, LogContext> variants) {
+
+    StringBuilder rendered = new StringBuilder();
+
+    values_ = values;
+    redactor_ = redactor;
+    variants_ = variants;
+    keys_ = values.keySet().toArray(new String[0]);
+    starts_ = new int[keys_.length];
+    ends_ = new int[keys_.length];
+
+    for (int i = 0; i < keys_.length; i++) {
+
+      if (i > 0) {
+        rendered.append(' ');
+      }
+
+      // Each field is rendered by a formatter holding this single field
+      starts_[i] = rendered.length();
+      LogFormatter.create().redactor(redactor).add(keys_[i], values.get(keys_[i])).format(rendered);
+      ends_[i] = rendered.length();
+    }
+
+    rendered_ = rendered.toString().toCharArray();
+  }
+
+  /**
+   * @return a context without fields. This is the default.
+   */
+  public static LogContext empty() {
+    return EMPTY;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @return the number of fields.
+   */
+  public int size() {
+    return keys_.length;
+  }
+
+  /**
+   * @return the rendered fields, sorted by key.
+   */
+  @Override
+  public String toString() {
+    return new String(rendered_);
+  }
+
+  /**
+   * @param redactor a redaction policy.
+   * @return this context if its fields have been redacted with the policy, a copy of this context
+   *     redacted with the policy otherwise. Copies are cached, up to a few policies.
+   */
+  LogContext redact(LogRedactor redactor) {
+
+    if (redactor == redactor_ || keys_.length == 0) {
+      return this;
+    }
+
+    LogContext variant = variants_.get(redactor);
+
+    if (variant != null) {
+      return variant;
+    }
+
+    LogContext redacted = new LogContext(values_, redactor, variants_);
+
+    if (variants_.size() >= MAX_VARIANTS) {
+      return redacted;
+    }
+
+    LogContext previous = variants_.putIfAbsent(redactor, redacted);
+
+    return previous == null ? redacted : previous;
+  }
+
+  String key(int field) {
+    return keys_[field];
+  }
+
+  /**
+   * Append a run of rendered fields, separated by a space.
+   *
+   * @param builder the destination.
+   * @param from the first field of the run.
+   * @param to the field after the last field of the run.
+   */
+  void appendTo(StringBuilder builder, int from, int to) {
+    builder.append(rendered_, starts_[from], ends_[to - 1] - starts_[from]);
+  }
+
+  final public static class Builder {
+
+    private final Map<String, Object> values_ = new TreeMap<>();
+    private LogRedactor redactor_ = LogRedactor.passwords();
+
+    private Builder() {
+    }
+
+    @CanIgnoreReturnValue
+    public Builder add(String key, Object value) {
+
+      // Null and empty keys are ignored, like in LogFormatter
+      if (!Strings.isNullOrEmpty(key)) {
+        values_.put(key, value);
+      }
+      return this;
+    }
+
+    @CanIgnoreReturnValue
+    public Builder add(String key, long value) {
+      return add(key, (Object) value);
+    }
+
+    @CanIgnoreReturnValue
+    public Builder add(String key, double value) {
+      return add(key, (Object) value);
+    }
+
+    @CanIgnoreReturnValue
+    public Builder add(String key, boolean value) {
+      return add(key, (Object) value);
+    }
+
+    /**
+     * @param redactor the redaction policy applied to the fields until the context is attached to
+     *     a formatter with another policy.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder redactor(LogRedactor redactor) {
+      redactor_ = Preconditions.checkNotNull(redactor, "redactor should not be null");
+      return this;
+    }
+
+    public LogContext build() {
+
+      LogContext context = new LogContext(new TreeMap<>(values_), redactor_, new ConcurrentHashMap<>());
+
+      context.variants_.put(redactor_, context);
+      return context;
+    }
+  }
+}
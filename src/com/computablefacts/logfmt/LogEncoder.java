@@ -0,0 +1,436 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * A reusable encoder that sorts and renders the fields of a {@link LogFormatter}.
+ *
+ * Each thread owns a single encoder : the builder and the scratch arrays are reused from one line
+ * to the next so that, once warmed up, encoding a line does not allocate. An encoder must be
+ * obtained with {@link #acquire()} and given back with {@link #release()}.
+ */
+@CheckReturnValue
+final class LogEncoder {
+
+  static final byte NONE = -1;
+  static final byte OBJECT = 0;
+  static final byte LONG = 1;
+  static final byte DOUBLE = 2;
+  static final byte FLOAT = 3;
+  static final byte BOOLEAN = 4;
+  static final byte TIMESTAMP = 5;
+
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+  private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+  private static final int INSERTION_SORT_THRESHOLD = 32;
+  private static final char[] NO_CHARS = new char[0];
+  private static final ThreadLocal<LogEncoder> ENCODER = ThreadLocal.withInitial(LogEncoder::new);
+
+  private final StringBuilder builder_ = new StringBuilder(256);
+  private char[][] prefixes_ = new char[16][];
+  private String[] keys_ = new String[16];
+  private Object[] values_ = new Object[16];
+  private long[] bits_ = new long[16];
+  private byte[] types_ = new byte[16];
+  private int[] order_ = new int[16];
+  private int[] merged_ = new int[16];
+  private char[] chars_ = NO_CHARS;
+  private ThrowableRenderer throwables_ = ThrowableRenderer.full();
+  private int size_ = 0;
+  private boolean busy_ = false;
+
+  private LogEncoder() {
+  }
+
+  /**
+   * Get the encoder owned by the current thread. A fresh encoder is returned if the thread encoder
+   * is already in use i.e. if a value being rendered formats a log line itself.
+   *
+   * @return an encoder.
+   */
+  static LogEncoder acquire() {
+
+    LogEncoder encoder = ENCODER.get();
+
+    if (encoder.busy_) {
+      return new LogEncoder();
+    }
+
+    encoder.busy_ = true;
+    return encoder;
+  }
+
+  /**
+   * Box a primitive value stored as raw bits.
+   *
+   * @param type the value type.
+   * @param bits the value bits.
+   * @return the boxed value.
+   */
+  static Object box(byte type, long bits) {
+    switch (type) {
+      case LONG:
+        return bits;
+      case DOUBLE:
+        return Double.longBitsToDouble(bits);
+      case FLOAT:
+        return Float.intBitsToFloat((int) bits);
+      case BOOLEAN:
+        return bits != 0;
+      case TIMESTAMP:
+        StringBuilder builder = new StringBuilder(30);
+        LogClock.appendIso8601(builder, Math.floorDiv(bits, NANOS_PER_SECOND), (int) Math.floorMod(bits, NANOS_PER_SECOND));
+        return builder.toString();
+      default:
+        throw new IllegalArgumentException("unknown type " + type);
+    }
+  }
+
+  @CanIgnoreReturnValue
+  static StringBuilder quote(StringBuilder builder, String string) {
+    if (string == null) {
+      return builder.append("null");
+    }
+    if (string.length() == 0) {
+      return builder.append("\"\"");
+    }
+
+    // The characters before the first unsafe one need neither quoting nor escaping : copy them in
+    // one go then only look for escapes from there
+    int length = string.length();
+    int unsafe = Delimiters.indexOfUnsafe(string);
+
+    if (unsafe >= length) {
+      return builder.append(string);
+    }
+
+    builder.append('"').append(string, 0, unsafe);
+    escape(builder, string, unsafe, length);
+    return builder.append('"');
+  }
+
+  /**
+   * Append a range of a string, escaping the characters that cannot appear as is in a quoted
+   * value.
+   *
+   * @param builder the destination.
+   * @param string the characters to escape.
+   * @param from the index of the first character to escape.
+   * @param to the index after the last character to escape.
+   */
+  static void escape(StringBuilder builder, String string, int from, int to) {
+
+    @Var int start = from;
+
+    while (start < to) {
+
+      int end = Delimiters.indexOfEscape(string, start, to);
+
+      builder.append(string, start, end);
+
+      if (end >= to) {
+        break;
+      }
+
+      char c = string.charAt(end);
+
+      switch (c) {
+        case '\t':
+          builder.append("\\t");
+          break;
+        case '\b':
+          builder.append("\\b");
+          break;
+        case '\n':
+          builder.append("\\n");
+          break;
+        case '\r':
+          builder.append("\\r");
+          break;
+        case '\f':
+          builder.append("\\f");
+          break;
+        case '\"':
+          builder.append("\\\"");
+          break;
+        case '\\':
+          builder.append("\\\\");
+          break;
+        case '=':
+          builder.append("\\=");
+          break;
+        default:
+          builder.append(c);
+      }
+      start = end + 1;
+    }
+  }
+
+  private static void sort(int[] order, String[] keys, int from, int to) {
+    if (to - from <= INSERTION_SORT_THRESHOLD) {
+      for (int i = from + 1; i < to; i++) {
+
+        int item = order[i];
+        @Var int j = i - 1;
+
+        while (j >= from && keys[order[j]].compareTo(keys[item]) > 0) {
+          order[j + 1] = order[j];
+          j--;
+        }
+        order[j + 1] = item;
+      }
+    } else {
+
+      int size = to - from;
+
+      for (int i = size / 2 - 1; i >= 0; i--) {
+        siftDown(order, keys, from, i, size);
+      }
+      for (int end = size - 1; end > 0; end--) {
+
+        int item = order[from];
+        order[from] = order[from + end];
+        order[from + end] = item;
+
+        siftDown(order, keys, from, 0, end);
+      }
+    }
+  }
+
+  private static void siftDown(int[] order, String[] keys, int from, @Var int root, int size) {
+
+    int item = order[from + root];
+
+    while (2 * root + 1 < size) {
+
+      @Var int child = 2 * root + 1;
+
+      if (child + 1 < size && keys[order[from + child + 1]].compareTo(keys[order[from + child]]) > 0) {
+        child++;
+      }
+      if (keys[order[from + child]].compareTo(keys[item]) <= 0) {
+        break;
+      }
+
+      order[from + root] = order[from + child];
+      root = child;
+    }
+    order[from + root] = item;
+  }
+
+  /**
+   * Give the encoder back. The encoder must not be used afterward.
+   */
+  void release() {
+
+    Arrays.fill(prefixes_, 0, size_, null);
+    Arrays.fill(keys_, 0, size_, null);
+    Arrays.fill(values_, 0, size_, null);
+
+    size_ = 0;
+
+    if (builder_.capacity() > MAX_RETAINED_CAPACITY) {
+      builder_.setLength(0);
+      builder_.trimToSize();
+    }
+    if (chars_.length > MAX_RETAINED_CAPACITY) {
+      chars_ = NO_CHARS;
+    }
+
+    busy_ = false;
+  }
+
+  /**
+   * @return the number of staged fields.
+   */
+  int size() {
+    return size_;
+  }
+
+  /**
+   * Stage a field. Keys must be unique.
+   *
+   * @param prefix the pre-encoded {@code key=} prefix or null.
+   * @param key the field name.
+   * @param type the value type.
+   * @param bits the value bits if the value is a primitive.
+   * @param value the value if the value is an object.
+   */
+  void add(char[] prefix, String key, byte type, long bits, Object value) {
+
+    if (size_ == keys_.length) {
+      prefixes_ = Arrays.copyOf(prefixes_, size_ * 2);
+      keys_ = Arrays.copyOf(keys_, size_ * 2);
+      values_ = Arrays.copyOf(values_, size_ * 2);
+      bits_ = Arrays.copyOf(bits_, size_ * 2);
+      types_ = Arrays.copyOf(types_, size_ * 2);
+      order_ = Arrays.copyOf(order_, size_ * 2);
+      merged_ = Arrays.copyOf(merged_, size_ * 2);
+    }
+
+    prefixes_[size_] = prefix;
+    keys_[size_] = key;
+    values_[size_] = value;
+    bits_[size_] = bits;
+    types_[size_] = type;
+    size_++;
+  }
+
+  /**
+   * Render the staged fields sorted by key.
+   *
+   * @param sorted the number of leading fields that were staged already sorted. Only the remaining
+   *     fields are sorted, then merged with the leading ones.
+   * @param throwables the renderer of {@link Throwable} values.
+   * @param context the pre-rendered fields to merge with the staged ones. A staged field overrides
+   *     the context field with the same key.
+   * @return the internal builder. Its content is only valid until the encoder is released.
+   */
+  @CanIgnoreReturnValue
+  StringBuilder encode(int sorted, ThrowableRenderer throwables, LogContext context) {
+
+    builder_.setLength(0);
+    throwables_ = throwables;
+
+    for (int i = 0; i < size_; i++) {
+      order_[i] = i;
+    }
+
+    sort(order_, keys_, sorted, size_);
+
+    if (sorted > 0 && sorted < size_) {
+
+      @Var int left = 0;
+      @Var int right = sorted;
+
+      for (int i = 0; i < size_; i++) {
+        if (right >= size_ || (left < sorted && keys_[order_[left]].compareTo(keys_[order_[right]]) <= 0)) {
+          merged_[i] = order_[left++];
+        } else {
+          merged_[i] = order_[right++];
+        }
+      }
+
+      int[] order = order_;
+      order_ = merged_;
+      merged_ = order;
+    }
+
+    @Var int next = 0;
+
+    for (int i = 0; i < size_; i++) {
+
+      int field = order_[i];
+      @Var int end = next;
+
+      // Copy the context fields sorted before this one in one go
+      while (end < context.size() && context.key(end).compareTo(keys_[field]) < 0) {
+        end++;
+      }
+      if (end > next) {
+        separate();
+        context.appendTo(builder_, next, end);
+      }
+      next = end < context.size() && context.key(end).equals(keys_[field]) ? end + 1 : end;
+
+      separate();
+
+      if (prefixes_[field] != null) {
+        builder_.append(prefixes_[field]);
+      } else {
+        builder_.append(keys_[field]).append('=');
+      }
+
+      switch (types_[field]) {
+        case LONG:
+          builder_.append(bits_[field]);
+          break;
+        case DOUBLE:
+          builder_.append(Double.longBitsToDouble(bits_[field]));
+          break;
+        case FLOAT:
+          builder_.append(Float.intBitsToFloat((int) bits_[field]));
+          break;
+        case BOOLEAN:
+          builder_.append(bits_[field] != 0);
+          break;
+        case TIMESTAMP:
+          builder_.append('"');
+          LogClock.appendIso8601(builder_, Math.floorDiv(bits_[field], NANOS_PER_SECOND),
+              (int) Math.floorMod(bits_[field], NANOS_PER_SECOND));
+          builder_.append('"');
+          break;
+        default:
+          append(values_[field]);
+      }
+    }
+    if (next < context.size()) {
+      separate();
+      context.appendTo(builder_, next, context.size());
+    }
+    return builder_;
+  }
+
+  private void separate() {
+    if (builder_.length() > 0) {
+      builder_.append(' ');
+    }
+  }
+
+  /**
+   * Copy the rendered line to an {@link Appendable}. {@link Writer} instances are written to
+   * through a reusable char array.
+   *
+   * @param appendable the destination.
+   */
+  void writeTo(Appendable appendable) throws IOException {
+
+    Preconditions.checkNotNull(appendable, "appendable should not be null");
+
+    if (!(appendable instanceof Writer)) {
+      appendable.append(builder_, 0, builder_.length());
+    } else {
+
+      if (chars_.length < builder_.length()) {
+        chars_ = new char[Math.max(builder_.length(), 2 * chars_.length)];
+      }
+
+      builder_.getChars(0, builder_.length(), chars_, 0);
+      ((Writer) appendable).write(chars_, 0, builder_.length());
+    }
+  }
+
+  /**
+   * Copy the UTF-8 encoding of the rendered line to a buffer. Nothing is written if the buffer is
+   * too small.
+   *
+   * @param buffer the destination.
+   */
+  void writeTo(ByteBuffer buffer) {
+
+    Preconditions.checkNotNull(buffer, "buffer should not be null");
+
+    Utf8Sequence.encode(builder_, 0, builder_.length(), buffer);
+  }
+
+  private void append(Object value) {
+    if (value instanceof Instant) {
+      LogClock.appendIso8601(builder_, ((Instant) value).getEpochSecond(), 0);
+    } else if (value instanceof Date) {
+      LogClock.appendIso8601(builder_, Math.floorDiv(((Date) value).getTime(), 1000L), 0);
+    } else if (value instanceof Throwable) {
+      throwables_.render(builder_, (Throwable) value);
+    } else {
+      quote(builder_, value instanceof String ? (String) value : value.toString());
+    }
+  }
+}
@@ -2,54 +2,280 @@ package com.computablefacts.logfmt;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
-import com.google.common.base.Throwables;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.errorprone.annotations.CheckReturnValue;
 import com.google.errorprone.annotations.Var;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.Date;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 @CheckReturnValue
 final public class LogFormatter {
 
   private static final char SEPARATOR = ' ';
-  private static final int KEY_START = 0;
-  private static final int KEY_LEN = 1;
-  private static final int VAL_START = 2;
+  private static final int INITIAL_CAPACITY = 8;
+  private static final int INDEX_THRESHOLD = 8;
+  private static final int BARE_LINE = 1;
+  private static final int TRUNCATED_VALUE = 2;
+
+  // Fields are stored in insertion order in parallel arrays. Primitive values are kept unboxed in
+  // bits_ and rendered directly by the encoder. When the formatter is bound to a schema, the first
+  // schema_.size() fields are the schema slots : their keys never change and their type is
+  // LogEncoder.NONE until a value is added. Once the formatter holds more than INDEX_THRESHOLD
+  // other fields, their keys are indexed in an open addressing table (field index + 1) so that
+  // overwriting a key does not require a linear scan.
+  //
+  // A concurrent formatter stores its fields in an immutable linked list instead, newest first.
+  // Adding a field prepends a node with a CAS and formatting swaps the whole list for an empty one,
+  // so that each field ends up in exactly one line and writers never block.
+  private final AtomicReference<Node> concurrent_;
+  private final LogSchema schema_;
+  private final int fixed_;
+  private String[] keys_;
+  private Object[] values_;
+  private long[] bits_;
+  private byte[] types_;
+  private int[] index_;
+  private int size_;
+  private LogClock clock_ = LogClock.iso8601();
+  private ThrowableRenderer throwables_ = ThrowableRenderer.full();
+  private LogContext context_ = LogContext.empty();
+  private LogRedactor redactor_ = LogRedactor.passwords();
+  private LogRateLimiter rateLimiter_ = null;
+
+  private LogFormatter(boolean concurrent, LogSchema schema) {
+
+    concurrent_ = concurrent ? new AtomicReference<>(Node.EMPTY) : null;
+    schema_ = schema;
+    fixed_ = schema == null ? 0 : schema.size();
+    size_ = fixed_;
+
+    if (fixed_ > 0) {
+
+      int capacity = fixed_ + INITIAL_CAPACITY;
+
+      keys_ = new String[capacity];
+      values_ = new Object[capacity];
+      bits_ = new long[capacity];
+      types_ = new byte[capacity];
+
+      for (int i = 0; i < fixed_; i++) {
+        keys_[i] = schema.key(i);
+        types_[i] = LogEncoder.NONE;
+      }
+    }
+  }
+
+  /**
+   * Create a formatter. The formatter is not thread-safe : it is meant to be built and formatted
+   * by a single thread.
+   *
+   * @return a new formatter.
+   */
+  public static LogFormatter create() {
+    return new LogFormatter(false, null);
+  }
+
+  /**
+   * Create a formatter bound to a schema. The schema keys are rendered without being sorted again.
+   * Keys outside of the schema are still accepted. The formatter is not thread-safe.
+   *
+   * @param schema the keys known in advance.
+   * @return a new formatter.
+   */
+  public static LogFormatter create(LogSchema schema) {
 
-  private final Map<String, Object> map_ = new ConcurrentHashMap<>();
+    Preconditions.checkNotNull(schema, "schema should not be null");
 
-  private LogFormatter() {
+    return new LogFormatter(false, schema);
   }
 
-  public static LogFormatter create() {
-    return new LogFormatter();
+  /**
+   * Create a formatter that can be shared by several threads. Fields can be added by several
+   * threads at once without locking. Each call to {@link #format()} atomically takes the fields
+   * added so far and renders them : a field added concurrently is rendered either in this line or
+   * in the next one, never lost nor rendered twice. When a key is added several times, the last
+   * value wins.
+   *
+   * @return a new formatter.
+   */
+  public static LogFormatter createConcurrent() {
+    return new LogFormatter(true, null);
   }
 
   public static Map<String, String> parse(String log) {
 
     Preconditions.checkNotNull(log, "log should not be null");
 
-    char[] line = log.toCharArray();
+    return toMap(log);
+  }
+
+  /**
+   * Parse a UTF-8 encoded log line without decoding it first.
+   *
+   * @param log the buffer holding the log line.
+   * @param offset the index of the first byte of the log line.
+   * @param length the length of the log line in bytes.
+   * @return the parsed fields.
+   */
+  public static Map<String, String> parse(byte[] log, int offset, int length) {
+    return toMap(new Utf8Sequence(log, offset, length));
+  }
+
+  /**
+   * Parse a UTF-8 encoded log line without decoding it first. Only the keys and values actually
+   * materialized by the visitor are decoded. The ranges given to the visitor are byte offsets
+   * relative to {@code offset}.
+   *
+   * @param log the buffer holding the log line.
+   * @param offset the index of the first byte of the log line.
+   * @param length the length of the log line in bytes.
+   * @param visitor the callback invoked for each field.
+   */
+  public static void parse(byte[] log, int offset, int length, FieldVisitor visitor) {
+    parse(new Utf8Sequence(log, offset, length), visitor);
+  }
+
+  /**
+   * Parse the UTF-8 encoded bytes between the buffer position and its limit. The buffer position is
+   * left untouched. The ranges given to the visitor are byte offsets relative to the buffer
+   * position.
+   *
+   * @param log the buffer holding the log line.
+   * @param visitor the callback invoked for each field.
+   */
+  public static void parse(ByteBuffer log, FieldVisitor visitor) {
+    parse(new Utf8Sequence(log), visitor);
+  }
+
+  /**
+   * Parse a subset of the keys of a log line. The values of the other keys are skipped without
+   * being materialized and the scan stops as soon as all the requested keys have been found. If a
+   * key occurs more than once, the first occurrence wins.
+   *
+   * @param log the log line.
+   * @param keys the keys to extract.
+   * @return the fields of the log line whose key belongs to {@code keys}.
+   */
+  public static Map<String, String> parse(String log, KeyMatcher keys) {
+
+    Preconditions.checkNotNull(log, "log should not be null");
+
+    return toMap(log, keys);
+  }
+
+  /**
+   * Parse a subset of the keys of a UTF-8 encoded log line without decoding it first.
+   *
+   * @param log the buffer holding the log line.
+   * @param offset the index of the first byte of the log line.
+   * @param length the length of the log line in bytes.
+   * @param keys the keys to extract.
+   * @return the fields of the log line whose key belongs to {@code keys}.
+   * @see #parse(String, KeyMatcher)
+   */
+  public static Map<String, String> parse(byte[] log, int offset, int length, KeyMatcher keys) {
+    return toMap(new Utf8Sequence(log, offset, length), keys);
+  }
+
+  /**
+   * Parse a log line and get the keys and (unescaped) values from a cache of canonical strings.
+   * Recurring keys and values are then neither copied nor duplicated in memory.
+   *
+   * @param log the log line.
+   * @param interner the cache of canonical strings.
+   * @return the parsed fields.
+   */
+  public static Map<String, String> parse(String log, StringInterner interner) {
+
+    Preconditions.checkNotNull(log, "log should not be null");
+
+    return toMap(log, interner);
+  }
+
+  /**
+   * Parse a UTF-8 encoded log line and get the keys and (unescaped) values from a cache of
+   * canonical strings. Cached keys and values are not decoded.
+   *
+   * @param log the buffer holding the log line.
+   * @param offset the index of the first byte of the log line.
+   * @param length the length of the log line in bytes.
+   * @param interner the cache of canonical strings.
+   * @return the parsed fields.
+   * @see #parse(String, StringInterner)
+   */
+  public static Map<String, String> parse(byte[] log, int offset, int length, StringInterner interner) {
+    return toMap(new Utf8Sequence(log, offset, length), interner);
+  }
+
+  /**
+   * Scan a log line in place and report each field to a visitor. Keys and values are never copied
+   * unless the visitor asks for them.
+   *
+   * @param log the log line.
+   * @param visitor the callback invoked for each field.
+   */
+  public static void parse(CharSequence log, FieldVisitor visitor) {
+
+    Preconditions.checkNotNull(log, "log should not be null");
+    Preconditions.checkNotNull(visitor, "visitor should not be null");
+
+    if (!LogMetrics.ENABLED) {
+      scan(log, visitor);
+      return;
+    }
+
+    long start = System.nanoTime();
+    CountingVisitor counter = new CountingVisitor(visitor);
+    int status = scan(log, counter);
+
+    LogMetrics.record(LogMetrics.eTimer.PARSE, System.nanoTime() - start);
+    LogMetrics.increment(LogMetrics.eCounter.PARSED_LINES);
+    LogMetrics.add(log instanceof Utf8Sequence ? LogMetrics.eCounter.PARSED_BYTES : LogMetrics.eCounter.PARSED_CHARS,
+        log.length());
+    LogMetrics.add(LogMetrics.eCounter.PARSED_FIELDS, counter.fields_);
+    LogMetrics.add(LogMetrics.eCounter.QUOTED_VALUES, counter.quoted_);
+    LogMetrics.add(LogMetrics.eCounter.ESCAPED_VALUES, counter.escaped_);
+
+    if (status == BARE_LINE) {
+      LogMetrics.increment(LogMetrics.eCounter.BARE_LINES);
+    } else if (status == TRUNCATED_VALUE) {
+      LogMetrics.increment(LogMetrics.eCounter.TRUNCATED_VALUES);
+    }
+  }
+
+  /**
+   * @return {@link #BARE_LINE} if the line holds no field separator, {@link #TRUNCATED_VALUE} if
+   *     the line ends inside a quoted value and 0 otherwise.
+   */
+  @CanIgnoreReturnValue
+  private static int scan(CharSequence log, FieldVisitor visitor) {
+
+    int length = log.length();
     @Var ScanState state = ScanState.NEXT;
-    Map<String, String> parsed = new HashMap<>();
     @Var boolean quoted = false;
+    @Var boolean escapes = false;
     @Var boolean escaped;
-    @Var int[] pos = new int[3];
+    @Var int nbFields = 0;
+    @Var int keyStart = 0;
+    @Var int keyLen = 0;
+    @Var int valStart = 0;
 
-    for (int i = 0; i < line.length; i++) {
+    for (int i = 0; i < length; i++) {
 
-      @Var char b = line[i];
+      @Var char b = log.charAt(i);
 
       switch (state) {
         case NEXT:
           if (isChar(b)) {
             state = ScanState.KEY;
-            pos[KEY_START] = i;
+            keyStart = i;
           } else {
             break;
           }
@@ -57,24 +283,34 @@ final public class LogFormatter {
           if (b == '=') {
 
             quoted = false;
-            pos[KEY_LEN] = i - pos[KEY_START];
+            escapes = false;
+            keyLen = i - keyStart;
             state = ScanState.VAL;
             i++;
 
-            if (i < line.length) {
-              if (line[i] == '"') {
-                quoted = true;
-                i++;
-              }
-              pos[VAL_START] = i;
-              b = line[i];
-            } else {
+            if (i < length && log.charAt(i) == '"') {
+              quoted = true;
+              i++;
+            }
+
+            valStart = i;
+
+            if (i >= length) {
               break;
             }
+
+            b = log.charAt(i);
           } else if (!isChar(b)) {
-            char[] key = slice(pos[KEY_START], (i - pos[KEY_START]), line);
-            parsed.put(new String(key), "");
-            pos = new int[3];
+
+            nbFields++;
+
+            if (!visitor.visit(log, keyStart, i, i, i, 0)) {
+              return 0;
+            }
+
+            keyStart = 0;
+            keyLen = 0;
+            valStart = 0;
             state = ScanState.NEXT;
             break;
           }
@@ -82,171 +318,270 @@ final public class LogFormatter {
 
           escaped = false;
 
-          if (b == '\\' && i < (line.length - 1)) {
+          if (b == '\\' && i < (length - 1)) {
+            escapes = true;
             escaped = true;
             i++;
-            b = line[i];
+            b = log.charAt(i);
           }
 
           if (!isChar(b, quoted, escaped)) {
 
-            char[] key = slice(pos[KEY_START], pos[KEY_LEN], line);
-            char[] value = slice(pos[VAL_START], (i - pos[VAL_START]), line);
+            nbFields++;
 
-            parsed.put(new String(key), unquote(value));
+            if (!visitor.visit(log, keyStart, keyStart + keyLen, valStart, i, flags(quoted, escapes))) {
+              return 0;
+            }
 
+            keyStart = 0;
+            keyLen = 0;
+            valStart = 0;
             state = ScanState.NEXT;
-            pos = new int[3];
+          } else {
+
+            // Jump over the characters that can neither end the key or the value nor start an
+            // escape sequence
+            i = Delimiters.indexOf(log, i + 1, length, quoted && state == ScanState.VAL) - 1;
           }
           break;
       }
     }
 
-    if (parsed.isEmpty() && line.length > 0 && pos[KEY_START] == 0 && pos[KEY_LEN] == 0 && pos[VAL_START] == 0) {
-      parsed.put(new String(line), "");
-    } else if (pos[KEY_START] + pos[KEY_LEN] > 0) {
+    if (nbFields == 0 && length > 0 && keyStart == 0 && keyLen == 0 && valStart == 0) {
+      visitor.visit(log, 0, length, length, length, 0);
+      return BARE_LINE;
+    }
+    if (keyStart + keyLen > 0) {
+      visitor.visit(log, keyStart, keyStart + keyLen, valStart > 0 ? valStart : length, length,
+          flags(quoted, escapes));
+      return quoted && state == ScanState.VAL ? TRUNCATED_VALUE : 0;
+    }
+    return 0;
+  }
+
+  static Map<String, String> toMap(CharSequence log) {
 
-      char[] key = slice(pos[KEY_START], pos[KEY_LEN], line);
-      char[] value = (pos[VAL_START] > 0) ? slice(pos[VAL_START], line.length - pos[VAL_START], line) : new char[0];
+    Map<String, String> parsed = new HashMap<>();
 
-      parsed.put(new String(key), unquote(value));
-    }
+    parse(log, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      parsed.put(key(line, keyStart, keyEnd), value(line, valueStart, valueEnd, flags));
+      return true;
+    });
     return parsed;
   }
 
-  private static boolean isChar(char b) {
-    return isChar(b, false, false);
-  }
+  static Map<String, String> toMap(CharSequence log, KeyMatcher keys) {
 
-  private static boolean isChar(char b, boolean quoted, boolean escaped) {
-    if (!quoted) {
-      return b > SEPARATOR && b != '=' && b != '"';
+    Preconditions.checkNotNull(keys, "keys should not be null");
+
+    Map<String, String> parsed = new HashMap<>();
+
+    if (keys.size() > 0) {
+      parse(log, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+
+        int slot = keys.slot(line, keyStart, keyEnd);
+
+        if (slot >= 0 && !parsed.containsKey(keys.key(slot))) {
+          parsed.put(keys.key(slot), value(line, valueStart, valueEnd, flags));
+        }
+        return parsed.size() < keys.size();
+      });
     }
-    return b >= SEPARATOR && (b != '=' || escaped) && (b != '"' || escaped);
+    return parsed;
   }
 
-  private static char[] slice(int start, int len, char[] a) {
-    char[] n = new char[len];
-    System.arraycopy(a, start, n, 0, len);
-    return n;
-  }
+  static Map<String, String> toMap(CharSequence log, StringInterner interner) {
+
+    Preconditions.checkNotNull(interner, "interner should not be null");
 
-  private static boolean needsQuoting(String string) {
+    Map<String, String> parsed = new HashMap<>();
 
-    for (int i = 0; i < string.length(); i++) {
+    parse(log, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
 
-      char c = string.charAt(i);
+      String key = interner.intern(line, keyStart, keyEnd);
 
-      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || (c == '-' || c == '.'))) {
-        return true;
+      if ((flags & FieldVisitor.ESCAPED) == 0) {
+        parsed.put(key, interner.intern(line, valueStart, valueEnd));
+      } else {
+        parsed.put(key, unquote(line, valueStart, valueEnd));
       }
+      return true;
+    });
+    return parsed;
+  }
+
+  /**
+   * Materialize the key of a field reported to a {@link FieldVisitor}.
+   *
+   * @param log the log line.
+   * @param start the index of the first character of the key.
+   * @param end the index after the last character of the key.
+   * @return the key.
+   */
+  public static String key(CharSequence log, int start, int end) {
+    if (log instanceof Utf8Sequence) {
+      return ((Utf8Sequence) log).decode(start, end);
     }
-    return false;
+    return log.subSequence(start, end).toString();
   }
 
-  @CanIgnoreReturnValue
-  private static StringBuilder quote(StringBuilder builder, String string) {
-    if (string == null) {
-      return builder.append("null");
+  /**
+   * Materialize the value of a field reported to a {@link FieldVisitor}. The value is only unquoted
+   * if the {@link FieldVisitor#ESCAPED} flag is set.
+   *
+   * @param log the log line.
+   * @param start the index of the first character of the value.
+   * @param end the index after the last character of the value.
+   * @param flags the flags reported to the visitor.
+   * @return the value.
+   */
+  public static String value(CharSequence log, int start, int end, int flags) {
+    if ((flags & FieldVisitor.ESCAPED) == 0) {
+      return key(log, start, end);
     }
-    if (string.length() == 0) {
-      return builder.append("\"\"");
+    return unquote(log, start, end);
+  }
+
+  /**
+   * Check if a range of a log line is equal to a given string without materializing the range.
+   *
+   * @param log the log line.
+   * @param start the index of the first character of the range.
+   * @param end the index after the last character of the range.
+   * @param string the string to compare the range with.
+   * @return true iif the range and the string hold the same characters.
+   */
+  public static boolean regionMatches(CharSequence log, int start, int end, String string) {
+
+    Preconditions.checkNotNull(string, "string should not be null");
+
+    if (log instanceof Utf8Sequence) {
+      return ((Utf8Sequence) log).regionMatches(start, end, string);
     }
-    if (!needsQuoting(string)) {
-      return builder.append(string);
+    if (end - start != string.length()) {
+      return false;
     }
+    for (int i = start; i < end; i++) {
+      if (log.charAt(i) != string.charAt(i - start)) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-    builder.append('"');
-
-    for (int i = 0; i < string.length(); i++) {
+  private static int flags(boolean quoted, boolean escapes) {
+    return (quoted ? FieldVisitor.QUOTED : 0) | (escapes ? FieldVisitor.ESCAPED : 0);
+  }
 
-      char c = string.charAt(i);
+  private static boolean isChar(char b) {
+    return isChar(b, false, false);
+  }
 
-      switch (c) {
-        case '\t':
-          builder.append("\\t");
-          break;
-        case '\b':
-          builder.append("\\b");
-          break;
-        case '\n':
-          builder.append("\\n");
-          break;
-        case '\r':
-          builder.append("\\r");
-          break;
-        case '\f':
-          builder.append("\\f");
-          break;
-        case '\"':
-          builder.append("\\\"");
-          break;
-        case '\\':
-          builder.append("\\\\");
-          break;
-        case '=':
-          builder.append("\\=");
-          break;
-        default:
-          builder.append(c);
-      }
+  private static boolean isChar(char b, boolean quoted, boolean escaped) {
+    if (!quoted) {
+      return b > SEPARATOR && b != '=' && b != '"';
     }
-    return builder.append('"');
+    return b >= SEPARATOR && (b != '=' || escaped) && (b != '"' || escaped);
   }
 
-  @CanIgnoreReturnValue
-  private static String unquote(char[] string) {
-    if (string == null) {
+  private static String unquote(CharSequence string, int start, int end) {
+    if (start >= end) {
       return "";
     }
-    if (string.length == 0) {
-      return "";
+    if (string instanceof Utf8Sequence) {
+      return ((Utf8Sequence) string).unquote(start, end);
+    }
+
+    @Var int backslash = Delimiters.indexOfBackslash(string, start, end);
+
+    if (backslash < 0) {
+      return string.subSequence(start, end).toString(); // the string itself if the range spans it
     }
 
-    StringBuilder builder = new StringBuilder(string.length);
+    StringBuilder builder = new StringBuilder(end - start);
+    @Var int copied = start;
 
-    for (int i = 0; i < string.length; i++) {
+    while (backslash >= 0) {
 
-      char curr = string[i];
+      char next = backslash + 1 < end ? unescape(string.charAt(backslash + 1)) : 0;
 
-      if (curr != '\\' || i + 1 >= string.length) {
-        builder.append(curr);
+      if (next == 0) {
+
+        // Not an escape sequence : the backslash is kept as is
+        backslash = Delimiters.indexOfBackslash(string, backslash + 1, end);
       } else {
 
-        char next = string[++i];
+        builder.append(string, copied, backslash).append(next);
+        copied = backslash + 2;
+        backslash = Delimiters.indexOfBackslash(string, copied, end);
+      }
+    }
+    return builder.append(string, copied, end).toString();
+  }
 
-        switch (next) {
-          case 't':
-            builder.append('\t');
-            break;
-          case 'b':
-            builder.append('\b');
-            break;
-          case 'n':
-            builder.append('\n');
-            break;
-          case 'r':
-            builder.append('\r');
-            break;
-          case 'f':
-            builder.append('\f');
-            break;
-          case '\"':
-            builder.append('"');
-            break;
-          case '\\':
-            builder.append('\\');
-            break;
-          case '=':
-            builder.append('=');
-            break;
-          default:
-            i--;
-            builder.append(curr);
-        }
+  /**
+   * Unescape a range of UTF-8 bytes without decoding it. The bytes between two escape sequences
+   * are copied in bulk.
+   *
+   * @param string the bytes to unescape.
+   * @param start the index of the first byte.
+   * @param end the index after the last byte.
+   * @param backslash the index of the first backslash of the range.
+   * @param unquoted the destination buffer. Must be at least {@code end - start} bytes long.
+   * @return the number of bytes written to the destination buffer.
+   */
+  static int unquote(Utf8Sequence string, int start, int end, @Var int backslash, byte[] unquoted) {
+
+    @Var int length = 0;
+    @Var int copied = start;
+
+    while (backslash >= 0) {
+
+      char next = backslash + 1 < end ? unescape(string.charAt(backslash + 1)) : 0;
+
+      if (next == 0) {
+        backslash = string.indexOf((byte) '\\', backslash + 1, end);
+      } else {
+
+        string.getBytes(copied, backslash, unquoted, length);
+        length += backslash - copied;
+        unquoted[length++] = (byte) next;
+        copied = backslash + 2;
+        backslash = string.indexOf((byte) '\\', copied, end);
       }
     }
-    return builder.toString();
+
+    string.getBytes(copied, end, unquoted, length);
+    return length + end - copied;
+  }
+
+  /**
+   * Map the character following a backslash to the character it stands for.
+   *
+   * @param next the character following the backslash.
+   * @return the unescaped character or 0 if the backslash does not start an escape sequence.
+   */
+  private static char unescape(char next) {
+    switch (next) {
+      case 't':
+        return '\t';
+      case 'b':
+        return '\b';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case '\"':
+        return '"';
+      case '\\':
+        return '\\';
+      case '=':
+        return '=';
+      default:
+        return 0;
+    }
   }
 
   @CanIgnoreReturnValue
@@ -272,14 +607,53 @@ final public class LogFormatter {
 
   @CanIgnoreReturnValue
   public LogFormatter add(String key, Object value) {
-    if (!Strings.isNullOrEmpty(key)) {
-      if (key.toLowerCase().contains("password")) {
-        map_.put(key, "******");
-      } else {
-        map_.put(key, value == null ? "null" : value);
-      }
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return add(key, ((Number) value).longValue());
     }
-    return this;
+    if (value instanceof Double) {
+      return add(key, ((Double) value).doubleValue());
+    }
+    if (value instanceof Float) {
+      return add(key, ((Float) value).floatValue());
+    }
+    if (value instanceof Boolean) {
+      return add(key, ((Boolean) value).booleanValue());
+    }
+    return put(key, LogEncoder.OBJECT, 0, value == null ? "null" : value);
+  }
+
+  @CanIgnoreReturnValue
+  public LogFormatter add(String key, long value) {
+    return put(key, LogEncoder.LONG, value, null);
+  }
+
+  @CanIgnoreReturnValue
+  public LogFormatter add(String key, int value) {
+    return put(key, LogEncoder.LONG, value, null);
+  }
+
+  @CanIgnoreReturnValue
+  public LogFormatter add(String key, double value) {
+    return put(key, LogEncoder.DOUBLE, Double.doubleToRawLongBits(value), null);
+  }
+
+  @CanIgnoreReturnValue
+  public LogFormatter add(String key, float value) {
+    return put(key, LogEncoder.FLOAT, Float.floatToRawIntBits(value), null);
+  }
+
+  @CanIgnoreReturnValue
+  public LogFormatter add(String key, boolean value) {
+    return put(key, LogEncoder.BOOLEAN, value ? 1 : 0, null);
+  }
+
+  /**
+   * Without this overload, a {@code char} would be widened to an {@code int} and rendered as a
+   * number.
+   */
+  @CanIgnoreReturnValue
+  public LogFormatter add(String key, char value) {
+    return put(key, LogEncoder.OBJECT, 0, String.valueOf(value));
   }
 
   public String formatTrace() {
@@ -306,6 +680,73 @@ final public class LogFormatter {
     return format(eLogLevel.FATAL);
   }
 
+  /**
+   * Set the clock used to add the {@code timestamp} field in {@link #formatInfo()} and its
+   * siblings.
+   *
+   * @param clock the clock.
+   * @return this formatter.
+   */
+  @CanIgnoreReturnValue
+  public LogFormatter clock(LogClock clock) {
+    clock_ = Preconditions.checkNotNull(clock, "clock should not be null");
+    return this;
+  }
+
+  /**
+   * Set the renderer of the {@link Throwable} values e.g. to cap the number of frames rendered.
+   *
+   * @param throwables the renderer.
+   * @return this formatter.
+   */
+  @CanIgnoreReturnValue
+  public LogFormatter throwables(ThrowableRenderer throwables) {
+    throwables_ = Preconditions.checkNotNull(throwables, "throwables should not be null");
+    return this;
+  }
+
+  /**
+   * Attach shared fields, rendered once and for all, to each line formatted from now on. The fields
+   * are redacted with the policy of this formatter.
+   *
+   * @param context the shared fields.
+   * @return this formatter.
+   */
+  @CanIgnoreReturnValue
+  public LogFormatter context(LogContext context) {
+    context_ = Preconditions.checkNotNull(context, "context should not be null").redact(redactor_);
+    return this;
+  }
+
+  /**
+   * Set the redaction policy applied to the fields added from now on and to the fields of the
+   * context, if any.
+   *
+   * @param redactor the redaction policy.
+   * @return this formatter.
+   */
+  @CanIgnoreReturnValue
+  public LogFormatter redactor(LogRedactor redactor) {
+    redactor_ = Preconditions.checkNotNull(redactor, "redactor should not be null");
+    context_ = context_.redact(redactor);
+    return this;
+  }
+
+  /**
+   * Sample and rate limit the lines formatted from now on with {@link #tryFormat(eLogLevel)} and
+   * written with {@link AsyncLogSink#writeInfo(LogFormatter)} and its siblings. A suppressed line is
+   * not rendered : null is returned instead. {@link #format()}, {@link #formatInfo()} and its
+   * siblings never go through the rate limiter.
+   *
+   * @param rateLimiter the sampling and rate-limiting policy.
+   * @return this formatter.
+   */
+  @CanIgnoreReturnValue
+  public LogFormatter rateLimiter(LogRateLimiter rateLimiter) {
+    rateLimiter_ = Preconditions.checkNotNull(rateLimiter, "rateLimiter should not be null");
+    return this;
+  }
+
   @CanIgnoreReturnValue
   public LogFormatter message(String msg) {
     return add("msg", msg);
@@ -317,52 +758,470 @@ final public class LogFormatter {
   }
 
   public String format() {
+    return render(null, 0);
+  }
+
+  /**
+   * Append the log line to a {@link StringBuilder}. Unlike {@link #format()}, no intermediate
+   * {@link String} is created.
+   *
+   * @param builder the destination.
+   * @return the destination.
+   */
+  @CanIgnoreReturnValue
+  public StringBuilder format(StringBuilder builder) {
+
+    Preconditions.checkNotNull(builder, "builder should not be null");
+
+    LogEncoder encoder = LogEncoder.acquire();
+
+    try {
+      return builder.append(encode(encoder, null, 0));
+    } finally {
+      encoder.release();
+    }
+  }
+
+  /**
+   * Append the log line to an {@link Appendable} e.g. a {@link java.io.Writer}. Unlike
+   * {@link #format()}, no intermediate {@link String} is created.
+   *
+   * @param appendable the destination.
+   */
+  public void format(Appendable appendable) throws IOException {
+
+    Preconditions.checkNotNull(appendable, "appendable should not be null");
+
+    LogEncoder encoder = LogEncoder.acquire();
+
+    try {
+      encode(encoder, null, 0);
+      encoder.writeTo(appendable);
+    } finally {
+      encoder.release();
+    }
+  }
+
+  /**
+   * Write the UTF-8 encoded log line to a buffer. Unlike {@link #format()}, no intermediate
+   * {@link String} is created.
+   *
+   * @param buffer the destination.
+   * @return the destination.
+   * @throws java.nio.BufferOverflowException if the log line does not fit in the buffer. In this
+   *     case, nothing is written.
+   */
+  @CanIgnoreReturnValue
+  public ByteBuffer format(ByteBuffer buffer) {
+
+    Preconditions.checkNotNull(buffer, "buffer should not be null");
+
+    LogEncoder encoder = LogEncoder.acquire();
+
+    try {
+      encode(encoder, null, 0);
+      encoder.writeTo(buffer);
+      return buffer;
+    } finally {
+      encoder.release();
+    }
+  }
+
+  /**
+   * @param level the log level.
+   * @return the log line. Never null : the rate limiter, if any, is not consulted.
+   */
+  protected String format(eLogLevel level) {
+    return render(Preconditions.checkNotNull(level, "level should not be null"), 0);
+  }
+
+  /**
+   * Format a line through the rate limiter, if any. Unlike {@link #formatInfo()} and its siblings,
+   * which never return null and ignore the rate limiter, a line suppressed by the rate limiter is
+   * not rendered and null is returned instead. Its fields are dropped all the same.
+   *
+   * @param level the log level.
+   * @return the log line or null if it has been suppressed by the rate limiter.
+   */
+  public String tryFormat(eLogLevel level) {
+
+    long suppressed = admit(level);
+
+    return suppressed < 0 ? null : render(level, suppressed);
+  }
+
+  /**
+   * @param level the log level or null to render the fields as is.
+   * @param suppressed the number of lines suppressed by the rate limiter before this one.
+   * @return the log line.
+   */
+  private String render(eLogLevel level, long suppressed) {
+
+    LogEncoder encoder = LogEncoder.acquire();
+
+    try {
+      return encode(encoder, level, suppressed).toString();
+    } finally {
+      encoder.release();
+    }
+  }
+
+  /**
+   * Ask the rate limiter, if any, whether a line must be emitted. A suppressed line is not
+   * rendered but its fields are consumed, as {@link #discard()} does, so that they never leak into
+   * the next line.
+   *
+   * @param level the log level.
+   * @return -1 if the line must be suppressed, the number of lines of the same signature suppressed
+   *     since the previous emitted one otherwise. When positive, it must be rendered as the
+   *     {@code suppressed} field.
+   */
+  long admit(eLogLevel level) {
+
+    if (rateLimiter_ == null) {
+      return 0;
+    }
+
+    @Var long signature = mix(0, Preconditions.checkNotNull(level, "level should not be null").ordinal());
+
+    signature = mix(signature, hash("msg"));
+
+    for (String key : rateLimiter_.keys()) {
+      signature = mix(signature, hash(key));
+    }
+
+    long suppressed = rateLimiter_.acquire(signature);
+
+    if (suppressed < 0) {
+      discard();
+    }
+    return suppressed;
+  }
 
-    StringBuilder builder = new StringBuilder();
+  /**
+   * Drop the line being built without rendering it. A concurrent formatter gives up the snapshot
+   * {@link #stage(LogEncoder, eLogLevel, long)} would have taken, and nothing more : the fields
+   * added afterwards, by any thread, belong to the next line.
+   */
+  void discard() {
+    if (concurrent_ != null) {
+      concurrent_.set(Node.EMPTY);
+    } else {
+      clear();
+    }
+  }
 
-    map_.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEachOrdered(entry -> {
+  /**
+   * Remove all the fields of a single-threaded formatter without rendering them.
+   */
+  private void clear() {
+    for (int i = 0; i < fixed_; i++) {
+      types_[i] = LogEncoder.NONE;
+      values_[i] = null;
+    }
+    if (size_ > fixed_) {
+      Arrays.fill(keys_, fixed_, size_, null);
+      Arrays.fill(values_, fixed_, size_, null);
+      size_ = fixed_;
+    }
+    if (index_ != null) {
+      Arrays.fill(index_, 0);
+    }
+  }
 
-      String key = entry.getKey();
-      Object value = entry.getValue();
+  @CanIgnoreReturnValue
+  private LogFormatter put(String key, @Var byte type, @Var long bits, @Var Object value) {
 
-      if (builder.length() > 0) {
-        builder.append(' ');
+    if (Strings.isNullOrEmpty(key)) {
+      return this;
+    }
+    if (redactor_.isSensitiveKey(key) || (redactor_.checksValues() && redactor_.isSensitiveValue(
+        String.valueOf(type == LogEncoder.OBJECT ? value : LogEncoder.box(type, bits))))) {
+      value = redactor_.redact(type == LogEncoder.OBJECT ? value : LogEncoder.box(type, bits));
+      type = LogEncoder.OBJECT;
+      bits = 0;
+      if (LogMetrics.ENABLED) {
+        LogMetrics.increment(LogMetrics.eCounter.REDACTIONS);
       }
+    }
+    return store(key, type, bits, value);
+  }
 
-      builder.append(key).append('=');
+  /**
+   * Add a field as is, bypassing the redaction policy. Only meant for the fields added by the
+   * formatter itself e.g. an epoch timestamp that would otherwise look like a card number.
+   */
+  @CanIgnoreReturnValue
+  private LogFormatter store(String key, byte type, long bits, Object value) {
+    if (concurrent_ != null) {
 
-      if (value instanceof Instant) {
-        builder.append(((Instant) value).truncatedTo(ChronoUnit.SECONDS).toString());
-      } else if (value instanceof Date) {
-        Instant instant = ((Date) value).toInstant().truncatedTo(ChronoUnit.SECONDS);
-        builder.append(instant.toString());
-      } else {
+      @Var Node head;
+
+      do {
+        head = concurrent_.get();
+      } while (!concurrent_.compareAndSet(head, new Node(key, type, bits, value, head)));
+      return this;
+    }
+
+    @Var int field = indexOf(key);
+
+    if (field < 0) {
+
+      if (keys_ == null) {
+        keys_ = new String[INITIAL_CAPACITY];
+        values_ = new Object[INITIAL_CAPACITY];
+        bits_ = new long[INITIAL_CAPACITY];
+        types_ = new byte[INITIAL_CAPACITY];
+      } else if (size_ == keys_.length) {
+        keys_ = Arrays.copyOf(keys_, 2 * size_);
+        values_ = Arrays.copyOf(values_, 2 * size_);
+        bits_ = Arrays.copyOf(bits_, 2 * size_);
+        types_ = Arrays.copyOf(types_, 2 * size_);
+        index_ = null;
+      }
 
-        String string;
+      field = size_++;
+      keys_[field] = key;
 
-        if (value instanceof String) {
-          string = (String) value;
-        } else if (value instanceof Throwable) {
-          string = Throwables.getStackTraceAsString(Throwables.getRootCause((Throwable) value));
-        } else {
-          string = value.toString();
+      if (index_ != null) {
+        index(field);
+      } else if (size_ - fixed_ > INDEX_THRESHOLD) {
+        index_ = new int[Integer.highestOneBit(keys_.length) * 4];
+        for (int i = fixed_; i < size_; i++) {
+          index(i);
         }
+      }
+    }
 
-        quote(builder, string);
+    values_[field] = value;
+    bits_[field] = bits;
+    types_[field] = type;
+    return this;
+  }
+
+  private int indexOf(String key) {
+    if (schema_ != null) {
+
+      int slot = schema_.slot(key);
+
+      if (slot >= 0) {
+        return slot;
       }
-    });
+    }
+    if (index_ == null) {
+      for (int i = fixed_; i < size_; i++) {
+        if (keys_[i].equals(key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    int mask = index_.length - 1;
+
+    for (int slot = LogSchema.hash(key) & mask; ; slot = (slot + 1) & mask) {
 
-    map_.clear();
+      int field = index_[slot] - 1;
 
-    return builder.toString();
+      if (field < 0) {
+        return -1;
+      }
+      if (keys_[field].equals(key)) {
+        return field;
+      }
+    }
   }
 
-  protected String format(eLogLevel level) {
-    return this.add("timestamp", Instant.now().toString())
-        .add("level", Preconditions.checkNotNull(level, "level should not be null").toString()).format();
+  private void index(int field) {
+
+    int mask = index_.length - 1;
+    @Var int slot = LogSchema.hash(keys_[field]) & mask;
+
+    while (index_[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    index_[slot] = field + 1;
+  }
+
+  /**
+   * @return a hash of the value of a key or 0 if the formatter does not hold the key.
+   */
+  private long hash(String key) {
+
+    if (concurrent_ != null) {
+      for (Node node = concurrent_.get(); node != Node.EMPTY; node = node.next_) {
+        if (node.key_.equals(key)) {
+          return hash(node.type_, node.bits_, node.value_);
+        }
+      }
+      return 0;
+    }
+
+    int field = keys_ == null ? -1 : indexOf(key);
+
+    return field < 0 || types_[field] == LogEncoder.NONE ? 0 : hash(types_[field], bits_[field], values_[field]);
+  }
+
+  private static long hash(byte type, long bits, Object value) {
+    if (type != LogEncoder.OBJECT) {
+      return mix(type, bits);
+    }
+    if (value instanceof Throwable) {
+
+      // Do not render the exception, its class and message are enough
+      Throwable throwable = (Throwable) value;
+
+      return mix(throwable.getClass().getName().hashCode(), Objects.hashCode(throwable.getMessage()));
+    }
+    return value.toString().hashCode();
+  }
+
+  private static long mix(long hash, long value) {
+
+    long mixed = (hash + value + 1) * 0x9E3779B97F4A7C15L;
+
+    return mixed ^ (mixed >>> 29);
+  }
+
+  /**
+   * Stage the fields into an encoder, remove them from this formatter and render them.
+   *
+   * @param encoder the encoder.
+   * @param level the log level or null. If not null, the {@code timestamp} and {@code level}
+   *     fields are added to the rendered line.
+   * @param suppressed the number of lines suppressed by the rate limiter before this one. If
+   *     positive, the {@code suppressed} field is added to the rendered line.
+   * @return the encoder builder.
+   */
+  @CanIgnoreReturnValue
+  StringBuilder encode(LogEncoder encoder, eLogLevel level, long suppressed) {
+
+    if (!LogMetrics.ENABLED) {
+      return stage(encoder, level, suppressed);
+    }
+
+    long start = System.nanoTime();
+    StringBuilder line = stage(encoder, level, suppressed);
+
+    LogMetrics.record(LogMetrics.eTimer.FORMAT, System.nanoTime() - start);
+    LogMetrics.increment(LogMetrics.eCounter.FORMATTED_LINES);
+    LogMetrics.add(LogMetrics.eCounter.FORMATTED_CHARS, line.length());
+    LogMetrics.add(LogMetrics.eCounter.FORMATTED_FIELDS, encoder.size() + context_.size());
+    return line;
+  }
+
+  private StringBuilder stage(LogEncoder encoder, eLogLevel level, long suppressed) {
+
+    if (concurrent_ != null) {
+
+      @Var Node head = concurrent_.getAndSet(Node.EMPTY);
+
+      // Stamp the snapshot, not the shared list : another thread may be formatting another level
+      if (suppressed > 0) {
+        head = new Node("suppressed", LogEncoder.LONG, suppressed, null, head);
+      }
+      if (level != null) {
+        head = new Node("level", LogEncoder.OBJECT, 0, level.toString(),
+            new Node("timestamp", clock_.type(), clock_.tick(), null, head));
+      }
+
+      // The list is newest first : skip the keys already staged
+      Set<String> staged = head.size_ > INDEX_THRESHOLD ? new HashSet<>() : null;
+
+      for (Node node = head; node != Node.EMPTY; node = node.next_) {
+        if (staged != null ? staged.add(node.key_) : !head.contains(node.key_, node)) {
+          encoder.add(null, node.key_, node.type_, node.bits_, node.value_);
+        }
+      }
+      return encoder.encode(0, throwables_, context_);
+    }
+
+    if (suppressed > 0) {
+      store("suppressed", LogEncoder.LONG, suppressed, null);
+    }
+    if (level != null) {
+      store("timestamp", clock_.type(), clock_.tick(), null).store("level", LogEncoder.OBJECT, 0, level.toString());
+    }
+    for (int i = 0; i < fixed_; i++) {
+      if (types_[i] != LogEncoder.NONE) {
+        encoder.add(schema_.prefix(i), keys_[i], types_[i], bits_[i], values_[i]);
+      }
+    }
+
+    int sorted = encoder.size();
+
+    for (int i = fixed_; i < size_; i++) {
+      encoder.add(null, keys_[i], types_[i], bits_[i], values_[i]);
+    }
+
+    clear();
+    return encoder.encode(sorted, throwables_, context_);
+  }
+
+  /**
+   * A field of a concurrent formatter.
+   */
+  private static final class Node {
+
+    static final Node EMPTY = new Node(null, LogEncoder.NONE, 0, null, null);
+
+    final String key_;
+    final byte type_;
+    final long bits_;
+    final Object value_;
+    final Node next_;
+    final int size_;
+
+    Node(String key, byte type, long bits, Object value, Node next) {
+      key_ = key;
+      type_ = type;
+      bits_ = bits;
+      value_ = value;
+      next_ = next;
+      size_ = next == null ? 0 : next.size_ + 1;
+    }
+
+    /**
+     * @return true iif a node between this one (included) and {@code end} (excluded) holds the key.
+     */
+    boolean contains(String key, Node end) {
+      for (Node node = this; node != end; node = node.next_) {
+        if (node.key_.equals(key)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Count the fields reported to a visitor, for {@link LogMetrics}.
+   */
+  private static final class CountingVisitor implements FieldVisitor {
+
+    private final FieldVisitor visitor_;
+    private int fields_ = 0;
+    private int quoted_ = 0;
+    private int escaped_ = 0;
+
+    CountingVisitor(FieldVisitor visitor) {
+      visitor_ = visitor;
+    }
+
+    @Override
+    public boolean visit(CharSequence log, int keyStart, int keyEnd, int valueStart, int valueEnd, int flags) {
+      fields_++;
+      if ((flags & QUOTED) != 0) {
+        quoted_++;
+      }
+      if ((flags & ESCAPED) != 0) {
+        escaped_++;
+      }
+      return visitor_.visit(log, keyStart, keyEnd, valueStart, valueEnd, flags);
+    }
   }
 
-  enum eLogLevel {
+  public enum eLogLevel {
     TRACE, DEBUG, INFO, WARN, ERROR, FATAL
   }
 
@@ -0,0 +1,349 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the formatter and of the parser.
+ *
+ * Metrics are disabled unless the JVM is started with {@code -Dlogfmt.metrics=true}. The flag is a
+ * static final field : when it is false, the JIT compiler removes the instrumentation altogether
+ * and metrics cost nothing. When it is true, counters are {@link LongAdder} instances, which do not
+ * contend across threads, and each formatted or parsed line is timed with two calls to
+ * {@link System#nanoTime()}.
+ *
+ * Metrics are global to the JVM. They can be read with {@link #counters()} and
+ * {@link #histogram(eTimer)}, or exposed through JMX with {@link #registerMBean()}.
+ */
+@CheckReturnValue
+final public class LogMetrics {
+
+  static final boolean ENABLED = Boolean.getBoolean("logfmt.metrics");
+
+  private static final String OBJECT_NAME = "com.computablefacts.logfmt:type=LogMetrics";
+  private static final LongAdder[] COUNTERS = new LongAdder[eCounter.values().length];
+  private static final Histogram[] HISTOGRAMS = new Histogram[eTimer.values().length];
+
+  static {
+    for (int i = 0; i < COUNTERS.length; i++) {
+      COUNTERS[i] = new LongAdder();
+    }
+    for (int i = 0; i < HISTOGRAMS.length; i++) {
+      HISTOGRAMS[i] = new Histogram();
+    }
+  }
+
+  private LogMetrics() {
+  }
+
+  /**
+   * @return true iif the JVM has been started with {@code -Dlogfmt.metrics=true}.
+   */
+  public static boolean isEnabled() {
+    return ENABLED;
+  }
+
+  /**
+   * @param counter a counter.
+   * @return the current value of the counter.
+   */
+  public static long get(eCounter counter) {
+    return COUNTERS[counter.ordinal()].sum();
+  }
+
+  /**
+   * @return the current value of each counter, by name.
+   */
+  public static Map<String, Long> counters() {
+
+    Map<String, Long> counters = new LinkedHashMap<>();
+
+    for (eCounter counter : eCounter.values()) {
+      counters.put(counter.name_, get(counter));
+    }
+    return counters;
+  }
+
+  /**
+   * @param timer a timer.
+   * @return the latency histogram of the timer.
+   */
+  public static Histogram histogram(eTimer timer) {
+    return HISTOGRAMS[timer.ordinal()];
+  }
+
+  /**
+   * Register the metrics with the platform MBean server, under the name
+   * {@code com.computablefacts.logfmt:type=LogMetrics}. Each counter is an attribute. Each timer
+   * is exposed as 4 attributes : its count, its 50th and 99th percentiles and its maximum, in
+   * nanoseconds.
+   *
+   * @throws JMException if the metrics cannot be registered e.g. if they are already registered.
+   */
+  public static void registerMBean() throws JMException {
+    ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+  }
+
+  /**
+   * Reset all the counters and all the histograms.
+   */
+  public static void reset() {
+    for (LongAdder counter : COUNTERS) {
+      counter.reset();
+    }
+    for (Histogram histogram : HISTOGRAMS) {
+      histogram.reset();
+    }
+  }
+
+  static void increment(eCounter counter) {
+    COUNTERS[counter.ordinal()].increment();
+  }
+
+  static void add(eCounter counter, long value) {
+    COUNTERS[counter.ordinal()].add(value);
+  }
+
+  static void record(eTimer timer, long nanos) {
+    HISTOGRAMS[timer.ordinal()].record(nanos);
+  }
+
+  public enum eCounter {
+    FORMATTED_LINES("formatted.lines"),
+    FORMATTED_CHARS("formatted.chars"),
+    FORMATTED_FIELDS("formatted.fields"),
+    PARSED_LINES("parsed.lines"),
+    PARSED_CHARS("parsed.chars"),
+    PARSED_BYTES("parsed.bytes"),
+    PARSED_FIELDS("parsed.fields"),
+    QUOTED_VALUES("parsed.values.quoted"),
+    ESCAPED_VALUES("parsed.values.escaped"),
+    BARE_LINES("parsed.anomalies.bare_lines"),
+    TRUNCATED_VALUES("parsed.anomalies.truncated_values"),
+    THROWABLES("throwables.rendered"),
+    THROWABLES_CACHED("throwables.cached"),
+    REDACTIONS("redactions"),
+    SUPPRESSED_LINES("suppressed.lines");
+
+    private final String name_;
+
+    eCounter(String name) {
+      name_ = name;
+    }
+
+    /**
+     * @return the name of the counter e.g. {@code formatted.lines}. {@code *.chars} counters count
+     *     UTF-16 code units and {@code *.bytes} counters count bytes : a line parsed from a
+     *     {@link String} adds to {@code parsed.chars}, a UTF-8 encoded one to {@code parsed.bytes}.
+     */
+    public String metricName() {
+      return name_;
+    }
+  }
+
+  public enum eTimer {
+    FORMAT("format.nanos"), PARSE("parse.nanos");
+
+    private final String name_;
+
+    eTimer(String name) {
+      name_ = name;
+    }
+
+    public String metricName() {
+      return name_;
+    }
+  }
+
+  /**
+   * A latency histogram with fixed, exponential buckets : bucket {@code i} counts the values in
+   * [2^i, 2^(i+1)) nanoseconds and bucket 0 also counts 0. Recording a value is a couple of
+   * {@link LongAdder} updates.
+   */
+  final public static class Histogram {
+
+    private static final int NB_BUCKETS = 64;
+
+    private final LongAdder[] buckets_ = new LongAdder[NB_BUCKETS];
+    private final LongAccumulator max_ = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+      for (int i = 0; i < NB_BUCKETS; i++) {
+        buckets_[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * @return the number of recorded values.
+     */
+    public long count() {
+
+      @Var long count = 0;
+
+      for (LongAdder bucket : buckets_) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    /**
+     * @return the largest recorded value.
+     */
+    public long max() {
+      return max_.get();
+    }
+
+    /**
+     * @param bucket a bucket in [0, 64).
+     * @return the number of values recorded in the bucket.
+     */
+    public long bucket(int bucket) {
+
+      Preconditions.checkElementIndex(bucket, NB_BUCKETS, "bucket");
+
+      return buckets_[bucket].sum();
+    }
+
+    /**
+     * @param percentile a percentile in [0, 100].
+     * @return an upper bound of the percentile i.e. the upper bound of the bucket holding it, or 0
+     *     if no value has been recorded.
+     */
+    public long percentile(double percentile) {
+
+      Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be in [0, 100]");
+
+      long[] counts = new long[NB_BUCKETS];
+      @Var long total = 0;
+
+      for (int i = 0; i < NB_BUCKETS; i++) {
+        counts[i] = buckets_[i].sum();
+        total += counts[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+
+      long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+      @Var long seen = 0;
+
+      for (int i = 0; i < NB_BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return i == NB_BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    void record(long nanos) {
+
+      long value = Math.max(0, nanos);
+
+      buckets_[value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value)].increment();
+      max_.accumulate(value);
+    }
+
+    void reset() {
+      for (LongAdder bucket : buckets_) {
+        bucket.reset();
+      }
+      max_.reset();
+    }
+  }
+
+  /**
+   * The JMX view of the metrics. Attributes are read-only and computed on each read.
+   */
+  private static final class MBean implements DynamicMBean {
+
+    private final Map<String, LongSupplier> attributes_ = new LinkedHashMap<>();
+
+    MBean() {
+      for (eCounter counter : eCounter.values()) {
+        attributes_.put(counter.name_, () -> get(counter));
+      }
+      for (eTimer timer : eTimer.values()) {
+
+        Histogram histogram = histogram(timer);
+
+        attributes_.put(timer.name_ + ".count", histogram::count);
+        attributes_.put(timer.name_ + ".p50", () -> histogram.percentile(50));
+        attributes_.put(timer.name_ + ".p99", () -> histogram.percentile(99));
+        attributes_.put(timer.name_ + ".max", histogram::max);
+      }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+
+      LongSupplier supplier = attributes_.get(attribute);
+
+      if (supplier == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return supplier.getAsLong();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("read-only attribute " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+
+      AttributeList list = new AttributeList();
+
+      for (String attribute : attributes) {
+
+        LongSupplier supplier = attributes_.get(attribute);
+
+        if (supplier != null) {
+          list.add(new Attribute(attribute, supplier.getAsLong()));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+
+      for (String name : attributes_.keySet()) {
+        attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+      }
+      return new MBeanInfo(LogMetrics.class.getName(), "logfmt formatter and parser metrics",
+          attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+  }
+}
@@ -0,0 +1,643 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A filter over log lines, compiled from an expression such as
+ * {@code level=ERROR and latency_ms>500}.
+ *
+ * The grammar is :
+ *
+ * <pre>
+ * expression := term ('or' term)*
+ * term       := factor ('and' factor)*
+ * factor     := 'not' factor | '(' expression ')' | key [operator value]
+ * operator   := '=' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=' | '~'
+ * </pre>
+ *
+ * A key alone matches the lines holding the key. {@code =} and {@code !=} compare strings,
+ * {@code <}, {@code <=}, {@code >} and {@code >=} compare numbers and {@code ~} looks for a regular
+ * expression in the value. Values are either bare words or double-quoted strings in which a
+ * backslash escapes the next character. Keywords are case-insensitive. A comparison over a key the
+ * line does not hold is false, whatever the operator. When a key appears several times in a line,
+ * its first value is used, as with {@link LogFormatter#parse(String, KeyMatcher)}.
+ *
+ * The comparisons are pushed down into the parser : each value is tested in place as soon as its
+ * field is scanned and the line is rejected as soon as a comparison the whole expression depends
+ * on fails e.g. {@code level=ERROR} above. No map is built for rejected lines.
+ *
+ * {@link #scan(List, boolean, boolean)} fans out the matching across files and newline-aligned
+ * chunks of files. Parallel streams run on the work-stealing common
+ * {@link java.util.concurrent.ForkJoinPool}, or on the pool the terminal operation is submitted to.
+ *
+ * A query is immutable, thread-safe and is meant to be shared.
+ */
+@CheckReturnValue
+final public class LogQuery {
+
+  private static final byte MISSING = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+
+  private final String expression_;
+  private final Node root_;
+  private final Leaf[] leaves_;
+  private final KeyMatcher keys_;
+
+  // For each key slot, the comparisons over the key. For each comparison, 1 if the expression
+  // cannot match unless it is true, -1 unless it is false and 0 otherwise.
+  private final int[][] comparisons_;
+  private final int[] requirements_;
+  private final KeyMatcher projection_;
+  private final ThreadLocal<Scan> scans_ = ThreadLocal.withInitial(Scan::new);
+
+  private LogQuery(String expression, Node root, Leaf[] leaves, KeyMatcher projection) {
+
+    Set<String> keys = new LinkedHashSet<>();
+
+    for (Leaf leaf : leaves) {
+      keys.add(leaf.key_);
+    }
+
+    expression_ = expression;
+    root_ = root;
+    leaves_ = leaves;
+    keys_ = KeyMatcher.of(keys);
+    comparisons_ = new int[keys_.size()][];
+    requirements_ = new int[leaves.length];
+    projection_ = projection;
+
+    for (int slot = 0; slot < comparisons_.length; slot++) {
+
+      @Var int nbComparisons = 0;
+      int[] comparisons = new int[leaves.length];
+
+      for (Leaf leaf : leaves) {
+        if (leaf.key_.equals(keys_.key(slot))) {
+          comparisons[nbComparisons++] = leaf.index_;
+        }
+      }
+      comparisons_[slot] = Arrays.copyOf(comparisons, nbComparisons);
+    }
+
+    require(root, 1);
+  }
+
+  /**
+   * @param expression a filter expression.
+   * @return the compiled query.
+   * @throws IllegalArgumentException if the expression is malformed.
+   */
+  public static LogQuery compile(String expression) {
+
+    Preconditions.checkNotNull(expression, "expression should not be null");
+
+    Parser parser = new Parser(expression);
+    Node root = parser.parse();
+
+    return new LogQuery(expression, root, parser.leaves_.toArray(new Leaf[0]), null);
+  }
+
+  /**
+   * @param keys the keys to extract from the matching lines.
+   * @return a query matching the same lines but extracting only some of their keys.
+   */
+  public LogQuery select(String... keys) {
+    return new LogQuery(expression_, root_, leaves_, KeyMatcher.of(keys));
+  }
+
+  /**
+   * @param log a log line.
+   * @return true iif the line matches the query.
+   */
+  public boolean matches(String log) {
+
+    Preconditions.checkNotNull(log, "log should not be null");
+
+    return matches((CharSequence) log);
+  }
+
+  /**
+   * Match a UTF-8 encoded log line without decoding it.
+   *
+   * @param log the buffer holding the log line.
+   * @param offset the index of the first byte of the log line.
+   * @param length the length of the log line in bytes.
+   * @return true iif the line matches the query.
+   */
+  public boolean matches(byte[] log, int offset, int length) {
+    return matches(new Utf8Sequence(log, offset, length));
+  }
+
+  /**
+   * Scan several files and parse the lines matching the query. When the query has a projection,
+   * only the selected keys are extracted.
+   *
+   * @param readers the files.
+   * @param parallel true iif the files and their chunks should be scanned concurrently.
+   * @param ordered true iif the records must be reported in the order of the files.
+   * @return the matching lines.
+   */
+  public Stream<Map<String, String>> scan(List<MappedLogReader> readers, boolean parallel, boolean ordered) {
+
+    Preconditions.checkNotNull(readers, "readers should not be null");
+
+    Function<CharSequence, Map<String, String>> mapper = line -> {
+      if (!matches(line)) {
+        return null;
+      }
+      return projection_ == null ? LogFormatter.toMap(line) : LogFormatter.toMap(line, projection_);
+    };
+
+    List<Spliterator<Map<String, String>>> files = new ArrayList<>(readers.size());
+
+    for (MappedLogReader reader : readers) {
+      files.add(Preconditions.checkNotNull(reader, "reader should not be null").spliterator(mapper, ordered));
+    }
+    return StreamSupport.stream(new Files<>(files, ordered, 0, files.size()), parallel);
+  }
+
+  /**
+   * @return the expression the query has been compiled from.
+   */
+  @Override
+  public String toString() {
+    return expression_;
+  }
+
+  boolean matches(CharSequence log) {
+
+    Scan scan = scans_.get();
+
+    scan.reset();
+    LogFormatter.parse(log, scan);
+    return !scan.rejected_ && root_.evaluate(scan.states_);
+  }
+
+  /**
+   * Find the comparisons the expression cannot match without, following De Morgan's laws.
+   *
+   * @param node a node.
+   * @param polarity 1 if the expression requires the node to be true, -1 if it requires the node to
+   *     be false.
+   */
+  private void require(Node node, int polarity) {
+    if (node instanceof Leaf) {
+      requirements_[((Leaf) node).index_] = polarity;
+    } else if (node instanceof Not) {
+      require(((Not) node).node_, -polarity);
+    } else if (((Junction) node).and_ == (polarity > 0)) {
+      for (Node child : ((Junction) node).nodes_) {
+        require(child, polarity);
+      }
+    }
+  }
+
+  private enum eOperator {
+    EXISTS, EQ, NE, LT, LE, GT, GE, MATCH
+  }
+
+  private abstract static class Node {
+
+    /**
+     * @param states the state of each comparison : {@link #MISSING}, {@link #TRUE} or
+     *     {@link #FALSE}.
+     * @return the value of the node.
+     */
+    abstract boolean evaluate(byte[] states);
+  }
+
+  private static final class Junction extends Node {
+
+    final boolean and_;
+    final Node[] nodes_;
+
+    Junction(boolean and, List<Node> nodes) {
+      and_ = and;
+      nodes_ = nodes.toArray(new Node[0]);
+    }
+
+    @Override
+    boolean evaluate(byte[] states) {
+      for (Node node : nodes_) {
+        if (node.evaluate(states) != and_) {
+          return !and_;
+        }
+      }
+      return and_;
+    }
+  }
+
+  private static final class Not extends Node {
+
+    final Node node_;
+
+    Not(Node node) {
+      node_ = node;
+    }
+
+    @Override
+    boolean evaluate(byte[] states) {
+      return !node_.evaluate(states);
+    }
+  }
+
+  private static final class Leaf extends Node {
+
+    final int index_;
+    final String key_;
+    final eOperator operator_;
+    final String value_;
+    final double number_;
+    final Pattern pattern_;
+
+    Leaf(int index, String key, eOperator operator, String value) {
+      index_ = index;
+      key_ = key;
+      operator_ = operator;
+      value_ = value;
+      number_ = operator == eOperator.LT || operator == eOperator.LE || operator == eOperator.GT
+          || operator == eOperator.GE ? number(value) : Double.NaN;
+      pattern_ = operator == eOperator.MATCH ? Pattern.compile(value) : null;
+    }
+
+    private static double number(String value) {
+      try {
+        return Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("number expected : " + value, e);
+      }
+    }
+
+    @Override
+    boolean evaluate(byte[] states) {
+      return states[index_] == TRUE;
+    }
+
+    boolean test(CharSequence log, int start, int end, int flags) {
+      switch (operator_) {
+        case EXISTS:
+          return true;
+        case EQ:
+          return equals(log, start, end, flags);
+        case NE:
+          return !equals(log, start, end, flags);
+        case MATCH:
+          return pattern_.matcher(LogFormatter.value(log, start, end, flags)).find();
+        default:
+          break;
+      }
+
+      double number;
+
+      try {
+        number = LogRecord.decodeDouble(log, start, end, flags);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      switch (operator_) {
+        case LT:
+          return number < number_;
+        case LE:
+          return number <= number_;
+        case GT:
+          return number > number_;
+        default:
+          return number >= number_;
+      }
+    }
+
+    private boolean equals(CharSequence log, int start, int end, int flags) {
+      if ((flags & FieldVisitor.ESCAPED) == 0) {
+        return LogFormatter.regionMatches(log, start, end, value_);
+      }
+      return value_.equals(LogFormatter.value(log, start, end, flags));
+    }
+  }
+
+  /**
+   * The state of the line being matched by a thread.
+   */
+  private final class Scan implements FieldVisitor {
+
+    final byte[] states_ = new byte[leaves_.length];
+    final boolean[] seen_ = new boolean[keys_.size()];
+    int nbSeen_;
+    boolean rejected_;
+
+    void reset() {
+      Arrays.fill(states_, MISSING);
+      Arrays.fill(seen_, false);
+      nbSeen_ = 0;
+      rejected_ = false;
+    }
+
+    @Override
+    public boolean visit(CharSequence log, int keyStart, int keyEnd, int valueStart, int valueEnd, int flags) {
+
+      int slot = keys_.slot(log, keyStart, keyEnd);
+
+      if (slot < 0 || seen_[slot]) {
+        return true;
+      }
+
+      seen_[slot] = true;
+      nbSeen_++;
+
+      for (int comparison : comparisons_[slot]) {
+
+        boolean result = leaves_[comparison].test(log, valueStart, valueEnd, flags);
+
+        states_[comparison] = result ? TRUE : FALSE;
+
+        if (requirements_[comparison] != 0 && result != (requirements_[comparison] > 0)) {
+          rejected_ = true;
+          return false;
+        }
+      }
+      return nbSeen_ < seen_.length;
+    }
+  }
+
+  /**
+   * A recursive descent parser of filter expressions.
+   */
+  private static final class Parser {
+
+    final String expression_;
+    final List<Leaf> leaves_ = new ArrayList<>();
+    int position_ = 0;
+
+    Parser(String expression) {
+      expression_ = expression;
+    }
+
+    Node parse() {
+
+      Node node = disjunction();
+
+      skipWhitespaces();
+
+      if (position_ < expression_.length()) {
+        throw error("unexpected character '" + expression_.charAt(position_) + "'");
+      }
+      return node;
+    }
+
+    private Node disjunction() {
+
+      List<Node> nodes = new ArrayList<>();
+
+      nodes.add(conjunction());
+
+      while (keyword("or")) {
+        nodes.add(conjunction());
+      }
+      return nodes.size() == 1 ? nodes.get(0) : new Junction(false, nodes);
+    }
+
+    private Node conjunction() {
+
+      List<Node> nodes = new ArrayList<>();
+
+      nodes.add(factor());
+
+      while (keyword("and")) {
+        nodes.add(factor());
+      }
+      return nodes.size() == 1 ? nodes.get(0) : new Junction(true, nodes);
+    }
+
+    private Node factor() {
+
+      if (keyword("not")) {
+        return new Not(factor());
+      }
+
+      skipWhitespaces();
+
+      if (position_ < expression_.length() && expression_.charAt(position_) == '(') {
+
+        position_++;
+
+        Node node = disjunction();
+
+        skipWhitespaces();
+
+        if (position_ >= expression_.length() || expression_.charAt(position_) != ')') {
+          throw error("')' expected");
+        }
+
+        position_++;
+        return node;
+      }
+
+      String key = word();
+
+      if (key.isEmpty()) {
+        throw error("key expected");
+      }
+
+      skipWhitespaces();
+
+      eOperator operator = operator();
+
+      if (operator == eOperator.EXISTS) {
+        return leaf(key, operator, null);
+      }
+
+      skipWhitespaces();
+
+      if (position_ < expression_.length() && expression_.charAt(position_) == '"') {
+        return leaf(key, operator, quoted());
+      }
+
+      String value = word();
+
+      if (value.isEmpty()) {
+        throw error("value expected");
+      }
+      return leaf(key, operator, value);
+    }
+
+    private Leaf leaf(String key, eOperator operator, String value) {
+
+      Leaf leaf = new Leaf(leaves_.size(), key, operator, value);
+
+      leaves_.add(leaf);
+      return leaf;
+    }
+
+    private eOperator operator() {
+
+      if (position_ >= expression_.length()) {
+        return eOperator.EXISTS;
+      }
+
+      char c = expression_.charAt(position_);
+      boolean equal = position_ + 1 < expression_.length() && expression_.charAt(position_ + 1) == '=';
+
+      switch (c) {
+        case '=':
+          position_++;
+          return eOperator.EQ;
+        case '~':
+          position_++;
+          return eOperator.MATCH;
+        case '!':
+          if (!equal) {
+            throw error("'=' expected");
+          }
+          position_ += 2;
+          return eOperator.NE;
+        case '<':
+          position_ += equal ? 2 : 1;
+          return equal ? eOperator.LE : eOperator.LT;
+        case '>':
+          position_ += equal ? 2 : 1;
+          return equal ? eOperator.GE : eOperator.GT;
+        default:
+          return eOperator.EXISTS;
+      }
+    }
+
+    private String word() {
+
+      int start = position_;
+
+      while (position_ < expression_.length() && !isDelimiter(expression_.charAt(position_))) {
+        position_++;
+      }
+      return expression_.substring(start, position_);
+    }
+
+    private String quoted() {
+
+      StringBuilder builder = new StringBuilder();
+
+      position_++;
+
+      while (position_ < expression_.length()) {
+
+        char c = expression_.charAt(position_++);
+
+        if (c == '"') {
+          return builder.toString();
+        }
+        if (c == '\\' && position_ < expression_.length()) {
+          builder.append(expression_.charAt(position_++));
+        } else {
+          builder.append(c);
+        }
+      }
+      throw error("unterminated string");
+    }
+
+    private boolean keyword(String keyword) {
+
+      skipWhitespaces();
+
+      int end = position_ + keyword.length();
+
+      if (!expression_.regionMatches(true, position_, keyword, 0, keyword.length())) {
+        return false;
+      }
+      if (end < expression_.length() && !Character.isWhitespace(expression_.charAt(end))
+          && expression_.charAt(end) != '(') {
+        return false;
+      }
+
+      position_ = end;
+      return true;
+    }
+
+    private void skipWhitespaces() {
+      while (position_ < expression_.length() && Character.isWhitespace(expression_.charAt(position_))) {
+        position_++;
+      }
+    }
+
+    private boolean isDelimiter(char c) {
+      return Character.isWhitespace(c) || c == '=' || c == '!' || c == '<' || c == '>' || c == '~' || c == '('
+          || c == ')' || c == '"';
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at offset " + position_ + " : " + expression_);
+    }
+  }
+
+  /**
+   * The concatenation of the lines of several files. Splitting gives away half of the remaining
+   * files, then chunks of the last file.
+   */
+  private static final class Files<T> implements Spliterator<T> {
+
+    private final List<Spliterator<T>> files_;
+    private final boolean ordered_;
+    private final int to_;
+    private int from_;
+
+    Files(List<Spliterator<T>> files, boolean ordered, int from, int to) {
+      files_ = files;
+      ordered_ = ordered;
+      from_ = from;
+      to_ = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      while (from_ < to_) {
+        if (files_.get(from_).tryAdvance(action)) {
+          return true;
+        }
+        from_++;
+      }
+      return false;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+
+      if (to_ - from_ > 1) {
+
+        int middle = (from_ + to_) >>> 1;
+        Files<T> prefix = new Files<>(files_, ordered_, from_, middle);
+
+        from_ = middle;
+        return prefix;
+      }
+      return from_ < to_ ? files_.get(from_).trySplit() : null;
+    }
+
+    @Override
+    public long estimateSize() {
+
+      @Var long size = 0;
+
+      for (int i = from_; i < to_; i++) {
+        size += files_.get(i).estimateSize();
+      }
+      return size;
+    }
+
+    @Override
+    public int characteristics() {
+      return (ordered_ ? ORDERED : 0) | NONNULL | IMMUTABLE;
+    }
+  }
+}
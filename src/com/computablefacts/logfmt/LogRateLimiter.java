@@ -0,0 +1,312 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A sampling and rate-limiting policy applied by {@link LogFormatter} to the lines formatted with
+ * {@link LogFormatter#tryFormat(LogFormatter.eLogLevel)}, and written with
+ * {@link AsyncLogSink#writeInfo(LogFormatter)} and its siblings.
+ *
+ * Lines are grouped by signature : their level, their {@code msg} field and the values of a chosen
+ * subset of keys. The signature is a hash of these values, computed from the fields held by the
+ * formatter : the decision is taken before the line is stamped, sorted, quoted or rendered, so a
+ * suppressed line costs a few hash lookups. Two signatures whose hashes collide share their quota.
+ *
+ * Each signature is first sampled (one line out of n is kept) then goes through a token bucket
+ * refilled at a fixed rate. The bucket is a single {@link AtomicLong} updated with a CAS (the
+ * generic cell rate algorithm) : threads never block. Buckets are kept in a bounded table : when
+ * the table is full, the least recently used signature of a small neighbourhood is evicted and
+ * starts over with a full bucket.
+ *
+ * The first line emitted after some lines of the same signature have been suppressed carries a
+ * {@code suppressed} field with their number. When a signature is throttled for longer than the
+ * summary interval, one of its lines is emitted anyway, as a summary, so that a flood never goes
+ * unnoticed.
+ *
+ * A policy is thread-safe and is meant to be shared.
+ */
+@CheckReturnValue
+final public class LogRateLimiter {
+
+  private static final int PROBES = 4;
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  private final String[] keys_;
+  private final long interval_;
+  private final long tolerance_;
+  private final int sampling_;
+  private final long summaryInterval_;
+  private final Ticker ticker_;
+  private final int mask_;
+  private final AtomicReferenceArray<Signature> signatures_;
+  private final LongAdder suppressed_ = new LongAdder();
+
+  private LogRateLimiter(Builder builder) {
+
+    int capacity = Integer.highestOneBit(Math.max(PROBES, builder.maxSignatures_ - 1)) << 1;
+
+    keys_ = builder.keys_.toArray(new String[0]);
+    interval_ = Double.isInfinite(builder.rate_) ? 0
+        : Math.max(1, Math.round(NANOS_PER_SECOND / builder.rate_));
+    tolerance_ = interval_ * (builder.burst_ > 0 ? builder.burst_ - 1
+        : Math.max(0, (long) Math.ceil(builder.rate_) - 1));
+    sampling_ = builder.sampling_;
+    summaryInterval_ = builder.summaryInterval_.toNanos();
+    ticker_ = builder.ticker_;
+    mask_ = capacity - 1;
+    signatures_ = new AtomicReferenceArray<>(capacity);
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @return the number of lines suppressed so far.
+   */
+  public long suppressed() {
+    return suppressed_.sum();
+  }
+
+  /**
+   * @return the keys whose values are part of the signature, besides the level and {@code msg}.
+   */
+  String[] keys() {
+    return keys_;
+  }
+
+  /**
+   * Decide whether a line must be emitted.
+   *
+   * @param signature the hash of the line signature.
+   * @return -1 if the line must be suppressed, otherwise the number of lines of the same signature
+   *     suppressed since the last emitted one.
+   */
+  long acquire(long signature) {
+
+    long now = ticker_.read();
+    Signature bucket = lookup(signature, now);
+
+    if (!bucket.sample(sampling_) || !bucket.consume(now, interval_, tolerance_)) {
+
+      long last = bucket.emitted_.get();
+
+      // Throttled for too long : emit this line as a summary
+      if (now - last < summaryInterval_ || !bucket.emitted_.compareAndSet(last, now)) {
+        bucket.suppressed_.incrementAndGet();
+        suppressed_.increment();
+        if (LogMetrics.ENABLED) {
+          LogMetrics.increment(LogMetrics.eCounter.SUPPRESSED_LINES);
+        }
+        return -1;
+      }
+    } else {
+      bucket.emitted_.lazySet(now);
+    }
+    return bucket.suppressed_.getAndSet(0);
+  }
+
+  private Signature lookup(long signature, long now) {
+
+    int slot = (int) (signature ^ (signature >>> 32)) & mask_;
+
+    while (true) {
+
+      @Var int victim = slot;
+      @Var Signature oldest = null;
+
+      for (int i = 0; i < PROBES; i++) {
+
+        int probe = (slot + i) & mask_;
+        Signature bucket = signatures_.get(probe);
+
+        if (bucket == null) {
+          victim = probe;
+          oldest = null;
+          break;
+        }
+        if (bucket.hash_ == signature) {
+          bucket.seen_ = now;
+          return bucket;
+        }
+        if (oldest == null || bucket.seen_ < oldest.seen_) {
+          victim = probe;
+          oldest = bucket;
+        }
+      }
+
+      Signature bucket = new Signature(signature, now);
+
+      if (signatures_.compareAndSet(victim, oldest, bucket)) {
+        return bucket;
+      }
+    }
+  }
+
+  /**
+   * The state of a signature.
+   */
+  private static final class Signature {
+
+    final long hash_;
+
+    // The theoretical arrival time of the next line : the bucket is empty when it is more than
+    // tolerance_ nanoseconds ahead of now
+    final AtomicLong arrival_;
+    final AtomicLong sampler_ = new AtomicLong();
+    final AtomicLong suppressed_ = new AtomicLong();
+    final AtomicLong emitted_;
+    volatile long seen_;
+
+    Signature(long hash, long now) {
+      hash_ = hash;
+      arrival_ = new AtomicLong(now);
+      emitted_ = new AtomicLong(now);
+      seen_ = now;
+    }
+
+    boolean sample(int sampling) {
+      return sampling == 1 || sampler_.getAndIncrement() % sampling == 0;
+    }
+
+    boolean consume(long now, long interval, long tolerance) {
+
+      if (interval == 0) {
+        return true;
+      }
+      while (true) {
+
+        long arrival = arrival_.get();
+        long next = Math.max(arrival, now);
+
+        if (next - now > tolerance) {
+          return false;
+        }
+        if (arrival_.compareAndSet(arrival, next + interval)) {
+          return true;
+        }
+      }
+    }
+  }
+
+  final public static class Builder {
+
+    private final Set<String> keys_ = new LinkedHashSet<>();
+    private double rate_ = Double.POSITIVE_INFINITY;
+    private int burst_ = 0;
+    private int sampling_ = 1;
+    private int maxSignatures_ = 1024;
+    private Duration summaryInterval_ = Duration.ofSeconds(10);
+    private Ticker ticker_ = Ticker.systemTicker();
+
+    private Builder() {
+    }
+
+    /**
+     * @param key a key whose value is part of the signature, besides the level and {@code msg}.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder key(String key) {
+
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(key), "key should neither be null nor empty");
+
+      keys_.add(key);
+      return this;
+    }
+
+    /**
+     * @param permitsPerSecond the number of lines per second emitted for each signature. Unlimited
+     *     by default.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder rate(double permitsPerSecond) {
+
+      Preconditions.checkArgument(permitsPerSecond > 0, "permitsPerSecond must be > 0");
+
+      rate_ = permitsPerSecond;
+      return this;
+    }
+
+    /**
+     * @param burst the number of lines of a signature that can be emitted at once. Defaults to one
+     *     second worth of lines.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder burst(int burst) {
+
+      Preconditions.checkArgument(burst > 0, "burst must be > 0");
+
+      burst_ = burst;
+      return this;
+    }
+
+    /**
+     * @param n keep one line out of n for each signature, before rate limiting.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder sample(int n) {
+
+      Preconditions.checkArgument(n > 0, "n must be > 0");
+
+      sampling_ = n;
+      return this;
+    }
+
+    /**
+     * @param maxSignatures the number of signatures tracked at once. Defaults to 1024.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder maxSignatures(int maxSignatures) {
+
+      Preconditions.checkArgument(maxSignatures > 0, "maxSignatures must be > 0");
+
+      maxSignatures_ = maxSignatures;
+      return this;
+    }
+
+    /**
+     * @param interval the longest time a signature stays silent while its lines are suppressed.
+     *     Defaults to 10 seconds.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder summaryInterval(Duration interval) {
+
+      Preconditions.checkNotNull(interval, "interval should not be null");
+      Preconditions.checkArgument(!interval.isNegative() && !interval.isZero(), "interval must be > 0");
+
+      summaryInterval_ = interval;
+      return this;
+    }
+
+    /**
+     * @param ticker the time source.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder ticker(Ticker ticker) {
+      ticker_ = Preconditions.checkNotNull(ticker, "ticker should not be null");
+      return this;
+    }
+
+    public LogRateLimiter build() {
+      return new LogRateLimiter(this);
+    }
+  }
+}
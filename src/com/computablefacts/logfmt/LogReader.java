@@ -0,0 +1,304 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+
+/**
+ * Parse the logfmt lines of a stream, e.g. a socket or a pipe, as they arrive.
+ *
+ * The stream is read through a single reusable buffer. Lines are framed in place, and parsed from
+ * the buffer directly : UTF-8 bytes are never decoded and no per-line {@link String} is built
+ * unless the visitor materializes a key or a value. A line split across two reads is moved to the
+ * beginning of the buffer, which grows as needed up to the maximum line length. Longer lines are
+ * skipped (and counted) rather than buffered. Empty lines are skipped and a trailing '\r' is
+ * ignored.
+ *
+ * A reader is not thread-safe.
+ */
+@CheckReturnValue
+final public class LogReader implements Closeable {
+
+  private final InputStream stream_;
+  private final ReadableByteChannel channel_;
+  private final Reader reader_;
+  private final int maxLineLength_;
+  private byte[] bytes_;
+  private char[] chars_;
+  private int start_ = 0;
+  private int end_ = 0;
+  private boolean eof_ = false;
+  private boolean skipping_ = false;
+  private long lines_ = 0;
+  private long skipped_ = 0;
+
+  private LogReader(Builder builder) {
+
+    stream_ = builder.stream_;
+    channel_ = builder.channel_;
+    reader_ = builder.reader_;
+    maxLineLength_ = builder.maxLineLength_;
+
+    int bufferSize = Math.min(builder.bufferSize_, maxLineLength_ + 1);
+
+    if (reader_ == null) {
+      bytes_ = new byte[bufferSize];
+    } else {
+      chars_ = new char[bufferSize];
+    }
+  }
+
+  public static Builder builder(InputStream stream) {
+    return new Builder(Preconditions.checkNotNull(stream, "stream should not be null"), null, null);
+  }
+
+  public static Builder builder(ReadableByteChannel channel) {
+    return new Builder(null, Preconditions.checkNotNull(channel, "channel should not be null"), null);
+  }
+
+  public static Builder builder(Reader reader) {
+    return new Builder(null, null, Preconditions.checkNotNull(reader, "reader should not be null"));
+  }
+
+  /**
+   * @return the number of lines parsed so far.
+   */
+  public long lines() {
+    return lines_;
+  }
+
+  /**
+   * @return the number of lines skipped so far because they were longer than the maximum line
+   *     length.
+   */
+  public long skipped() {
+    return skipped_;
+  }
+
+  /**
+   * Parse the next line. The {@link CharSequence} given to the visitor is only valid during the
+   * call.
+   *
+   * @param visitor the callback invoked for each field of the line.
+   * @return false iif the end of the stream has been reached.
+   * @throws IOException if the stream cannot be read.
+   */
+  public boolean read(FieldVisitor visitor) throws IOException {
+
+    Preconditions.checkNotNull(visitor, "visitor should not be null");
+
+    CharSequence line = next();
+
+    if (line == null) {
+      return false;
+    }
+
+    LogFormatter.parse(line, visitor);
+    return true;
+  }
+
+  /**
+   * Parse the next line.
+   *
+   * @return the parsed fields or null if the end of the stream has been reached.
+   * @throws IOException if the stream cannot be read.
+   */
+  public Map<String, String> read() throws IOException {
+
+    CharSequence line = next();
+
+    return line == null ? null : LogFormatter.toMap(line);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (stream_ != null) {
+      stream_.close();
+    } else if (channel_ != null) {
+      channel_.close();
+    } else {
+      reader_.close();
+    }
+  }
+
+  private CharSequence next() throws IOException {
+
+    @Var int from = start_;
+
+    while (true) {
+
+      int newline = indexOfNewline(from);
+
+      if (newline >= 0) {
+
+        int start = start_;
+        @Var int end = newline;
+
+        start_ = newline + 1;
+        from = start_;
+
+        if (skipping_) {
+          skipping_ = false;
+          continue;
+        }
+        if (end > start && charAt(end - 1) == '\r') {
+          end--;
+        }
+        if (end > start) {
+          lines_++;
+          return line(start, end);
+        }
+        continue;
+      }
+      if (!skipping_ && end_ - start_ > maxLineLength_) {
+        skipping_ = true;
+        skipped_++;
+      }
+      if (skipping_) {
+        start_ = end_;
+      }
+      if (eof_) {
+
+        int start = start_;
+        @Var int end = end_;
+
+        start_ = end_;
+
+        if (end > start && charAt(end - 1) == '\r') {
+          end--;
+        }
+        if (end > start) {
+          lines_++;
+          return line(start, end);
+        }
+        return null;
+      }
+
+      from = end_ - start_;
+      fill();
+    }
+  }
+
+  /**
+   * Move the pending bytes (or chars) to the beginning of the buffer, grow the buffer if it is full
+   * and read from the stream.
+   */
+  private void fill() throws IOException {
+
+    int pending = end_ - start_;
+    int capacity = bytes_ != null ? bytes_.length : chars_.length;
+    int newCapacity = pending < capacity ? capacity : Math.min(capacity * 2, maxLineLength_ + 1);
+
+    if (bytes_ != null) {
+
+      byte[] bytes = newCapacity == capacity ? bytes_ : new byte[newCapacity];
+      System.arraycopy(bytes_, start_, bytes, 0, pending);
+      bytes_ = bytes;
+    } else {
+
+      char[] chars = newCapacity == capacity ? chars_ : new char[newCapacity];
+      System.arraycopy(chars_, start_, chars, 0, pending);
+      chars_ = chars;
+    }
+
+    start_ = 0;
+    end_ = pending;
+
+    int read;
+
+    if (stream_ != null) {
+      read = stream_.read(bytes_, end_, bytes_.length - end_);
+    } else if (channel_ != null) {
+      read = channel_.read(ByteBuffer.wrap(bytes_, end_, bytes_.length - end_));
+    } else {
+      read = reader_.read(chars_, end_, chars_.length - end_);
+    }
+
+    if (read < 0) {
+      eof_ = true;
+    } else {
+      end_ += read;
+    }
+  }
+
+  private int indexOfNewline(int from) {
+    if (bytes_ != null) {
+      for (int i = from; i < end_; i++) {
+        if (bytes_[i] == '\n') {
+          return i;
+        }
+      }
+    } else {
+      for (int i = from; i < end_; i++) {
+        if (chars_[i] == '\n') {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private char charAt(int index) {
+    return bytes_ != null ? (char) (bytes_[index] & 0xFF) : chars_[index];
+  }
+
+  private CharSequence line(int start, int end) {
+    return bytes_ != null ? new Utf8Sequence(bytes_, start, end - start) : CharBuffer.wrap(chars_, start, end - start);
+  }
+
+  final public static class Builder {
+
+    private final InputStream stream_;
+    private final ReadableByteChannel channel_;
+    private final Reader reader_;
+    private int bufferSize_ = 64 * 1024;
+    private int maxLineLength_ = 1024 * 1024;
+
+    private Builder(InputStream stream, ReadableByteChannel channel, Reader reader) {
+      stream_ = stream;
+      channel_ = channel;
+      reader_ = reader;
+    }
+
+    /**
+     * @param bufferSize the initial size of the buffer in bytes (or chars for a {@link Reader}).
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder bufferSize(int bufferSize) {
+
+      Preconditions.checkArgument(bufferSize > 0, "bufferSize must be > 0");
+
+      bufferSize_ = bufferSize;
+      return this;
+    }
+
+    /**
+     * @param maxLineLength the length in bytes (or chars for a {@link Reader}) above which lines are
+     *     skipped.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder maxLineLength(int maxLineLength) {
+
+      Preconditions.checkArgument(maxLineLength > 0 && maxLineLength < Integer.MAX_VALUE,
+          "maxLineLength must be in ]0, 2^31 - 1[");
+
+      maxLineLength_ = maxLineLength;
+      return this;
+    }
+
+    public LogReader build() {
+      return new LogReader(this);
+    }
+  }
+}
@@ -0,0 +1,375 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A parsed log line with typed accessors.
+ *
+ * Parsing a record only records the ranges of the keys and values over the line. Numbers,
+ * booleans and instants are then decoded from these ranges directly : no intermediate
+ * {@link String} is built unless the value holds escape sequences. Instants written by
+ * {@link LogFormatter} are decoded by a fixed-layout decoder and other ISO-8601 layouts fall back
+ * to {@link Instant#parse(CharSequence)}.
+ *
+ * When a key appears several times in a line, the last value wins, as with
+ * {@link LogFormatter#parse(String)}. A record built over a byte array reads the array lazily : the
+ * array must not be modified while the record is in use.
+ */
+@CheckReturnValue
+final public class LogRecord {
+
+  private static final int KEY_START = 0;
+  private static final int KEY_END = 1;
+  private static final int VALUE_START = 2;
+  private static final int VALUE_END = 3;
+  private static final int FLAGS = 4;
+  private static final int STRIDE = 5;
+
+  // Exact powers of ten : a double made of at most 15 digits scaled by one of them is correctly
+  // rounded
+  private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private final CharSequence log_;
+  private int[] fields_ = new int[8 * STRIDE];
+  private int size_ = 0;
+
+  private LogRecord(CharSequence log) {
+    log_ = log;
+    LogFormatter.parse(log, this::add);
+  }
+
+  public static LogRecord parse(String log) {
+
+    Preconditions.checkNotNull(log, "log should not be null");
+
+    return new LogRecord(log);
+  }
+
+  /**
+   * Parse a UTF-8 encoded log line without decoding it.
+   *
+   * @param log the buffer holding the log line.
+   * @param offset the index of the first byte of the log line.
+   * @param length the length of the log line in bytes.
+   * @return the parsed record.
+   */
+  public static LogRecord parse(byte[] log, int offset, int length) {
+    return new LogRecord(new Utf8Sequence(log, offset, length));
+  }
+
+  /**
+   * @return the number of fields, duplicate keys included.
+   */
+  public int size() {
+    return size_;
+  }
+
+  /**
+   * @param key a key.
+   * @return true iif the line holds the key.
+   */
+  public boolean containsKey(String key) {
+    return find(key) >= 0;
+  }
+
+  /**
+   * @param key a key.
+   * @return the value of the key or null if the line does not hold the key.
+   */
+  public String getString(String key) {
+
+    int field = find(key);
+
+    return field < 0 ? null
+        : LogFormatter.value(log_, fields_[field + VALUE_START], fields_[field + VALUE_END], fields_[field + FLAGS]);
+  }
+
+  /**
+   * @param key a key.
+   * @return the value of the key.
+   * @throws NumberFormatException if the line does not hold the key or if the value is not a
+   *     {@code long}.
+   */
+  public long getLong(String key) {
+    return decodeLong(key, required(key));
+  }
+
+  /**
+   * @param key a key.
+   * @param defaultValue the value returned if the line does not hold the key.
+   * @return the value of the key.
+   * @throws NumberFormatException if the value is not a {@code long}.
+   */
+  public long getLong(String key, long defaultValue) {
+    int field = find(key);
+    return field < 0 ? defaultValue : decodeLong(key, field);
+  }
+
+  /**
+   * @param key a key.
+   * @return the value of the key.
+   * @throws NumberFormatException if the line does not hold the key or if the value is not a
+   *     number.
+   */
+  public double getDouble(String key) {
+    return decodeDouble(key, required(key));
+  }
+
+  /**
+   * @param key a key.
+   * @param defaultValue the value returned if the line does not hold the key.
+   * @return the value of the key.
+   * @throws NumberFormatException if the value is not a number.
+   */
+  public double getDouble(String key, double defaultValue) {
+    int field = find(key);
+    return field < 0 ? defaultValue : decodeDouble(key, field);
+  }
+
+  /**
+   * @param key a key.
+   * @return the value of the key.
+   * @throws IllegalArgumentException if the line does not hold the key or if the value is neither
+   *     {@code true} nor {@code false} (case insensitive).
+   */
+  public boolean getBoolean(String key) {
+    return decodeBoolean(key, required(key));
+  }
+
+  /**
+   * @param key a key.
+   * @param defaultValue the value returned if the line does not hold the key.
+   * @return the value of the key.
+   * @throws IllegalArgumentException if the value is neither {@code true} nor {@code false} (case
+   *     insensitive).
+   */
+  public boolean getBoolean(String key, boolean defaultValue) {
+    int field = find(key);
+    return field < 0 ? defaultValue : decodeBoolean(key, field);
+  }
+
+  /**
+   * @param key a key.
+   * @return the value of the key or null if the line does not hold the key.
+   * @throws java.time.format.DateTimeParseException if the value is not an ISO-8601 instant.
+   */
+  public Instant getInstant(String key) {
+
+    int field = find(key);
+
+    if (field < 0) {
+      return null;
+    }
+
+    int start = fields_[field + VALUE_START];
+    int end = fields_[field + VALUE_END];
+
+    if ((fields_[field + FLAGS] & FieldVisitor.ESCAPED) == 0) {
+
+      Instant instant = LogClock.parseIso8601(log_, start, end);
+
+      if (instant != null) {
+        return instant;
+      }
+    }
+    return Instant.parse(LogFormatter.value(log_, start, end, fields_[field + FLAGS]));
+  }
+
+  /**
+   * @return the fields of the line.
+   */
+  public Map<String, String> toMap() {
+
+    Map<String, String> map = new HashMap<>();
+
+    for (int field = 0; field < size_ * STRIDE; field += STRIDE) {
+      map.put(LogFormatter.key(log_, fields_[field + KEY_START], fields_[field + KEY_END]),
+          LogFormatter.value(log_, fields_[field + VALUE_START], fields_[field + VALUE_END], fields_[field + FLAGS]));
+    }
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return log_.toString();
+  }
+
+  private boolean add(CharSequence log, int keyStart, int keyEnd, int valueStart, int valueEnd, int flags) {
+
+    int field = size_ * STRIDE;
+
+    if (field == fields_.length) {
+      fields_ = Arrays.copyOf(fields_, fields_.length * 2);
+    }
+
+    fields_[field + KEY_START] = keyStart;
+    fields_[field + KEY_END] = keyEnd;
+    fields_[field + VALUE_START] = valueStart;
+    fields_[field + VALUE_END] = valueEnd;
+    fields_[field + FLAGS] = flags;
+    size_++;
+    return true;
+  }
+
+  /**
+   * @return the offset in fields_ of the last field holding the key or -1 if there is none.
+   */
+  private int find(String key) {
+
+    Preconditions.checkNotNull(key, "key should not be null");
+
+    for (int field = (size_ - 1) * STRIDE; field >= 0; field -= STRIDE) {
+      if (LogFormatter.regionMatches(log_, fields_[field + KEY_START], fields_[field + KEY_END], key)) {
+        return field;
+      }
+    }
+    return -1;
+  }
+
+  private int required(String key) {
+
+    int field = find(key);
+
+    if (field < 0) {
+      throw new NumberFormatException("missing key : " + key);
+    }
+    return field;
+  }
+
+  private NumberFormatException invalid(String key, int field, String type) {
+    return new NumberFormatException("invalid " + type + " for key " + key + " : " + LogFormatter.value(log_,
+        fields_[field + VALUE_START], fields_[field + VALUE_END], fields_[field + FLAGS]));
+  }
+
+  private long decodeLong(String key, int field) {
+
+    if ((fields_[field + FLAGS] & FieldVisitor.ESCAPED) != 0) {
+      return Long.parseLong(LogFormatter.value(log_, fields_[field + VALUE_START], fields_[field + VALUE_END],
+          fields_[field + FLAGS]));
+    }
+
+    int start = fields_[field + VALUE_START];
+    int end = fields_[field + VALUE_END];
+    boolean negative = start < end && log_.charAt(start) == '-';
+    @Var int i = start < end && (negative || log_.charAt(start) == '+') ? start + 1 : start;
+
+    if (i == end) {
+      throw invalid(key, field, "long");
+    }
+
+    // Accumulate negatively so that Long.MIN_VALUE does not overflow
+    @Var long value = 0;
+
+    for (; i < end; i++) {
+
+      int digit = log_.charAt(i) - '0';
+
+      if (digit < 0 || digit > 9 || value < Long.MIN_VALUE / 10) {
+        throw invalid(key, field, "long");
+      }
+
+      value *= 10;
+
+      if (value < Long.MIN_VALUE + digit) {
+        throw invalid(key, field, "long");
+      }
+      value -= digit;
+    }
+
+    if (negative) {
+      return value;
+    }
+    if (value == Long.MIN_VALUE) {
+      throw invalid(key, field, "long");
+    }
+    return -value;
+  }
+
+  private double decodeDouble(String key, int field) {
+    try {
+      return decodeDouble(log_, fields_[field + VALUE_START], fields_[field + VALUE_END], fields_[field + FLAGS]);
+    } catch (NumberFormatException e) {
+      throw invalid(key, field, "double");
+    }
+  }
+
+  /**
+   * Decode a number from a range of a log line, without building a {@link String} when possible.
+   *
+   * @param log the log line.
+   * @param start the index of the first character of the value.
+   * @param end the index after the last character of the value.
+   * @param flags a combination of {@link FieldVisitor#QUOTED} and {@link FieldVisitor#ESCAPED}.
+   * @return the number.
+   * @throws NumberFormatException if the value is not a number.
+   */
+  static double decodeDouble(CharSequence log, int start, int end, int flags) {
+
+    if ((flags & FieldVisitor.ESCAPED) == 0) {
+
+      // Fast path : [+-]digits[.digits] with at most 15 significant digits is exactly
+      // representable and a single division by an exact power of ten rounds correctly
+      boolean negative = start < end && log.charAt(start) == '-';
+      @Var int i = start < end && (negative || log.charAt(start) == '+') ? start + 1 : start;
+      @Var long mantissa = 0;
+      @Var int nbDigits = 0;
+      @Var int scale = -1;
+
+      for (; i < end; i++) {
+
+        char c = log.charAt(i);
+
+        if (c >= '0' && c <= '9') {
+          mantissa = mantissa * 10 + (c - '0');
+          nbDigits++;
+          if (scale >= 0) {
+            scale++;
+          }
+        } else if (c == '.' && scale < 0) {
+          scale = 0;
+        } else {
+          break;
+        }
+      }
+      if (i == end && nbDigits > 0 && nbDigits <= 15 && scale != 0) {
+        double value = scale < 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+      }
+    }
+    return Double.parseDouble(LogFormatter.value(log, start, end, flags));
+  }
+
+  private boolean decodeBoolean(String key, int field) {
+
+    int start = fields_[field + VALUE_START];
+    int end = fields_[field + VALUE_END];
+
+    if (matchesIgnoreCase(start, end, "true")) {
+      return true;
+    }
+    if (matchesIgnoreCase(start, end, "false")) {
+      return false;
+    }
+    throw new IllegalArgumentException("invalid boolean for key " + key + " : " + LogFormatter.value(log_, start, end,
+        fields_[field + FLAGS]));
+  }
+
+  private boolean matchesIgnoreCase(int start, int end, String string) {
+    if (end - start != string.length()) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if ((log_.charAt(i) | 0x20) != string.charAt(i - start)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,339 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A redaction policy applied by {@link LogFormatter} to each field when it is added.
+ *
+ * A field is redacted if its key contains one of the sensitive words of the policy (ignoring case)
+ * or if its value, once rendered as a string, matches one of the sensitive patterns of the policy.
+ * This includes numbers : a card number added as a {@code long} is redacted as well.
+ * Redacted values are either masked or replaced by a keyed hash (HMAC-SHA256), so that equal values
+ * can still be correlated. A plain hash would not do : low-entropy secrets such as PINs, card
+ * numbers or short passwords are easily recovered from it by brute force.
+ *
+ * The sensitive words are compiled into an Aho-Corasick automaton : a key is checked in a single
+ * pass, without lowercasing it first. The answer is cached per key since the same literal keys are
+ * added over and over : when the key is the cached instance, a hit costs a reference comparison.
+ * Only values are matched against the patterns, and only if the policy has some.
+ *
+ * A policy is immutable, thread-safe and is meant to be shared.
+ */
+@CheckReturnValue
+final public class LogRedactor {
+
+  private static final String MASK = "******";
+  private static final int ALPHABET = 128;
+  private static final int CACHE_SIZE = 256;
+
+  /**
+   * 13 to 19 digits, optionally grouped by spaces or dashes, e.g. a payment card number. When a
+   * policy uses this very pattern, a match must also pass the Luhn checksum : timestamps, order ids
+   * or trace ids of the same length are left alone, except for the one in ten that happens to pass.
+   */
+  public static final Pattern CARD_NUMBER = Pattern.compile("(?<![0-9])[0-9](?:[ -]?[0-9]){12,18}(?![0-9])");
+
+  private static final LogRedactor NONE = builder().build();
+  private static final LogRedactor PASSWORDS = builder().key("password").build();
+  private static final LogRedactor STANDARD = builder().key("password").key("passwd").key("secret").key("token")
+      .key("authorization").key("api_key").key("apikey").value(CARD_NUMBER).build();
+
+  private final int[] transitions_;
+  private final boolean[] matches_;
+  private final Pattern[] patterns_;
+  private final HashFunction hmac_;
+
+  // Racy, but safe : entries are immutable and a missing or stale entry is simply recomputed.
+  private final Verdict[] cache_ = new Verdict[CACHE_SIZE];
+
+  private LogRedactor(Builder builder) {
+
+    // Build the trie then turn it into a DFA : transitions_[state * ALPHABET + c] is the next state
+    List<int[]> trie = new ArrayList<>();
+    List<Boolean> matches = new ArrayList<>();
+
+    trie.add(new int[ALPHABET]);
+    matches.add(false);
+
+    for (String key : builder.keys_) {
+
+      @Var int state = 0;
+
+      for (int i = 0; i < key.length(); i++) {
+
+        char c = key.charAt(i);
+
+        if (trie.get(state)[c] == 0) {
+          trie.get(state)[c] = trie.size();
+          trie.add(new int[ALPHABET]);
+          matches.add(false);
+        }
+        state = trie.get(state)[c];
+      }
+      matches.set(state, true);
+    }
+
+    int nbStates = trie.size();
+    int[] failures = new int[nbStates];
+    Queue<Integer> queue = new ArrayDeque<>();
+
+    transitions_ = new int[nbStates * ALPHABET];
+    matches_ = new boolean[nbStates];
+
+    for (int state = 0; state < nbStates; state++) {
+      matches_[state] = matches.get(state);
+    }
+    for (int c = 0; c < ALPHABET; c++) {
+
+      int next = trie.get(0)[c];
+
+      transitions_[c] = next;
+
+      if (next != 0) {
+        queue.add(next);
+      }
+    }
+    while (!queue.isEmpty()) {
+
+      int state = queue.remove();
+
+      matches_[state] |= matches_[failures[state]];
+
+      for (int c = 0; c < ALPHABET; c++) {
+
+        int next = trie.get(state)[c];
+        int fallback = transitions_[failures[state] * ALPHABET + c];
+
+        if (next == 0) {
+          transitions_[state * ALPHABET + c] = fallback;
+        } else {
+          transitions_[state * ALPHABET + c] = next;
+          failures[next] = fallback;
+          queue.add(next);
+        }
+      }
+    }
+
+    patterns_ = builder.values_.toArray(new Pattern[0]);
+    hmac_ = builder.secret_ == null ? null : Hashing.hmacSha256(builder.secret_);
+  }
+
+  /**
+   * @return a policy that redacts nothing.
+   */
+  public static LogRedactor none() {
+    return NONE;
+  }
+
+  /**
+   * @return a policy that masks the fields whose key contains "password". This is the default.
+   */
+  public static LogRedactor passwords() {
+    return PASSWORDS;
+  }
+
+  /**
+   * @return a policy that masks the fields whose key contains "password", "passwd", "secret",
+   *     "token", "authorization", "api_key" or "apikey" and the values that look like a payment
+   *     card number and pass the Luhn checksum.
+   */
+  public static LogRedactor standard() {
+    return STANDARD;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @param key a key.
+   * @return true iif the key contains one of the sensitive words, ignoring case.
+   */
+  public boolean isSensitiveKey(String key) {
+
+    Preconditions.checkNotNull(key, "key should not be null");
+
+    int hash = key.hashCode();
+    int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+    Verdict verdict = cache_[slot];
+
+    if (verdict != null && verdict.key_.equals(key)) {
+      return verdict.sensitive_;
+    }
+
+    boolean sensitive = scan(key);
+
+    cache_[slot] = new Verdict(key, sensitive);
+    return sensitive;
+  }
+
+  /**
+   * @param value a value.
+   * @return true iif the value matches one of the sensitive patterns.
+   */
+  public boolean isSensitiveValue(String value) {
+
+    Preconditions.checkNotNull(value, "value should not be null");
+
+    for (Pattern pattern : patterns_) {
+
+      Matcher matcher = pattern.matcher(value);
+
+      while (matcher.find()) {
+        if (pattern != CARD_NUMBER || isLuhnValid(value, matcher.start(), matcher.end())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true iif the policy has value patterns.
+   */
+  boolean checksValues() {
+    return patterns_.length > 0;
+  }
+
+  /**
+   * @param value a sensitive value.
+   * @return the value to log instead.
+   */
+  String redact(Object value) {
+    if (hmac_ == null) {
+      return MASK;
+    }
+    return "hmac:" + hmac_.hashString(String.valueOf(value), StandardCharsets.UTF_8).toString().substring(0, 16);
+  }
+
+  /**
+   * @return true iif the digits of the range, ignoring separators, pass the Luhn checksum.
+   */
+  private static boolean isLuhnValid(String value, int start, int end) {
+
+    @Var int sum = 0;
+    @Var boolean doubled = false;
+
+    for (int i = end - 1; i >= start; i--) {
+
+      char c = value.charAt(i);
+
+      if (c >= '0' && c <= '9') {
+
+        @Var int digit = c - '0';
+
+        if (doubled) {
+          digit = digit < 5 ? 2 * digit : 2 * digit - 9;
+        }
+        sum += digit;
+        doubled = !doubled;
+      }
+    }
+    return sum % 10 == 0;
+  }
+
+  private boolean scan(String key) {
+
+    @Var int state = 0;
+
+    for (int i = 0; i < key.length(); i++) {
+
+      char c = Character.toLowerCase(key.charAt(i));
+
+      state = c < ALPHABET ? transitions_[state * ALPHABET + c] : 0;
+
+      if (matches_[state]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class Verdict {
+
+    final String key_;
+    final boolean sensitive_;
+
+    Verdict(String key, boolean sensitive) {
+      key_ = key;
+      sensitive_ = sensitive;
+    }
+  }
+
+  final public static class Builder {
+
+    private final Set<String> keys_ = new LinkedHashSet<>();
+    private final Set<Pattern> values_ = new LinkedHashSet<>();
+    private byte[] secret_ = null;
+
+    private Builder() {
+    }
+
+    /**
+     * @param word a sensitive word. Keys containing the word, ignoring case, are redacted. The
+     *     word must be made of ASCII characters.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder key(String word) {
+
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(word), "word should neither be null nor empty");
+      Preconditions.checkArgument(word.chars().allMatch(c -> c < ALPHABET), "word should be made of ASCII characters");
+
+      keys_.add(Ascii.toLowerCase(word));
+      return this;
+    }
+
+    /**
+     * @param pattern a sensitive pattern. Values whose string representation contains a match are
+     *     redacted, whatever their type.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder value(Pattern pattern) {
+
+      Preconditions.checkNotNull(pattern, "pattern should not be null");
+
+      values_.add(pattern);
+      return this;
+    }
+
+    /**
+     * Replace the redacted values by the first 16 hex digits of their HMAC-SHA256 instead of
+     * masking them. The secret must be kept out of the logs : anyone holding it can brute force
+     * low-entropy values.
+     *
+     * @param secret the HMAC key, at least 16 bytes long.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder hash(byte[] secret) {
+
+      Preconditions.checkNotNull(secret, "secret should not be null");
+      Preconditions.checkArgument(secret.length >= 16, "secret must be at least 16 bytes long");
+
+      secret_ = secret.clone();
+      return this;
+    }
+
+    public LogRedactor build() {
+      return new LogRedactor(this);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of keys known in advance, e.g. the keys emitted by a given log statement.
+ *
+ * Each key is given a fixed slot. Slots follow the order of the formatted output so that a
+ * {@link LogFormatter} created with {@link LogFormatter#create(LogSchema)} does not have to sort
+ * these keys on each call to {@link LogFormatter#format()} : only the keys outside of the schema
+ * are sorted, then merged with the schema ones. The {@code key=} prefix of each slot is encoded
+ * once and for all.
+ *
+ * A schema is thread-safe and is meant to be shared.
+ */
+@CheckReturnValue
+final public class LogSchema {
+
+  private final String[] keys_;
+  private final char[][] prefixes_;
+  private final int[] index_;
+
+  private LogSchema(String[] keys) {
+
+    Arrays.sort(keys);
+
+    keys_ = keys;
+    prefixes_ = new char[keys.length][];
+    index_ = new int[Integer.highestOneBit(Math.max(1, keys.length)) * 4];
+
+    int mask = index_.length - 1;
+
+    for (int i = 0; i < keys.length; i++) {
+
+      Preconditions.checkArgument(!Strings.isNullOrEmpty(keys[i]), "keys should neither be null nor empty");
+      Preconditions.checkArgument(i == 0 || !keys[i].equals(keys[i - 1]), "duplicate key %s", keys[i]);
+
+      prefixes_[i] = (keys[i] + '=').toCharArray();
+
+      @Var int slot = hash(keys[i]) & mask;
+
+      while (index_[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      index_[slot] = i + 1;
+    }
+  }
+
+  public static LogSchema of(String... keys) {
+
+    Preconditions.checkNotNull(keys, "keys should not be null");
+
+    return new LogSchema(keys.clone());
+  }
+
+  public static LogSchema of(Collection<String> keys) {
+
+    Preconditions.checkNotNull(keys, "keys should not be null");
+
+    return new LogSchema(keys.toArray(new String[0]));
+  }
+
+  static int hash(String key) {
+    int hash = key.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @return the number of keys in the schema.
+   */
+  public int size() {
+    return keys_.length;
+  }
+
+  /**
+   * @param slot a slot in [0, size()).
+   * @return the key stored in the slot.
+   */
+  public String key(int slot) {
+    return keys_[slot];
+  }
+
+  /**
+   * Find the slot of a key.
+   *
+   * @param key the key to look for.
+   * @return the slot of the key or -1 if the key does not belong to the schema.
+   */
+  public int slot(String key) {
+
+    int mask = index_.length - 1;
+
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+
+      int slot = index_[i] - 1;
+
+      if (slot < 0) {
+        return -1;
+      }
+      if (keys_[slot].equals(key)) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * @param slot a slot in [0, size()).
+   * @return the pre-encoded {@code key=} prefix of the slot.
+   */
+  char[] prefix(int slot) {
+    return prefixes_[slot];
+  }
+}
@@ -0,0 +1,270 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read a logfmt file through memory mappings.
+ *
+ * The file is mapped in segments of at most 1 GiB, each segment ending on a line boundary. The
+ * records are exposed as a {@link Spliterator} that splits the file into newline-aligned chunks,
+ * so that a parallel {@link Stream} parses the chunks concurrently on the common
+ * {@link java.util.concurrent.ForkJoinPool}. Run the terminal operation from a task submitted to
+ * another pool to use that pool instead. Lines are parsed from the mapped bytes directly, without
+ * being decoded first. Empty lines are skipped and a trailing '\r' is ignored.
+ */
+@CheckReturnValue
+final public class MappedLogReader {
+
+  private static final int MAX_SEGMENT_SIZE = 1 << 30;
+  private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+  private final ByteBuffer[] segments_;
+  private final long size_;
+
+  private MappedLogReader(ByteBuffer[] segments, long size) {
+    segments_ = segments;
+    size_ = size;
+  }
+
+  public static MappedLogReader open(Path file) throws IOException {
+    return open(file, MAX_SEGMENT_SIZE);
+  }
+
+  static MappedLogReader open(Path file, int segmentSize) throws IOException {
+
+    Preconditions.checkNotNull(file, "file should not be null");
+    Preconditions.checkArgument(segmentSize > 0, "segmentSize must be > 0");
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+      long size = channel.size();
+      List<ByteBuffer> segments = new ArrayList<>();
+      @Var long position = 0;
+
+      while (position < size) {
+
+        int length = (int) Math.min(segmentSize, size - position);
+        MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        @Var int end = length;
+
+        if (position + length < size) {
+
+          end = lastIndexOf(segment, length, (byte) '\n') + 1;
+
+          if (end <= 0) {
+            throw new IOException("line longer than " + segmentSize + " bytes at offset " + position);
+          }
+        }
+
+        segment.limit(end);
+        segments.add(segment);
+        position += end;
+      }
+      return new MappedLogReader(segments.toArray(new ByteBuffer[0]), size);
+    }
+  }
+
+  private static int lastIndexOf(ByteBuffer buffer, int end, byte b) {
+    for (int i = end - 1; i >= 0; i--) {
+      if (buffer.get(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(ByteBuffer buffer, int start, int end, byte b) {
+    for (int i = start; i < end; i++) {
+      if (buffer.get(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the size of the file in bytes.
+   */
+  public long size() {
+    return size_;
+  }
+
+  /**
+   * Parse the lines of the file.
+   *
+   * @param parallel true iif the chunks should be parsed concurrently.
+   * @param ordered true iif the records must be reported in the order of the file.
+   * @return the parsed lines.
+   */
+  public Stream<Map<String, String>> records(boolean parallel, boolean ordered) {
+    return StreamSupport.stream(spliterator(ordered), parallel);
+  }
+
+  /**
+   * Parse a subset of the keys of the lines of the file. Lines holding none of the keys are
+   * skipped.
+   *
+   * @param keys the keys to extract.
+   * @param parallel true iif the chunks should be parsed concurrently.
+   * @param ordered true iif the records must be reported in the order of the file.
+   * @return the parsed lines.
+   * @see LogFormatter#parse(String, KeyMatcher)
+   */
+  public Stream<Map<String, String>> records(KeyMatcher keys, boolean parallel, boolean ordered) {
+
+    Preconditions.checkNotNull(keys, "keys should not be null");
+
+    return StreamSupport.stream(spliterator(line -> {
+
+      Map<String, String> record = LogFormatter.toMap(line, keys);
+      return record.isEmpty() ? null : record;
+    }, ordered), parallel);
+  }
+
+  /**
+   * @param ordered true iif the records must be reported in the order of the file.
+   * @return a spliterator over the parsed lines.
+   */
+  public Spliterator<Map<String, String>> spliterator(boolean ordered) {
+    return spliterator(LogFormatter::toMap, ordered);
+  }
+
+  /**
+   * Map the lines of the file. The {@link CharSequence} given to the mapper is a
+   * {@link Utf8Sequence} that must not escape the call.
+   *
+   * @param mapper the function applied to each line. Lines mapped to null are skipped.
+   * @param ordered true iif the records must be reported in the order of the file.
+   * @return a spliterator over the mapped lines.
+   */
+  <T> Spliterator<T> spliterator(Function<CharSequence, T> mapper, boolean ordered) {
+
+    Preconditions.checkNotNull(mapper, "mapper should not be null");
+
+    int last = segments_.length - 1;
+
+    return new Chunk<>(mapper, ordered, 0, 0, last, last < 0 ? 0 : segments_[last].limit());
+  }
+
+  /**
+   * A newline-aligned range of the file, from (segment_, position_) included to (last_, end_)
+   * excluded.
+   */
+  private final class Chunk<T> implements Spliterator<T> {
+
+    private final Function<CharSequence, T> mapper_;
+    private final boolean ordered_;
+    private final int last_;
+    private final int end_;
+    private int segment_;
+    private int position_;
+
+    Chunk(Function<CharSequence, T> mapper, boolean ordered, int segment, int position, int last, int end) {
+      mapper_ = mapper;
+      ordered_ = ordered;
+      segment_ = segment;
+      position_ = position;
+      last_ = last;
+      end_ = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      while (segment_ <= last_) {
+
+        ByteBuffer segment = segments_[segment_];
+        int limit = segment_ == last_ ? end_ : segment.limit();
+
+        if (position_ >= limit) {
+          segment_++;
+          position_ = 0;
+          continue;
+        }
+
+        int start = position_;
+        int newline = indexOf(segment, start, limit, (byte) '\n');
+        @Var int end = newline < 0 ? limit : newline;
+
+        position_ = newline < 0 ? limit : newline + 1;
+
+        if (end > start && segment.get(end - 1) == '\r') {
+          end--;
+        }
+        if (end > start) {
+
+          T record = mapper_.apply(new Utf8Sequence(segment, start, end - start));
+
+          if (record != null) {
+            action.accept(record);
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+
+      if (segment_ < last_) {
+
+        // Give away the first half of the remaining segments
+        int middle = (segment_ + last_ + 1) / 2;
+        Chunk<T> prefix = new Chunk<>(mapper_, ordered_, segment_, position_, middle - 1,
+            segments_[middle - 1].limit());
+
+        segment_ = middle;
+        position_ = 0;
+        return prefix;
+      }
+      if (segment_ > last_ || end_ - position_ < MIN_CHUNK_SIZE) {
+        return null;
+      }
+
+      // Give away the first half of the segment, up to the next newline
+      ByteBuffer segment = segments_[segment_];
+      int newline = indexOf(segment, position_ + (end_ - position_) / 2, end_, (byte) '\n');
+
+      if (newline < 0 || newline + 1 >= end_) {
+        return null;
+      }
+
+      Chunk<T> prefix = new Chunk<>(mapper_, ordered_, segment_, position_, segment_, newline + 1);
+
+      position_ = newline + 1;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+
+      @Var long size = 0;
+
+      for (int i = segment_; i <= last_; i++) {
+        size += (i == last_ ? end_ : segments_[i].limit()) - (i == segment_ ? position_ : 0);
+      }
+      return size;
+    }
+
+    @Override
+    public int characteristics() {
+      return (ordered_ ? ORDERED : 0) | NONNULL | IMMUTABLE;
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of canonical strings for the keys and values of parsed log lines.
+ *
+ * Lookups are keyed on the hash of a range of a log line, so that a hit neither copies nor decodes
+ * the range into a string : UTF-8 ranges are compared with the cached string code point by code
+ * point. The cache is split into independently locked stripes. Each stripe is a 4-way
+ * set-associative table : a range may only be stored in one of the 4 entries of its set and, when
+ * the set is full, an entry that has not been hit since the last eviction is replaced (CLOCK
+ * algorithm). Strings longer than a given length are never cached : they are unlikely to repeat.
+ *
+ * An interner is thread-safe and is meant to be shared by all the threads parsing the same kind of
+ * logs.
+ */
+@CheckReturnValue
+final public class StringInterner {
+
+  private static final int NB_STRIPES = 16;
+  private static final int NB_WAYS = 4;
+  private static final int DEFAULT_MAX_LENGTH = 64;
+
+  private final Stripe[] stripes_;
+  private final int maxLength_;
+  private final LongAdder hits_ = new LongAdder();
+  private final LongAdder misses_ = new LongAdder();
+
+  private StringInterner(int capacity, int maxLength) {
+
+    int nbSets = Math.max(1, Integer.highestOneBit(Math.max(1, capacity / (NB_STRIPES * NB_WAYS))));
+
+    stripes_ = new Stripe[NB_STRIPES];
+    maxLength_ = maxLength;
+
+    for (int i = 0; i < NB_STRIPES; i++) {
+      stripes_[i] = new Stripe(nbSets);
+    }
+  }
+
+  public static StringInterner create(int capacity) {
+    return create(capacity, DEFAULT_MAX_LENGTH);
+  }
+
+  /**
+   * Create a new cache.
+   *
+   * @param capacity the maximum number of strings in the cache. It is rounded down to a power of 2
+   *     (and to at least 64).
+   * @param maxLength the length above which strings are not cached.
+   * @return a new cache.
+   */
+  public static StringInterner create(int capacity, int maxLength) {
+
+    Preconditions.checkArgument(capacity > 0, "capacity must be > 0");
+    Preconditions.checkArgument(maxLength > 0, "maxLength must be > 0");
+
+    return new StringInterner(capacity, maxLength);
+  }
+
+  /**
+   * Hash the UTF-16 code units of a range. A UTF-8 encoded range is decoded on the fly so that it
+   * hashes like the equal {@link String} : both land in the same set and share the same canonical
+   * instance.
+   */
+  private static int hash(CharSequence chars, int start, int end) {
+
+    Utf8Sequence utf8 = chars instanceof Utf8Sequence ? (Utf8Sequence) chars : null;
+    @Var int hash = 0;
+
+    for (@Var int i = start; i < end; i++) {
+
+      char c = chars.charAt(i);
+
+      if (utf8 == null || c < 0x80) {
+        hash = 31 * hash + c;
+        continue;
+      }
+
+      int length = c >= 0xF0 ? 4 : c >= 0xE0 ? 3 : 2;
+      int codePoint = utf8.codePointAt(i, end, length);
+
+      if (codePoint < 0) {
+
+        // Malformed : hash the string the decoder gives, replacement characters included
+        String string = LogFormatter.key(chars, start, end);
+
+        return hash(string, 0, string.length());
+      }
+      if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        hash = 31 * hash + Character.highSurrogate(codePoint);
+        hash = 31 * hash + Character.lowSurrogate(codePoint);
+      } else {
+        hash = 31 * hash + codePoint;
+      }
+      i += length - 1;
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @return the maximum number of strings in the cache.
+   */
+  public int capacity() {
+    return NB_STRIPES * stripes_[0].strings_.length;
+  }
+
+  /**
+   * @return the number of strings in the cache.
+   */
+  public int size() {
+
+    @Var int size = 0;
+
+    for (Stripe stripe : stripes_) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of lookups that returned a cached string.
+   */
+  public long hits() {
+    return hits_.sum();
+  }
+
+  /**
+   * @return the number of lookups that had to materialize a new string. Strings longer than the
+   *     maximum length are not counted.
+   */
+  public long misses() {
+    return misses_.sum();
+  }
+
+  public String intern(String string) {
+
+    Preconditions.checkNotNull(string, "string should not be null");
+
+    return intern(string, 0, string.length());
+  }
+
+  /**
+   * Get the canonical string held by a range of a log line.
+   *
+   * @param chars the log line.
+   * @param start the index of the first character of the range.
+   * @param end the index after the last character of the range.
+   * @return the cached string equal to the range or a new string if there is none.
+   */
+  public String intern(CharSequence chars, int start, int end) {
+
+    Preconditions.checkNotNull(chars, "chars should not be null");
+
+    if (start >= end) {
+      return "";
+    }
+    if (end - start > maxLength_) {
+      return LogFormatter.key(chars, start, end);
+    }
+
+    int hash = hash(chars, start, end);
+    Stripe stripe = stripes_[hash >>> 28];
+
+    return stripe.intern(chars, start, end, hash);
+  }
+
+  private final class Stripe {
+
+    private final int[] hashes_;
+    private final String[] strings_;
+    private final boolean[] referenced_;
+    private final byte[] hands_;
+
+    Stripe(int nbSets) {
+      hashes_ = new int[nbSets * NB_WAYS];
+      strings_ = new String[nbSets * NB_WAYS];
+      referenced_ = new boolean[nbSets * NB_WAYS];
+      hands_ = new byte[nbSets];
+    }
+
+    synchronized int size() {
+
+      @Var int size = 0;
+
+      for (String string : strings_) {
+        if (string != null) {
+          size++;
+        }
+      }
+      return size;
+    }
+
+    synchronized String intern(CharSequence chars, int start, int end, int hash) {
+
+      int set = hash & (hands_.length - 1);
+      int first = set * NB_WAYS;
+
+      for (int i = first; i < first + NB_WAYS; i++) {
+
+        String string = strings_[i];
+
+        if (string != null && hashes_[i] == hash && LogFormatter.regionMatches(chars, start, end, string)) {
+          referenced_[i] = true;
+          hits_.increment();
+          return string;
+        }
+      }
+
+      // Move the hand over the set, giving a second chance to the entries hit since the last pass
+      @Var int hand = hands_[set];
+
+      while (referenced_[first + hand]) {
+        referenced_[first + hand] = false;
+        hand = (hand + 1) % NB_WAYS;
+      }
+
+      String string = LogFormatter.key(chars, start, end);
+
+      hashes_[first + hand] = hash;
+      strings_[first + hand] = string;
+      hands_[set] = (byte) ((hand + 1) % NB_WAYS);
+      misses_.increment();
+      return string;
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Render the root cause of a {@link Throwable} added to a {@link LogFormatter}.
+ *
+ * The stack trace is laid out like {@link Throwable#printStackTrace()} but is escaped straight into
+ * the log line : neither the trace nor its escaped form are built as intermediate strings. The
+ * number of frames rendered per trace and the total length of the rendering can be capped.
+ *
+ * The same exception is often logged over and over. Escaped renderings are thus kept in a small
+ * direct-mapped cache keyed by the class, the message and the frames of the root cause, and reused
+ * as is. Root causes with suppressed exceptions are never cached.
+ *
+ * A renderer is immutable, thread-safe and is meant to be shared.
+ */
+@CheckReturnValue
+final public class ThrowableRenderer {
+
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+  private static final ThrowableRenderer FULL = builder().build();
+
+  private final int maxFrames_;
+  private final int maxLength_;
+
+  // Racy, but safe : entries are immutable and a missing or stale entry is simply rebuilt.
+  private final Rendering[] cache_;
+
+  private ThrowableRenderer(Builder builder) {
+    maxFrames_ = builder.maxFrames_;
+    maxLength_ = builder.maxLength_;
+    cache_ = builder.cacheSize_ == 0 ? null : new Rendering[builder.cacheSize_];
+  }
+
+  /**
+   * @return a renderer without limits, whose output is the same as
+   *     {@link Throwables#getStackTraceAsString(Throwable)}. This is the default.
+   */
+  public static ThrowableRenderer full() {
+    return FULL;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Append the quoted rendering of the root cause of a throwable.
+   *
+   * @param builder the destination.
+   * @param throwable the throwable.
+   */
+  void render(StringBuilder builder, Throwable throwable) {
+
+    Throwable root = Throwables.getRootCause(throwable);
+    StackTraceElement[] frames = root.getStackTrace();
+
+    if (LogMetrics.ENABLED) {
+      LogMetrics.increment(LogMetrics.eCounter.THROWABLES);
+    }
+
+    if (cache_ == null || root.getSuppressed().length > 0) {
+      render(builder, root, frames);
+      return;
+    }
+
+    String message = root.getLocalizedMessage();
+    int hash = (root.getClass().hashCode() * 31 + Objects.hashCode(message)) * 31 + Arrays.hashCode(frames);
+    int slot = (hash ^ (hash >>> 16)) & (cache_.length - 1);
+    Rendering rendering = cache_[slot];
+
+    if (rendering != null && rendering.matches(root, message, frames)) {
+      if (LogMetrics.ENABLED) {
+        LogMetrics.increment(LogMetrics.eCounter.THROWABLES_CACHED);
+      }
+      builder.append(rendering.escaped_);
+      return;
+    }
+
+    int start = builder.length();
+
+    render(builder, root, frames);
+    cache_[slot] = new Rendering(root.getClass(), message, frames, builder.substring(start));
+  }
+
+  private void render(StringBuilder builder, Throwable root, StackTraceElement[] frames) {
+
+    Output output = new Output(builder, maxLength_);
+    Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    seen.add(root);
+    builder.append('"');
+    output.append(root.toString()).newLine();
+    appendFrames(output, "", frames, frames.length);
+
+    for (Throwable suppressed : root.getSuppressed()) {
+      appendEnclosed(output, suppressed, frames, "Suppressed: ", "\t", seen);
+    }
+    builder.append('"');
+  }
+
+  /**
+   * Render a suppressed exception or a cause like {@link Throwable#printStackTrace()} does : the
+   * frames shared with the enclosing trace are elided.
+   */
+  private void appendEnclosed(Output output, Throwable throwable, StackTraceElement[] enclosing, String caption,
+      String prefix, Set<Throwable> seen) {
+
+    if (output.isFull()) {
+      return;
+    }
+    if (!seen.add(throwable)) {
+      output.append("\t[CIRCULAR REFERENCE:").append(throwable.toString()).append("]").newLine();
+      return;
+    }
+
+    StackTraceElement[] frames = throwable.getStackTrace();
+    @Var int m = frames.length - 1;
+    @Var int n = enclosing.length - 1;
+
+    while (m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+      m--;
+      n--;
+    }
+
+    output.append(prefix).append(caption).append(throwable.toString()).newLine();
+    appendFrames(output, prefix, frames, m + 1);
+
+    for (Throwable suppressed : throwable.getSuppressed()) {
+      appendEnclosed(output, suppressed, frames, "Suppressed: ", prefix + "\t", seen);
+    }
+
+    Throwable cause = throwable.getCause();
+
+    if (cause != null) {
+      appendEnclosed(output, cause, frames, "Caused by: ", prefix, seen);
+    }
+  }
+
+  /**
+   * Render the first {@code count} frames of a trace, up to the maximum number of frames. Frames
+   * that are not rendered are summed up in a {@code ... n more} line.
+   */
+  private void appendFrames(Output output, String prefix, StackTraceElement[] frames, int count) {
+
+    int rendered = Math.min(count, maxFrames_);
+
+    for (int i = 0; i < rendered && !output.isFull(); i++) {
+      output.append(prefix).append("\tat ").append(frames[i].toString()).newLine();
+    }
+    if (rendered < frames.length) {
+      output.append(prefix).append("\t... ").append(Integer.toString(frames.length - rendered)).append(" more")
+          .newLine();
+    }
+  }
+
+  /**
+   * Escape the rendering into the log line, stopping once the maximum length is reached.
+   */
+  private static final class Output {
+
+    private final StringBuilder builder_;
+    private int remaining_;
+
+    Output(StringBuilder builder, int maxLength) {
+      builder_ = builder;
+      remaining_ = maxLength;
+    }
+
+    boolean isFull() {
+      return remaining_ <= 0;
+    }
+
+    @CanIgnoreReturnValue
+    Output append(String string) {
+
+      int length = Math.min(string.length(), remaining_);
+
+      if (length > 0) {
+        LogEncoder.escape(builder_, string, 0, length);
+        remaining_ -= length;
+      }
+      return this;
+    }
+
+    @CanIgnoreReturnValue
+    Output newLine() {
+      return append(LINE_SEPARATOR);
+    }
+  }
+
+  private static final class Rendering {
+
+    final Class<?> clazz_;
+    final String message_;
+    final StackTraceElement[] frames_;
+    final String escaped_;
+
+    Rendering(Class<?> clazz, String message, StackTraceElement[] frames, String escaped) {
+      clazz_ = clazz;
+      message_ = message;
+      frames_ = frames;
+      escaped_ = escaped;
+    }
+
+    boolean matches(Throwable throwable, String message, StackTraceElement[] frames) {
+      return clazz_ == throwable.getClass() && Objects.equals(message_, message) && Arrays.equals(frames_, frames);
+    }
+  }
+
+  final public static class Builder {
+
+    private int maxFrames_ = Integer.MAX_VALUE;
+    private int maxLength_ = Integer.MAX_VALUE;
+    private int cacheSize_ = 64;
+
+    private Builder() {
+    }
+
+    /**
+     * @param maxFrames the maximum number of frames rendered per stack trace.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder maxFrames(int maxFrames) {
+
+      Preconditions.checkArgument(maxFrames > 0, "maxFrames must be > 0");
+
+      maxFrames_ = maxFrames;
+      return this;
+    }
+
+    /**
+     * @param maxLength the maximum number of characters rendered, before escaping. The rendering
+     *     is truncated beyond.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder maxLength(int maxLength) {
+
+      Preconditions.checkArgument(maxLength > 0, "maxLength must be > 0");
+
+      maxLength_ = maxLength;
+      return this;
+    }
+
+    /**
+     * @param cacheSize the number of renderings kept in the cache, rounded up to a power of 2. Use
+     *     0 to disable the cache.
+     * @return this builder.
+     */
+    @CanIgnoreReturnValue
+    public Builder cacheSize(int cacheSize) {
+
+      Preconditions.checkArgument(cacheSize >= 0 && cacheSize <= (1 << 20), "cacheSize must be in [0, 2^20]");
+
+      cacheSize_ = cacheSize == 0 ? 0 : Math.max(1, Integer.highestOneBit(cacheSize - 1) << 1);
+      return this;
+    }
+
+    public ThrowableRenderer build() {
+      return new ThrowableRenderer(this);
+    }
+  }
+}
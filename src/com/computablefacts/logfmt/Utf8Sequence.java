@@ -0,0 +1,399 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Preconditions;
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.errorprone.annotations.Var;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A view over a range of UTF-8 encoded bytes that exposes each byte as a {@code char} in
+ * [0x00, 0xFF].
+ *
+ * All logfmt delimiters are ASCII and every byte of a multi-byte UTF-8 sequence is above 0x7F so
+ * the parser state machine can walk the raw bytes without decoding them. {@link #charAt(int)} and
+ * {@link #length()} work on bytes, {@link #toString()} decodes the range.
+ */
+@CheckReturnValue
+final class Utf8Sequence implements CharSequence {
+
+  private final byte[] bytes_;
+  private final ByteBuffer buffer_;
+  private final int offset_;
+  private final int length_;
+
+  Utf8Sequence(byte[] bytes, int offset, int length) {
+
+    Preconditions.checkNotNull(bytes, "bytes should not be null");
+    Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+
+    bytes_ = bytes;
+    buffer_ = null;
+    offset_ = offset;
+    length_ = length;
+  }
+
+  Utf8Sequence(ByteBuffer buffer) {
+
+    Preconditions.checkNotNull(buffer, "buffer should not be null");
+
+    if (buffer.hasArray()) {
+      bytes_ = buffer.array();
+      buffer_ = null;
+      offset_ = buffer.arrayOffset() + buffer.position();
+    } else {
+      bytes_ = null;
+      buffer_ = buffer;
+      offset_ = buffer.position();
+    }
+    length_ = buffer.remaining();
+  }
+
+  /**
+   * A view over an absolute range of a buffer. The buffer position and limit are ignored.
+   *
+   * @param buffer the buffer.
+   * @param offset the index of the first byte.
+   * @param length the number of bytes.
+   */
+  Utf8Sequence(ByteBuffer buffer, int offset, int length) {
+    this(buffer.hasArray() ? buffer.array() : null, buffer.hasArray() ? null : buffer,
+        buffer.hasArray() ? buffer.arrayOffset() + offset : offset, length);
+  }
+
+  private Utf8Sequence(byte[] bytes, ByteBuffer buffer, int offset, int length) {
+    bytes_ = bytes;
+    buffer_ = buffer;
+    offset_ = offset;
+    length_ = length;
+  }
+
+  /**
+   * Write the UTF-8 encoding of a range of characters to a buffer. Unpaired surrogates are replaced
+   * with '?'.
+   *
+   * @param chars the characters to encode.
+   * @param start the index of the first character.
+   * @param end the index after the last character.
+   * @param buffer the destination. Nothing is written if the buffer is too small.
+   * @throws BufferOverflowException if the encoded characters do not fit in the buffer.
+   */
+  static void encode(CharSequence chars, int start, int end, ByteBuffer buffer) {
+
+    if (buffer.remaining() < encodedLength(chars, start, end)) {
+      throw new BufferOverflowException();
+    }
+
+    put(chars, start, end, buffer);
+  }
+
+  /**
+   * Write the UTF-8 encoding of a range of characters to a buffer whose remaining space has already
+   * been checked. A range of n characters never takes more than 3 * n bytes.
+   *
+   * @param chars the characters to encode.
+   * @param start the index of the first character.
+   * @param end the index after the last character.
+   * @param buffer the destination.
+   */
+  static void put(CharSequence chars, int start, int end, ByteBuffer buffer) {
+    for (int i = start; i < end; i++) {
+
+      char c = chars.charAt(i);
+
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else if (!Character.isSurrogate(c)) {
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+
+        int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+
+        buffer.put((byte) (0xF0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else {
+        buffer.put((byte) '?');
+      }
+    }
+  }
+
+  /**
+   * Compute the length of the UTF-8 encoding of a range of characters.
+   *
+   * @param chars the characters to encode.
+   * @param start the index of the first character.
+   * @param end the index after the last character.
+   * @return the number of bytes.
+   */
+  static int encodedLength(CharSequence chars, int start, int end) {
+
+    @Var int length = 0;
+
+    for (int i = start; i < end; i++) {
+
+      char c = chars.charAt(i);
+
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (!Character.isSurrogate(c)) {
+        length += 3;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 1;
+      }
+    }
+    return length;
+  }
+
+  @Override
+  public int length() {
+    return length_;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) (byteAt(index) & 0xFF);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+
+    Preconditions.checkPositionIndexes(start, end, length_);
+
+    return new Utf8Sequence(bytes_, buffer_, offset_ + start, end - start);
+  }
+
+  @Override
+  public String toString() {
+    return decode(0, length_);
+  }
+
+  byte byteAt(int index) {
+    return bytes_ != null ? bytes_[offset_ + index] : buffer_.get(offset_ + index);
+  }
+
+  /**
+   * Find the next byte that may end a key or a value, or start an escape sequence. Ranges of direct
+   * buffers are scanned 8 bytes at a time.
+   *
+   * @param from the index of the first byte to scan.
+   * @param to the index after the last byte to scan.
+   * @param quoted true iif the scanned bytes belong to a quoted value.
+   * @return the index of the first delimiter in [from, to) or {@code to} if there is none.
+   * @see Delimiters#indexOf(CharSequence, int, int, boolean)
+   */
+  int indexOfDelimiter(int from, int to, boolean quoted) {
+    if (bytes_ != null) {
+      return Delimiters.indexOf(bytes_, offset_ + from, offset_ + to, quoted) - offset_;
+    }
+
+    @Var int i = from;
+
+    if (to - from >= Long.BYTES) {
+
+      boolean bigEndian = buffer_.order() == ByteOrder.BIG_ENDIAN;
+
+      for (; i <= to - Long.BYTES; i += Long.BYTES) {
+
+        long word = buffer_.getLong(offset_ + i);
+        long delimiters = Delimiters.delimiters(bigEndian ? Long.reverseBytes(word) : word, quoted);
+
+        if (delimiters != 0) {
+          return i + Delimiters.firstByte(delimiters);
+        }
+      }
+    }
+    for (; i < to; i++) {
+      if (Delimiters.isDelimiter(buffer_.get(offset_ + i), quoted)) {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  /**
+   * Decode a range of this view.
+   *
+   * @param start the index of the first byte.
+   * @param end the index after the last byte.
+   * @return the decoded string.
+   */
+  String decode(int start, int end) {
+
+    Preconditions.checkPositionIndexes(start, end, length_);
+
+    if (start == end) {
+      return "";
+    }
+    if (bytes_ != null) {
+      return new String(bytes_, offset_ + start, end - start, StandardCharsets.UTF_8);
+    }
+
+    byte[] bytes = new byte[end - start];
+    ByteBuffer buffer = buffer_.duplicate();
+    buffer.limit(offset_ + end);
+    buffer.position(offset_ + start);
+    buffer.get(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Unescape then decode a range of this view.
+   *
+   * @param start the index of the first byte.
+   * @param end the index after the last byte.
+   * @return the decoded string.
+   */
+  String unquote(int start, int end) {
+
+    Preconditions.checkPositionIndexes(start, end, length_);
+
+    int backslash = indexOf((byte) '\\', start, end);
+
+    if (backslash < 0) {
+      return decode(start, end);
+    }
+
+    byte[] unquoted = new byte[end - start];
+    int length = LogFormatter.unquote(this, start, end, backslash, unquoted);
+
+    return new String(unquoted, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Find the first occurrence of a byte in a range of this view.
+   *
+   * @param b the byte to look for.
+   * @param start the index of the first byte.
+   * @param end the index after the last byte.
+   * @return the index of the first occurrence of the byte in [start, end) or -1 if there is none.
+   */
+  int indexOf(byte b, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (byteAt(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Copy a range of this view.
+   *
+   * @param start the index of the first byte.
+   * @param end the index after the last byte.
+   * @param dest the destination array.
+   * @param destOffset the index of the first byte written to the destination array.
+   */
+  void getBytes(int start, int end, byte[] dest, int destOffset) {
+    if (bytes_ != null) {
+      System.arraycopy(bytes_, offset_ + start, dest, destOffset, end - start);
+    } else {
+      for (int i = start; i < end; i++) {
+        dest[destOffset + i - start] = buffer_.get(offset_ + i);
+      }
+    }
+  }
+
+  /**
+   * Check if a range of this view holds the UTF-8 encoding of a given string.
+   *
+   * @param start the index of the first byte.
+   * @param end the index after the last byte.
+   * @param string the string to compare the range with.
+   * @return true iif the range and the string hold the same characters.
+   */
+  boolean regionMatches(int start, int end, String string) {
+
+    // A char never takes less than a byte once encoded
+    if (end - start < string.length()) {
+      return false;
+    }
+
+    @Var int j = 0;
+
+    for (@Var int i = start; i < end; i++) {
+
+      int b = byteAt(i) & 0xFF;
+
+      if (b < 0x80) {
+        if (j >= string.length() || string.charAt(j++) != b) {
+          return false;
+        }
+        continue;
+      }
+
+      // Compare the decoded code point with the next char, or surrogate pair, without decoding the
+      // whole range into a string
+      int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+      int codePoint = codePointAt(i, end, length);
+
+      if (codePoint < 0) {
+
+        // Malformed : compare with what the decoder gives, replacement characters included
+        return decode(start, end).equals(string);
+      }
+      if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        if (j + 1 >= string.length() || string.charAt(j) != Character.highSurrogate(codePoint)
+            || string.charAt(j + 1) != Character.lowSurrogate(codePoint)) {
+          return false;
+        }
+        j += 2;
+      } else if (j >= string.length() || string.charAt(j++) != codePoint) {
+        return false;
+      }
+      i += length - 1;
+    }
+    return j == string.length();
+  }
+
+  /**
+   * @param start the index of the lead byte of a multi-byte sequence.
+   * @param end the index after the last byte that may belong to the sequence.
+   * @param length the length of the sequence announced by its lead byte.
+   * @return the code point encoded by the UTF-8 sequence starting at {@code start} or -1 if the
+   *     sequence is malformed, overlong or encodes a surrogate.
+   */
+  int codePointAt(int start, int end, int length) {
+
+    int lead = byteAt(start) & 0xFF;
+
+    if (lead < 0xC2 || lead > 0xF4 || start + length > end) {
+      return -1;
+    }
+
+    @Var int codePoint = lead & (0x3F >> (length - 1));
+
+    for (int i = start + 1; i < start + length; i++) {
+
+      int b = byteAt(i) & 0xFF;
+
+      if ((b & 0xC0) != 0x80) {
+        return -1;
+      }
+      codePoint = (codePoint << 6) | (b & 0x3F);
+    }
+
+    int min = length == 2 ? 0x80 : length == 3 ? 0x800 : Character.MIN_SUPPLEMENTARY_CODE_POINT;
+
+    if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+        || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+      return -1;
+    }
+    return codePoint;
+  }
+}
@@ -0,0 +1,287 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Splitter;
+import com.google.errorprone.annotations.Var;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncLogSinkTest {
+
+  private static final Splitter LINES = Splitter.on('\n').omitEmptyStrings();
+
+  @Test
+  public void testWriteToStream() throws IOException {
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+    try (AsyncLogSink sink = AsyncLogSink.builder(stream).build()) {
+      Assert.assertTrue(sink.write(LogFormatter.create().add("key1", "value1").add("key2", 2)));
+      Assert.assertTrue(sink.writeInfo(LogFormatter.create().message("Hello world!")));
+      sink.flush();
+      Assert.assertEquals(2, sink.written());
+    }
+
+    List<String> lines = LINES.splitToList(new String(stream.toByteArray(), StandardCharsets.UTF_8));
+
+    Assert.assertEquals(2, lines.size());
+    Assert.assertEquals("key1=value1 key2=2", lines.get(0));
+    Assert.assertTrue(lines.get(1).startsWith("level=INFO msg=\"Hello world!\" timestamp="));
+  }
+
+  @Test
+  public void testWriteToFileChannel() throws IOException, InterruptedException {
+
+    Path file = Files.createTempFile("logfmt", ".log");
+    int nbThreads = 8;
+    int nbLines = 10_000;
+    Thread[] threads = new Thread[nbThreads];
+
+    try (AsyncLogSink sink = AsyncLogSink.builder(FileChannel.open(file, StandardOpenOption.WRITE)).capacity(64)
+        .slotSize(16).build()) {
+      for (int t = 0; t < nbThreads; t++) {
+
+        int thread = t;
+
+        threads[t] = new Thread(() -> {
+
+          LogFormatter formatter = LogFormatter.create();
+
+          for (int i = 0; i < nbLines; i++) {
+            sink.write(formatter.add("thread", thread).add("line", i).add("msg", "héllo wörld"));
+          }
+        });
+        threads[t].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    Set<String> unique = new HashSet<>(lines);
+
+    Assert.assertEquals(nbThreads * nbLines, lines.size());
+    Assert.assertEquals(nbThreads * nbLines, unique.size());
+
+    for (String line : lines) {
+
+      Map<String, String> map = LogFormatter.parse(line);
+
+      Assert.assertEquals(3, map.size());
+      Assert.assertEquals("héllo wörld", map.get("msg"));
+    }
+
+    Files.delete(file);
+  }
+
+  @Test
+  public void testDrop() throws IOException {
+
+    CountDownLatch latch = new CountDownLatch(1);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    OutputStream slow = new OutputStream() {
+
+      @Override
+      public void write(int b) {
+        stream.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        stream.write(b, off, len);
+      }
+    };
+
+    AsyncLogSink sink = AsyncLogSink.builder(slow).capacity(4).drop().build();
+    @Var int accepted = 0;
+
+    for (int i = 0; i < 100; i++) {
+      if (sink.write(LogFormatter.create().add("line", i))) {
+        accepted++;
+      }
+    }
+
+    latch.countDown();
+    sink.close();
+
+    Assert.assertTrue(accepted < 100);
+    Assert.assertEquals(100 - accepted, sink.dropped());
+    Assert.assertEquals(accepted, sink.written());
+    Assert.assertEquals(accepted, LINES.splitToList(new String(stream.toByteArray(), StandardCharsets.UTF_8)).size());
+  }
+
+  @Test
+  public void testSample() throws IOException {
+
+    CountDownLatch latch = new CountDownLatch(1);
+    OutputStream slow = new OutputStream() {
+
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+    };
+
+    AsyncLogSink sink = AsyncLogSink.builder(slow).capacity(64).sample(10).build();
+
+    for (int i = 0; i < 1000; i++) {
+      sink.write(LogFormatter.create().add("line", i));
+    }
+
+    latch.countDown();
+    sink.close();
+
+    Assert.assertTrue(sink.sampled() > 0);
+    Assert.assertEquals(1000, sink.written() + sink.sampled() + sink.dropped());
+  }
+
+  @Test
+  public void testLargeLine() throws IOException {
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    StringBuilder msg = new StringBuilder();
+
+    for (int i = 0; i < 1000; i++) {
+      msg.append("世界 ");
+    }
+
+    try (AsyncLogSink sink = AsyncLogSink.builder(stream).slotSize(8).build()) {
+      sink.write(LogFormatter.create().message(msg.toString()));
+    }
+
+    String log = new String(stream.toByteArray(), StandardCharsets.UTF_8);
+
+    Assert.assertEquals(LogFormatter.create().message(msg.toString()).format() + "\n", log);
+  }
+
+  @Test
+  public void testClosedSinkDrops() throws IOException {
+
+    AsyncLogSink sink = AsyncLogSink.builder(new ByteArrayOutputStream()).build();
+    sink.close();
+
+    Assert.assertFalse(sink.write(LogFormatter.create().add("key", "value")));
+    Assert.assertEquals(1, sink.dropped());
+  }
+
+  @Test
+  public void testClosedSinkDropsConcurrentLine() throws IOException {
+
+    AsyncLogSink sink = AsyncLogSink.builder(new ByteArrayOutputStream()).build();
+    LogFormatter formatter = LogFormatter.createConcurrent();
+
+    sink.close();
+
+    Assert.assertFalse(sink.writeInfo(formatter.add("key", "value").message("dropped")));
+    Assert.assertEquals(1, sink.dropped());
+
+    // The dropped line takes its own fields and only them
+    Assert.assertEquals("other=field", formatter.add("other", "field").format());
+    Assert.assertFalse(sink.write(formatter.add("key", "value")));
+    Assert.assertEquals("", formatter.format());
+  }
+
+  @Test
+  public void testCloseUnderLoad() throws IOException, InterruptedException {
+
+    for (int round = 0; round < 200; round++) {
+
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      AsyncLogSink sink = AsyncLogSink.builder(stream).capacity(16).drop().build();
+      Thread[] threads = new Thread[4];
+      AtomicLong accepted = new AtomicLong();
+      AtomicLong attempts = new AtomicLong();
+      CountDownLatch started = new CountDownLatch(threads.length);
+
+      for (int t = 0; t < threads.length; t++) {
+        threads[t] = new Thread(() -> {
+
+          LogFormatter formatter = LogFormatter.create();
+
+          started.countDown();
+
+          for (int i = 0; i < 5_000; i++) {
+            attempts.incrementAndGet();
+            if (sink.write(formatter.add("line", i))) {
+              accepted.incrementAndGet();
+            }
+          }
+        });
+        threads[t].start();
+      }
+
+      started.await();
+      sink.close();
+
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      long nbLines = LINES.splitToList(new String(stream.toByteArray(), StandardCharsets.UTF_8)).size();
+
+      // Every accepted line has been written, every other one has been counted as dropped
+      Assert.assertEquals(accepted.get(), nbLines);
+      Assert.assertEquals(accepted.get(), sink.written());
+      Assert.assertEquals(attempts.get(), sink.written() + sink.dropped());
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void testBlockWithDeadConsumer() throws IOException {
+
+    OutputStream broken = new OutputStream() {
+
+      @Override
+      public void write(int b) {
+        throw new IllegalStateException("broken");
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) {
+        throw new IllegalStateException("broken");
+      }
+    };
+
+    try (AsyncLogSink sink = AsyncLogSink.builder(broken).capacity(4).block().build()) {
+
+      @Var int accepted = 0;
+
+      // The consumer dies on the first line : once the ring buffer is full, producers must give up
+      for (int i = 0; i < 100; i++) {
+        if (sink.write(LogFormatter.create().add("line", i))) {
+          accepted++;
+        }
+      }
+
+      Assert.assertTrue(accepted <= 4 + 1);
+      Assert.assertTrue(sink.dropped() >= 100 - 5);
+    }
+  }
+}
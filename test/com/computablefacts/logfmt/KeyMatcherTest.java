@@ -0,0 +1,90 @@
+package com.computablefacts.logfmt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyMatcherTest {
+
+  private static final KeyMatcher KEYS = KeyMatcher.of("level", "status", "trace_id");
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyKey() {
+    KeyMatcher keys = KeyMatcher.of("level", "");
+  }
+
+  @Test
+  public void testSlots() {
+
+    KeyMatcher keys = KeyMatcher.of(Arrays.asList("level", "msg", "level"));
+    String log = "level msg lvl mss";
+
+    Assert.assertEquals(2, keys.size());
+    Assert.assertEquals("level", keys.key(keys.slot(log, 0, 5)));
+    Assert.assertEquals("msg", keys.key(keys.slot(log, 6, 9)));
+    Assert.assertEquals(-1, keys.slot(log, 10, 13));
+    Assert.assertEquals(-1, keys.slot(log, 14, 17));
+    Assert.assertEquals(-1, keys.slot(log, 0, 0));
+  }
+
+  @Test
+  public void testParseSubset() {
+
+    String log = LogFormatter.create().add("level", "INFO").add("msg", "Hello \"world\"").add("status", 200)
+        .add("trace_id", "abc").add("zone", "eu").format();
+
+    Map<String, String> expected = new HashMap<>();
+    expected.put("level", "INFO");
+    expected.put("status", "200");
+    expected.put("trace_id", "abc");
+
+    Assert.assertEquals(expected, LogFormatter.parse(log, KEYS));
+  }
+
+  @Test
+  public void testParseMissingKeys() {
+
+    Map<String, String> expected = new HashMap<>();
+    expected.put("status", "404");
+
+    Assert.assertEquals(expected, LogFormatter.parse("msg=\"not found\" status=404", KEYS));
+    Assert.assertTrue(LogFormatter.parse("msg=\"not found\"", KEYS).isEmpty());
+    Assert.assertTrue(LogFormatter.parse("level=INFO", KeyMatcher.of()).isEmpty());
+  }
+
+  @Test
+  public void testParseStopsOnceAllKeysAreFound() {
+
+    // The unterminated quoted value after the last requested key is never scanned
+    Map<String, String> parsed = LogFormatter.parse("level=INFO status=200 trace_id=abc level=WARN msg=\"oops",
+        KEYS);
+
+    Assert.assertEquals(3, parsed.size());
+    Assert.assertEquals("INFO", parsed.get("level"));
+  }
+
+  @Test
+  public void testParseEscapedValue() {
+
+    String log = LogFormatter.create().add("level", "a=\"b\"\nc").add("msg", "d\\e").format();
+
+    Assert.assertEquals("a=\"b\"\nc", LogFormatter.parse(log, KEYS).get("level"));
+  }
+
+  @Test
+  public void testParseBytes() {
+
+    KeyMatcher keys = KeyMatcher.of("clé", "msg");
+    byte[] log = "xx clé=\"héllo wörld\" msg=ok zone=eu".getBytes(StandardCharsets.UTF_8);
+
+    Map<String, String> expected = new HashMap<>();
+    expected.put("clé", "héllo wörld");
+    expected.put("msg", "ok");
+
+    Assert.assertEquals(expected, LogFormatter.parse(log, 3, log.length - 3, keys));
+    Assert.assertEquals(expected, LogFormatter.parse(new String(log, StandardCharsets.UTF_8), keys));
+  }
+}
@@ -0,0 +1,229 @@
+package com.computablefacts.logfmt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogAggregatorTest {
+
+  private static final String[] LEVELS = {"INFO", "INFO", "INFO", "WARN", "ERROR"};
+
+  private static LogAggregator aggregator() {
+    return LogAggregator.builder().countBy("level").sum("latency_ms").quantiles("latency_ms").distinct("user")
+        .heavyHitters("path", 3).build();
+  }
+
+  private static List<String> lines(int nbLines) {
+
+    Random random = new Random(42);
+    List<String> lines = new ArrayList<>(nbLines);
+
+    for (int i = 0; i < nbLines; i++) {
+
+      // Paths /0, /1 and /2 account for half of the lines
+      String path = random.nextBoolean() ? "/" + (i % 3) : "/other/" + random.nextInt(10_000);
+
+      lines.add(LogFormatter.create().add("level", LEVELS[i % LEVELS.length]).add("latency_ms", i % 1000)
+          .add("user", "üser-" + (i % 5000)).add("path", path).message("request \"" + i + "\"").format());
+    }
+    return lines;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateOperator() {
+    LogAggregator aggregator = LogAggregator.builder().sum("latency_ms").sum("latency_ms").build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownOperator() {
+    LogAggregator.Summary summary = aggregator().create().summary("level");
+  }
+
+  @Test
+  public void testAggregate() {
+
+    LogAggregator.Aggregate aggregate = aggregator().create();
+
+    for (String line : lines(100_000)) {
+      aggregate.add(line);
+    }
+    aggregate.add("level=INFO latency_ms=slow latency_ms=1000000");
+
+    Assert.assertEquals(100_001, aggregate.count());
+
+    Map<String, Long> counts = aggregate.counts("level");
+
+    Assert.assertEquals(60_001, (long) counts.get("INFO"));
+    Assert.assertEquals(20_000, (long) counts.get("WARN"));
+    Assert.assertEquals(20_000, (long) counts.get("ERROR"));
+
+    // Only the first value of a key is aggregated and values which are not numbers are skipped
+    LogAggregator.Summary summary = aggregate.summary("latency_ms");
+
+    Assert.assertEquals(100_000, summary.count());
+    Assert.assertEquals(100 * 499_500.0, summary.sum(), 0.0);
+    Assert.assertEquals(0.0, summary.min(), 0.0);
+    Assert.assertEquals(999.0, summary.max(), 0.0);
+    Assert.assertEquals(499.5, summary.mean(), 0.0);
+
+    LogAggregator.Quantiles quantiles = aggregate.quantiles("latency_ms");
+
+    Assert.assertEquals(100_000, quantiles.count());
+    Assert.assertEquals(0.0, quantiles.quantile(0), 0.0);
+    Assert.assertEquals(500.0, quantiles.quantile(0.5), 5.0);
+    Assert.assertEquals(990.0, quantiles.quantile(0.99), 9.9);
+    Assert.assertEquals(999.0, quantiles.quantile(1), 0.0);
+
+    Assert.assertEquals(5000.0, aggregate.distinct("user"), 5000 * 0.03);
+
+    Map<String, Long> heavyHitters = aggregate.heavyHitters("path");
+
+    Assert.assertEquals(3, heavyHitters.size());
+    Assert.assertTrue(heavyHitters.containsKey("/0"));
+    Assert.assertTrue(heavyHitters.containsKey("/1"));
+    Assert.assertTrue(heavyHitters.containsKey("/2"));
+    Assert.assertTrue(heavyHitters.values().stream().allMatch(count -> count >= 15_000));
+  }
+
+  @Test
+  public void testNegativeQuantiles() {
+
+    LogAggregator.Aggregate aggregate = LogAggregator.builder().quantiles("delta").build().create();
+
+    for (int i = -500; i < 500; i++) {
+      aggregate.add("delta=" + i);
+    }
+
+    LogAggregator.Quantiles quantiles = aggregate.quantiles("delta");
+
+    Assert.assertEquals(-500.0, quantiles.quantile(0), 0.0);
+    Assert.assertEquals(-251.0, quantiles.quantile(0.25), 2.51);
+    Assert.assertEquals(-1.0, quantiles.quantile(0.5), 0.01);
+    Assert.assertEquals(249.0, quantiles.quantile(0.75), 2.49);
+  }
+
+  @Test
+  public void testHeavyHittersEviction() {
+
+    LogAggregator.Aggregate aggregate = LogAggregator.builder().heavyHitters("path", 2).build().create();
+
+    // b takes the lead, a becomes the minimum, then c overtakes a and evicts it
+    for (String path : new String[]{"a", "b", "b", "b", "c", "a", "c", "c"}) {
+      aggregate.add("path=" + path);
+    }
+
+    Map<String, Long> heavyHitters = aggregate.heavyHitters("path");
+
+    Assert.assertEquals(2, heavyHitters.size());
+    Assert.assertEquals(3, (long) heavyHitters.get("b"));
+    Assert.assertEquals(3, (long) heavyHitters.get("c"));
+  }
+
+  @Test
+  public void testNaN() {
+
+    LogAggregator.Aggregate aggregate = aggregator().create();
+
+    aggregate.add("latency_ms=NaN");
+    aggregate.add("latency_ms=3");
+    aggregate.add("latency_ms=\"NaN\"");
+    aggregate.add("latency_ms=1");
+
+    LogAggregator.Summary summary = aggregate.summary("latency_ms");
+
+    Assert.assertEquals(2, summary.count());
+    Assert.assertEquals(4.0, summary.sum(), 0.0);
+    Assert.assertEquals(1.0, summary.min(), 0.0);
+    Assert.assertEquals(3.0, summary.max(), 0.0);
+    Assert.assertEquals(2.0, summary.mean(), 0.0);
+    Assert.assertEquals(2, aggregate.quantiles("latency_ms").count());
+  }
+
+  @Test
+  public void testUtf8() {
+
+    LogAggregator aggregator = aggregator();
+    LogAggregator.Aggregate strings = aggregator.create();
+    LogAggregator.Aggregate bytes = aggregator.create();
+
+    for (String line : lines(10_000)) {
+
+      byte[] utf8 = line.getBytes(StandardCharsets.UTF_8);
+
+      strings.add(line);
+      bytes.add(utf8, 0, utf8.length);
+    }
+
+    Assert.assertEquals(strings.counts("level"), bytes.counts("level"));
+    Assert.assertEquals(strings.distinct("user"), bytes.distinct("user"));
+    Assert.assertEquals(strings.heavyHitters("path"), bytes.heavyHitters("path"));
+  }
+
+  @Test
+  public void testParallelMerge() {
+
+    LogAggregator aggregator = aggregator();
+    List<String> lines = lines(100_000);
+    LogAggregator.Aggregate sequential = aggregator.create();
+
+    for (String line : lines) {
+      sequential.add(line);
+    }
+
+    LogAggregator.Aggregate parallel = lines.parallelStream().collect(aggregator.collector());
+
+    Assert.assertEquals(sequential.count(), parallel.count());
+    Assert.assertEquals(sequential.counts("level"), parallel.counts("level"));
+    Assert.assertEquals(sequential.summary("latency_ms").sum(), parallel.summary("latency_ms").sum(), 0.0);
+    Assert.assertEquals(sequential.quantiles("latency_ms").quantile(0.9),
+        parallel.quantiles("latency_ms").quantile(0.9), 0.0);
+    Assert.assertEquals(sequential.distinct("user"), parallel.distinct("user"));
+    Assert.assertEquals(sequential.heavyHitters("path").keySet(), parallel.heavyHitters("path").keySet());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeOtherAggregator() {
+    LogAggregator.Aggregate aggregate = aggregator().create().merge(aggregator().create());
+  }
+
+  @Test
+  public void testMappedLogReader() throws IOException {
+
+    Path file = Files.createTempFile("logfmt", ".log");
+
+    try {
+      try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+        for (String line : lines(50_000)) {
+          writer.write(line);
+          writer.write('\n');
+        }
+      }
+
+      LogAggregator aggregator = LogAggregator.builder().countBy("level").distinct("user")
+          .where(LogQuery.compile("latency_ms<100")).build();
+      MappedLogReader reader = MappedLogReader.open(file);
+      LogAggregator.Aggregate sequential = aggregator.aggregate(reader, false);
+      LogAggregator.Aggregate parallel = aggregator.aggregate(reader, true);
+
+      Assert.assertEquals(5000, sequential.count());
+      Assert.assertEquals(sequential.count(), parallel.count());
+      Assert.assertEquals(sequential.counts("level"), parallel.counts("level"));
+      Assert.assertEquals(sequential.distinct("user"), parallel.distinct("user"));
+
+      Iterator<Long> counts = sequential.counts("level").values().iterator();
+
+      Assert.assertEquals(5000, counts.next() + counts.next() + counts.next());
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.computablefacts.logfmt;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogBatchTest {
+
+  @Test
+  public void testEmptyBatch() {
+
+    LogBatch batch = LogBatch.create();
+
+    Assert.assertEquals(0, batch.size());
+    Assert.assertTrue(batch.columns().isEmpty());
+    Assert.assertNull(batch.column("level"));
+  }
+
+  @Test
+  public void testColumns() {
+
+    LogBatch batch = LogBatch.create().add("level=INFO msg=started").add("level=WARN code=42")
+        .add("level=INFO msg=\"stopped now\"");
+
+    Assert.assertEquals(3, batch.size());
+    Assert.assertEquals(3, batch.columns().size());
+    Assert.assertEquals("level", batch.columns().get(0).key());
+    Assert.assertEquals("msg", batch.columns().get(1).key());
+    Assert.assertEquals("code", batch.columns().get(2).key());
+
+    LogBatch.Column level = batch.column("level");
+
+    Assert.assertEquals(3, level.count());
+    Assert.assertEquals(2, level.cardinality());
+    Assert.assertEquals(0, level.code(0));
+    Assert.assertEquals(1, level.code(1));
+    Assert.assertEquals(0, level.code(2));
+    Assert.assertEquals("INFO", level.dictionary(0));
+    Assert.assertEquals("WARN", level.value(1));
+
+    LogBatch.Column msg = batch.column("msg");
+
+    Assert.assertEquals(2, msg.count());
+    Assert.assertTrue(msg.isPresent(0));
+    Assert.assertFalse(msg.isPresent(1));
+    Assert.assertEquals(-1, msg.code(1));
+    Assert.assertNull(msg.value(1));
+    Assert.assertEquals("stopped now", msg.value(2));
+  }
+
+  @Test
+  public void testEscapedValues() {
+
+    LogBatch batch = LogBatch.create().add("msg=\"a \\\"quoted\\\" word\"").add("msg=\"a \\\"quoted\\\" word\"");
+    LogBatch.Column msg = batch.column("msg");
+
+    Assert.assertEquals(1, msg.cardinality());
+    Assert.assertEquals("a \"quoted\" word", msg.value(0));
+    Assert.assertSame(msg.value(0), msg.value(1));
+  }
+
+  @Test
+  public void testUtf8Lines() {
+
+    byte[] line = "clé=été level=INFO".getBytes(StandardCharsets.UTF_8);
+    LogBatch batch = LogBatch.create().add(line, 0, line.length).add("clé=été level=INFO");
+
+    Assert.assertEquals(2, batch.columns().size());
+    Assert.assertEquals("été", batch.column("clé").value(0));
+    Assert.assertEquals("été", batch.column("clé").value(1));
+
+    // ASCII values share their dictionary entry whatever the form of the line
+    Assert.assertEquals(1, batch.column("level").cardinality());
+  }
+
+  @Test
+  public void testTypedViews() {
+
+    LogBatch batch = LogBatch.create().add("took=12 ratio=0.5 level=INFO").add("level=WARN")
+        .add("took=-3 ratio=2 level=INFO");
+
+    LogBatch.Column took = batch.column("took");
+    LogBatch.Column ratio = batch.column("ratio");
+    LogBatch.Column level = batch.column("level");
+
+    Assert.assertTrue(took.isLong());
+    Assert.assertArrayEquals(new long[]{12, 0, -3}, took.longs());
+    Assert.assertTrue(took.isDouble());
+
+    Assert.assertFalse(ratio.isLong());
+    Assert.assertNull(ratio.longs());
+    Assert.assertArrayEquals(new double[]{0.5, Double.NaN, 2.0}, ratio.doubles(), 0.0);
+
+    Assert.assertFalse(level.isLong());
+    Assert.assertFalse(level.isDouble());
+  }
+
+  @Test
+  public void testTypedViewsFollowAddedLines() {
+
+    LogBatch batch = LogBatch.create().add("took=1");
+
+    Assert.assertArrayEquals(new long[]{1}, batch.column("took").longs());
+
+    batch.add("took=2");
+
+    Assert.assertArrayEquals(new long[]{1, 2}, batch.column("took").longs());
+
+    batch.add("took=fast");
+
+    Assert.assertNull(batch.column("took").longs());
+  }
+
+  @Test
+  public void testManyKeysAndValues() {
+
+    LogBatch batch = LogBatch.create();
+
+    for (int i = 0; i < 1000; i++) {
+      batch.add("key" + (i % 100) + "=" + i + " id=" + (i % 7));
+    }
+
+    Assert.assertEquals(1000, batch.size());
+    Assert.assertEquals(101, batch.columns().size());
+    Assert.assertEquals(7, batch.column("id").cardinality());
+    Assert.assertEquals(10, batch.column("key42").count());
+    Assert.assertEquals("942", batch.column("key42").value(942));
+    Assert.assertNull(batch.column("key42").value(943));
+
+    long[] ids = batch.column("id").longs();
+
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(i % 7, ids[i]);
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package com.computablefacts.logfmt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogBlockCodecTest {
+
+  private static List<String> lines(int nbLines) {
+
+    List<String> lines = new ArrayList<>(nbLines);
+
+    for (int i = 0; i < nbLines; i++) {
+      lines.add(LogFormatter.create().add("id", i).add("level", i % 2 == 0 ? "INFO" : "ERROR")
+          .add("latency_ms", i * 0.25).add("ok", i % 3 == 0).add("user", "üser-" + (i % 100))
+          .message("request \"#" + i + "\" = done\n\tin\\" + i + " ms").format());
+    }
+    lines.add(LogFormatter.create().add("min", Long.MIN_VALUE).add("max", Long.MAX_VALUE).add("zero", 0)
+        .add("negative", -42).add("padded", "007").add("plus", "+1").add("minus_zero", "-0")
+        .add("overflow", "9223372036854775808").add("empty", "").add("emoji", "😀 smile").format());
+    lines.add(LogFormatter.create().message(new IllegalStateException("boom")).formatError());
+    lines.add("");
+    return lines;
+  }
+
+  private static byte[] encode(LogBlockCodec codec, List<String> lines) throws IOException {
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+    try (LogBlockCodec.Writer writer = codec.writer(stream)) {
+      for (String line : lines) {
+        writer.write(line);
+      }
+    }
+    return stream.toByteArray();
+  }
+
+  private static List<String> decode(LogBlockCodec codec, byte[] bytes) throws IOException {
+
+    List<String> lines = new ArrayList<>();
+
+    try (LogBlockCodec.Reader reader = codec.reader(new ByteArrayInputStream(bytes))) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCompressionLevel() {
+    LogBlockCodec codec = LogBlockCodec.builder().compression(10).build();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+
+    List<String> lines = lines(1000);
+
+    for (LogBlockCodec codec : Arrays.asList(LogBlockCodec.create(), LogBlockCodec.builder().compression(0).build(),
+        LogBlockCodec.builder().blockSize(512).compression(9).build())) {
+      Assert.assertEquals(lines, decode(codec, encode(codec, lines)));
+    }
+  }
+
+  @Test
+  public void testReadFields() throws IOException {
+
+    List<String> lines = lines(100);
+    LogBlockCodec codec = LogBlockCodec.builder().blockSize(1024).build();
+
+    try (LogBlockCodec.Reader reader = codec.reader(new ByteArrayInputStream(encode(codec, lines)))) {
+      for (String line : lines) {
+        Assert.assertEquals(LogFormatter.parse(line), reader.read());
+      }
+      Assert.assertNull(reader.read());
+    }
+  }
+
+  @Test
+  public void testReadVisitor() throws IOException {
+
+    List<String> lines = lines(100);
+    LogBlockCodec codec = LogBlockCodec.builder().blockSize(1024).build();
+
+    try (LogBlockCodec.Reader reader = codec.reader(new ByteArrayInputStream(encode(codec, lines)))) {
+      for (String line : lines) {
+
+        Map<String, String> fields = new HashMap<>();
+
+        Assert.assertTrue(reader.read((log, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+          fields.put(LogFormatter.key(log, keyStart, keyEnd),
+              LogFormatter.value(log, valueStart, valueEnd, flags));
+          return true;
+        }));
+        Assert.assertEquals(LogFormatter.parse(line), fields);
+      }
+      Assert.assertFalse(reader.read((log, keyStart, keyEnd, valueStart, valueEnd, flags) -> true));
+    }
+  }
+
+  @Test
+  public void testWriteBytes() throws IOException {
+
+    List<String> lines = lines(100);
+    LogBlockCodec codec = LogBlockCodec.create();
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+    try (LogBlockCodec.Writer writer = codec.writer(stream)) {
+      for (String line : lines) {
+
+        byte[] bytes = ("#" + line + "#").getBytes(StandardCharsets.UTF_8);
+
+        writer.write(bytes, 1, bytes.length - 2);
+      }
+    }
+
+    Assert.assertArrayEquals(encode(codec, lines), stream.toByteArray());
+  }
+
+  @Test
+  public void testCompression() throws IOException {
+
+    List<String> lines = lines(10_000);
+    long size = lines.stream().mapToLong(line -> line.getBytes(StandardCharsets.UTF_8).length + 1).sum();
+
+    Assert.assertTrue(encode(LogBlockCodec.builder().compression(0).build(), lines).length < size);
+    Assert.assertTrue(encode(LogBlockCodec.create(), lines).length < size / 4);
+  }
+
+  @Test
+  public void testFlush() throws IOException {
+
+    LogBlockCodec codec = LogBlockCodec.create();
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    LogBlockCodec.Writer writer = codec.writer(stream);
+
+    writer.write("key1=value1");
+    writer.flush();
+
+    Assert.assertEquals(Arrays.asList("key1=value1"), decode(codec, stream.toByteArray()));
+
+    writer.write("key2=value2").close();
+
+    Assert.assertEquals(Arrays.asList("key1=value1", "key2=value2"), decode(codec, stream.toByteArray()));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedBlock() throws IOException {
+
+    LogBlockCodec codec = LogBlockCodec.create();
+    byte[] bytes = encode(codec, lines(100));
+    List<String> lines = decode(codec, Arrays.copyOf(bytes, bytes.length - 10));
+  }
+
+  @Test
+  public void testCorruptedBlocks() throws IOException {
+
+    List<String> lines = new ArrayList<>(lines(2));
+
+    lines.add("a=1  b=\"x y\" c");
+
+    for (LogBlockCodec codec : Arrays.asList(LogBlockCodec.create(), LogBlockCodec.builder().compression(0).build())) {
+
+      byte[] bytes = encode(codec, lines);
+
+      for (int i = 0; i < bytes.length; i++) {
+        for (int mask : new int[]{0x01, 0x10, 0x40, 0x80, 0xFF}) {
+
+          byte[] corrupted = bytes.clone();
+          corrupted[i] ^= (byte) mask;
+
+          // Either the block still decodes or it is rejected, but no other exception escapes
+          try {
+            List<String> decoded = decode(codec, corrupted);
+          } catch (IOException e) {
+            // Rejected
+          }
+          try (LogBlockCodec.Reader reader = codec.reader(new ByteArrayInputStream(corrupted))) {
+            while (reader.read() != null) {
+              // Drain
+            }
+          } catch (IOException e) {
+            // Rejected
+          }
+          try (LogBlockCodec.Reader reader = codec.reader(new ByteArrayInputStream(corrupted))) {
+            while (reader.read((log, keyStart, keyEnd, valueStart, valueEnd, flags) -> true)) {
+              // Drain
+            }
+          } catch (IOException e) {
+            // Rejected
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptedBlockHeaders() {
+
+    byte[][] headers = {
+        // Negative length
+        {0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, 0x01, 0},
+        // Huge length
+        {1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0x01, 0},
+        // Stored payload larger than the block
+        {0, 0x01, 0x02, 0x01, 0x00, 0x00},
+        // Varint longer than 64 bits
+        {0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, 0x01},
+        // Line count larger than the block
+        {0, 0x02, 0x02, 0x7F, 0x00},
+        // Key index outside of the dictionary
+        {0, 0x05, 0x05, 0x01, 0x00, 0x02, 0x04, 0x00}};
+
+    for (byte[] header : headers) {
+      try {
+        List<String> lines = decode(LogBlockCodec.create(), header);
+        Assert.fail(Arrays.toString(header));
+      } catch (IOException e) {
+        // Rejected
+      }
+    }
+  }
+
+  @Test
+  public void testUnknownKeysOrder() throws IOException {
+
+    LogBlockCodec codec = LogBlockCodec.create();
+    List<String> lines = Arrays.asList("b=1 a=2", "a=3 c=\"x y\" b=4");
+    Map<String, String> fields = codec.reader(new ByteArrayInputStream(encode(codec, lines))).read();
+
+    Assert.assertEquals(lines, decode(codec, encode(codec, lines)));
+    Assert.assertEquals(LogFormatter.parse(lines.get(0)), fields);
+  }
+
+  @Test
+  public void testNonCanonicalLines() throws IOException {
+
+    LogBlockCodec codec = LogBlockCodec.create();
+    List<String> lines = Arrays.asList("key", "a=1 key b=2", "a=1  b=2", " a=1", "a=1 ", "a=x\\=y", "a=\"x=y\"",
+        "a=\"\\/\"", "a=\"x\ny\"", "hello wörld", "a=1 b=\"x y\"");
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+    try (LogBlockCodec.Writer writer = codec.writer(stream)) {
+      for (String line : lines) {
+
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+
+        writer.write(line).write(bytes, 0, bytes.length);
+      }
+    }
+
+    byte[] bytes = stream.toByteArray();
+    List<String> expected = new ArrayList<>();
+
+    for (String line : lines) {
+      expected.add(line);
+      expected.add(line);
+    }
+
+    Assert.assertEquals(expected, decode(codec, bytes));
+
+    try (LogBlockCodec.Reader reader = codec.reader(new ByteArrayInputStream(bytes))) {
+      for (String line : expected) {
+        Assert.assertEquals(LogFormatter.parse(line), reader.read());
+      }
+      Assert.assertNull(reader.read());
+    }
+
+    try (LogBlockCodec.Reader reader = codec.reader(new ByteArrayInputStream(bytes))) {
+      for (String line : expected) {
+
+        Map<String, String> fields = new HashMap<>();
+
+        Assert.assertTrue(reader.read((log, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+          fields.put(LogFormatter.key(log, keyStart, keyEnd),
+              LogFormatter.value(log, valueStart, valueEnd, flags));
+          return true;
+        }));
+        Assert.assertEquals(LogFormatter.parse(line), fields);
+      }
+    }
+  }
+}
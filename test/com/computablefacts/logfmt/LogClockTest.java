@@ -0,0 +1,101 @@
+package com.computablefacts.logfmt;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogClockTest {
+
+  private static Clock fixed(String instant) {
+    return Clock.fixed(Instant.parse(instant), ZoneOffset.UTC);
+  }
+
+  @Test
+  public void testIso8601() {
+
+    String log = LogFormatter.create().clock(LogClock.iso8601(fixed("2017-11-30T15:10:25Z"))).formatInfo();
+
+    Assert.assertEquals("level=INFO timestamp=\"2017-11-30T15:10:25Z\"", log);
+  }
+
+  @Test
+  public void testIso8601Millis() {
+
+    String log = LogFormatter.create().clock(LogClock.iso8601(fixed("2017-11-30T15:10:25.007Z"))).formatInfo();
+
+    Assert.assertEquals("level=INFO timestamp=\"2017-11-30T15:10:25.007Z\"", log);
+  }
+
+  @Test
+  public void testIso8601Micros() {
+
+    String log = LogFormatter.create().clock(LogClock.iso8601(fixed("2017-11-30T15:10:25.000120Z"))).formatInfo();
+
+    Assert.assertEquals("level=INFO timestamp=\"2017-11-30T15:10:25.000120Z\"", log);
+  }
+
+  @Test
+  public void testIso8601Nanos() {
+
+    String log = LogFormatter.create().clock(LogClock.iso8601(fixed("2017-11-30T15:10:25.123456789Z"))).formatInfo();
+
+    Assert.assertEquals("level=INFO timestamp=\"2017-11-30T15:10:25.123456789Z\"", log);
+  }
+
+  @Test
+  public void testIso8601IsParsable() {
+
+    Map<String, String> map = LogFormatter.parse(LogFormatter.create().formatInfo());
+
+    Assert.assertNotNull(Instant.parse(map.get("timestamp")));
+  }
+
+  @Test
+  public void testEpochMillis() {
+
+    String log = LogFormatter.create().clock(LogClock.epochMillis(fixed("2017-11-30T15:10:25.123456789Z")))
+        .formatInfo();
+
+    Assert.assertEquals("level=INFO timestamp=1512054625123", log);
+  }
+
+  @Test
+  public void testEpochNanos() {
+
+    String log = LogFormatter.create().clock(LogClock.epochNanos(fixed("2017-11-30T15:10:25.123456789Z")))
+        .formatInfo();
+
+    Assert.assertEquals("level=INFO timestamp=1512054625123456789", log);
+  }
+
+  @Test
+  public void testConcurrentFormatter() {
+
+    String log = LogFormatter.createConcurrent().clock(LogClock.iso8601(fixed("2017-11-30T15:10:25.5Z")))
+        .formatInfo();
+
+    Assert.assertEquals("level=INFO timestamp=\"2017-11-30T15:10:25.500Z\"", log);
+  }
+
+  @Test
+  public void testSameAsInstantToString() {
+
+    Random random = new Random(42);
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < 10_000; i++) {
+
+      Instant instant = Instant.ofEpochSecond(random.nextInt(2_000_000_000) - 500_000_000L,
+          i % 4 == 0 ? 0 : i % 4 == 1 ? random.nextInt(1000) * 1_000_000 : random.nextInt(1_000_000_000));
+
+      builder.setLength(0);
+      LogClock.appendIso8601(builder, instant.getEpochSecond(), instant.getNano());
+
+      Assert.assertEquals(instant.toString(), builder.toString());
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.computablefacts.logfmt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogContextTest {
+
+  private static LogContext context() {
+    return LogContext.builder().add("service", "api").add("version", 3L).add("host", "node 1").add("region", "eu")
+        .build();
+  }
+
+  @Test
+  public void testEmptyContext() {
+
+    Assert.assertEquals(0, LogContext.empty().size());
+    Assert.assertEquals("", LogContext.empty().toString());
+    Assert.assertEquals("a=1", LogFormatter.create().context(LogContext.empty()).add("a", 1).format());
+  }
+
+  @Test
+  public void testRenderedOnce() {
+
+    LogContext context = context();
+
+    Assert.assertEquals(4, context.size());
+    Assert.assertEquals("host=\"node 1\" region=eu service=api version=3", context.toString());
+  }
+
+  @Test
+  public void testIgnoredKeys() {
+
+    LogContext context = LogContext.builder().add(null, "a").add("", "b").add("password", "secret").build();
+
+    Assert.assertEquals("password=\"******\"", context.toString());
+  }
+
+  @Test
+  public void testMergedIntoSortedOutput() {
+
+    LogContext context = context();
+    String expected = LogFormatter.create().add("service", "api").add("version", 3L).add("host", "node 1")
+        .add("region", "eu").add("a", 1).add("msg", "hello world").add("zzz", true).format();
+
+    Assert.assertEquals(expected,
+        LogFormatter.create().context(context).add("a", 1).add("msg", "hello world").add("zzz", true).format());
+    Assert.assertEquals(context.toString(), LogFormatter.create().context(context).format());
+  }
+
+  @Test
+  public void testFormatterOverridesContext() {
+
+    String log = LogFormatter.create().context(context()).add("region", "us").add("version", 4).format();
+
+    Assert.assertEquals("host=\"node 1\" region=us service=api version=4", log);
+  }
+
+  @Test
+  public void testSchemaAndConcurrentFormatters() {
+
+    LogSchema schema = LogSchema.of("msg", "user");
+    String expected = "host=\"node 1\" msg=hi region=eu service=api user=jdoe version=3";
+
+    Assert.assertEquals(expected,
+        LogFormatter.create(schema).context(context()).add("user", "jdoe").add("msg", "hi").format());
+    Assert.assertEquals(expected,
+        LogFormatter.createConcurrent().context(context()).add("user", "jdoe").add("msg", "hi").format());
+  }
+
+  @Test
+  public void testFormatterRedactor() {
+
+    LogContext context = LogContext.builder().add("api_key", "abc").add("card", 4111111111111111L)
+        .add("password", "secret").build();
+
+    Assert.assertEquals("api_key=abc card=4111111111111111 password=\"******\"", context.toString());
+    Assert.assertEquals("api_key=\"******\" card=\"******\" password=\"******\"",
+        LogFormatter.create().redactor(LogRedactor.standard()).context(context).format());
+    Assert.assertEquals("api_key=\"******\" card=\"******\" password=\"******\"",
+        LogFormatter.create().context(context).redactor(LogRedactor.standard()).format());
+    Assert.assertEquals("api_key=abc card=4111111111111111 password=secret",
+        LogFormatter.createConcurrent().redactor(LogRedactor.none()).context(context).format());
+  }
+
+  @Test
+  public void testBuilderRedactor() {
+
+    LogContext context = LogContext.builder().redactor(LogRedactor.standard()).add("token", "abc").build();
+
+    Assert.assertEquals("token=\"******\"", context.toString());
+    Assert.assertEquals("token=\"******\"", LogFormatter.create().redactor(LogRedactor.standard()).context(context)
+        .format());
+  }
+
+  @Test
+  public void testRedactedContextIsCached() {
+
+    LogRedactor standard = LogRedactor.standard();
+    LogContext context = LogContext.builder().add("api_key", "abc").add("user", "jdoe").build();
+    LogContext redacted = context.redact(standard);
+
+    Assert.assertNotSame(context, redacted);
+    Assert.assertSame(redacted, context.redact(standard));
+    Assert.assertSame(context, redacted.redact(LogRedactor.passwords()));
+    Assert.assertSame(redacted, redacted.redact(standard));
+    Assert.assertEquals("api_key=\"******\" user=jdoe", redacted.toString());
+  }
+}
@@ -1,11 +1,24 @@
 package com.computablefacts.logfmt;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -409,4 +422,507 @@ public class LogFormatterTest {
 
     Assert.assertEquals("USER_NAME=jdoe USER_PASSWORD=\"******\"", log);
   }
+
+  @Test
+  public void testVisitorReportsRanges() {
+
+    String log = "key1=value1 key2=\"value 2\" key3 key4=\"a\\\"b\"";
+    List<String> fields = new ArrayList<>();
+
+    LogFormatter.parse(log, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      fields.add(line.subSequence(keyStart, keyEnd) + "|" + line.subSequence(valueStart, valueEnd) + "|" + flags);
+      return true;
+    });
+
+    Assert.assertEquals(4, fields.size());
+    Assert.assertEquals("key1|value1|0", fields.get(0));
+    Assert.assertEquals("key2|value 2|" + FieldVisitor.QUOTED, fields.get(1));
+    Assert.assertEquals("key3||0", fields.get(2));
+    Assert.assertEquals("key4|a\\\"b|" + (FieldVisitor.QUOTED | FieldVisitor.ESCAPED), fields.get(3));
+  }
+
+  @Test
+  public void testVisitorMaterializesOnDemand() {
+
+    String log = "level=INFO msg=\"Hello \\\"world\\\"!\" status=200";
+    Map<String, String> map = new HashMap<>();
+
+    LogFormatter.parse(log, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      if (LogFormatter.regionMatches(line, keyStart, keyEnd, "msg")) {
+        map.put(LogFormatter.key(line, keyStart, keyEnd), LogFormatter.value(line, valueStart, valueEnd, flags));
+      }
+      return true;
+    });
+
+    Assert.assertEquals(1, map.size());
+    Assert.assertEquals("Hello \"world\"!", map.get("msg"));
+  }
+
+  @Test
+  public void testVisitorStopsScanning() {
+
+    List<String> keys = new ArrayList<>();
+
+    LogFormatter.parse("key1=value1 key2=value2 key3=value3", (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      keys.add(LogFormatter.key(line, keyStart, keyEnd));
+      return keys.size() < 2;
+    });
+
+    Assert.assertEquals(2, keys.size());
+    Assert.assertEquals("key1", keys.get(0));
+    Assert.assertEquals("key2", keys.get(1));
+  }
+
+  @Test
+  public void testVisitorOverStringBuilder() {
+
+    StringBuilder log = new StringBuilder("key1=value1 key2=\"value 2\"");
+    Map<String, String> map = new HashMap<>();
+
+    LogFormatter.parse(log, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      map.put(LogFormatter.key(line, keyStart, keyEnd), LogFormatter.value(line, valueStart, valueEnd, flags));
+      return true;
+    });
+
+    Assert.assertEquals(LogFormatter.parse(log.toString()), map);
+  }
+
+  @Test
+  public void testUnterminatedQuote() {
+
+    Map<String, String> map = LogFormatter.parse("key=\"");
+
+    Assert.assertEquals(1, map.size());
+    Assert.assertEquals("", map.get("key"));
+  }
+
+  @Test
+  public void testParseBytes() {
+
+    String log = LogFormatter.create().add("key1", "value1").add("key2", "h\u00e9llo w\u00f6rld")
+        .add("key3", "Hello \"\u4e16\u754c\"!\nHello \"world\"!").add("cl\u00e9", 4).format();
+    byte[] bytes = ("###" + log + "###").getBytes(StandardCharsets.UTF_8);
+    int length = log.getBytes(StandardCharsets.UTF_8).length;
+
+    Map<String, String> map = LogFormatter.parse(bytes, 3, length);
+
+    Assert.assertEquals(LogFormatter.parse(log), map);
+    Assert.assertEquals("h\u00e9llo w\u00f6rld", map.get("key2"));
+    Assert.assertEquals("Hello \"\u4e16\u754c\"!\nHello \"world\"!", map.get("key3"));
+    Assert.assertEquals("4", map.get("cl\u00e9"));
+  }
+
+  @Test
+  public void testParseDirectByteBuffer() {
+
+    String log = "level=INFO msg=\"\u00c7a marche \\\"tr\u00e8s\\\" bien\" status=200";
+    byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 2);
+    buffer.put((byte) ' ').put(bytes).put((byte) ' ').flip();
+    buffer.position(1);
+    buffer.limit(bytes.length + 1);
+
+    Map<String, String> map = new HashMap<>();
+
+    LogFormatter.parse(buffer, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      if (!LogFormatter.regionMatches(line, keyStart, keyEnd, "status")) {
+        map.put(LogFormatter.key(line, keyStart, keyEnd), LogFormatter.value(line, valueStart, valueEnd, flags));
+      }
+      return true;
+    });
+
+    Assert.assertEquals(1, buffer.position());
+    Assert.assertEquals(2, map.size());
+    Assert.assertEquals("INFO", map.get("level"));
+    Assert.assertEquals("\u00c7a marche \"tr\u00e8s\" bien", map.get("msg"));
+  }
+
+  @Test
+  public void testParseLongRunsAcrossWords() {
+
+    Random random = new Random(42);
+    String alphabet = "abcdefghij \t\n=\"\\\u00e9\u4e16";
+
+    for (int n = 0; n < 2000; n++) {
+
+      Map<String, Object> expected = new HashMap<>();
+      LogFormatter formatter = LogFormatter.create();
+
+      for (int k = 0; k < 3; k++) {
+
+        StringBuilder value = new StringBuilder();
+        int length = random.nextInt(40);
+
+        for (int i = 0; i < length; i++) {
+          value.append(random.nextInt(4) == 0 ? alphabet.charAt(random.nextInt(alphabet.length())) : 'x');
+        }
+
+        expected.put("key" + k, value.toString());
+        formatter.add("key" + k, value.toString());
+      }
+
+      String log = formatter.format();
+      byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+      buffer.put(bytes).flip();
+
+      Map<String, String> direct = new HashMap<>();
+
+      LogFormatter.parse(buffer, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+        direct.put(LogFormatter.key(line, keyStart, keyEnd), LogFormatter.value(line, valueStart, valueEnd, flags));
+        return true;
+      });
+
+      Assert.assertEquals(expected, LogFormatter.parse(log));
+      Assert.assertEquals(expected, LogFormatter.parse(bytes, 0, bytes.length));
+      Assert.assertEquals(expected, direct);
+
+      // Malformed lines must be parsed the same way whatever the scanner
+      String raw = log.substring(0, random.nextInt(log.length() + 1)).replace('x', random.nextBoolean() ? '=' : ' ');
+      byte[] rawBytes = raw.getBytes(StandardCharsets.UTF_8);
+
+      Assert.assertEquals(LogFormatter.parse(raw), LogFormatter.parse(rawBytes, 0, rawBytes.length));
+    }
+  }
+
+  @Test
+  public void testValueWithoutEscapeIsNotCopied() {
+
+    String value = "Hello world!";
+
+    Assert.assertSame(value, LogFormatter.value(value, 0, value.length(), FieldVisitor.ESCAPED));
+    Assert.assertEquals("world", LogFormatter.value(value, 6, 11, FieldVisitor.ESCAPED));
+  }
+
+  @Test
+  public void testValueWithInvalidEscapes() {
+
+    String value = "a\\qb\\\\c\\=d\\";
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    Assert.assertEquals("a\\qb\\c=d\\", LogFormatter.value(value, 0, value.length(), FieldVisitor.ESCAPED));
+    Assert.assertEquals("a\\qb\\c=d\\",
+        LogFormatter.value(new Utf8Sequence(bytes, 0, bytes.length), 0, bytes.length, FieldVisitor.ESCAPED));
+  }
+
+  @Test
+  public void testQuoteSafePrefix() {
+
+    Assert.assertEquals("msg=\"abc-1.2 d\\\"e\\nf\"", LogFormatter.create().add("msg", "abc-1.2 d\"e\nf").format());
+    Assert.assertEquals("msg=\"\\\"\"", LogFormatter.create().add("msg", "\"").format());
+    Assert.assertEquals("msg=\"h\u00e9llo\"", LogFormatter.create().add("msg", "h\u00e9llo").format());
+  }
+
+  @Test
+  public void testRegionMatchesNonAsciiKey() {
+
+    byte[] bytes = "cl\u00e9=valeur".getBytes(StandardCharsets.UTF_8);
+    List<Boolean> matches = new ArrayList<>();
+
+    LogFormatter.parse(bytes, 0, bytes.length, (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      matches.add(LogFormatter.regionMatches(line, keyStart, keyEnd, "cl\u00e9"));
+      matches.add(LogFormatter.regionMatches(line, keyStart, keyEnd, "cle"));
+      return true;
+    });
+
+    Assert.assertEquals(2, matches.size());
+    Assert.assertTrue(matches.get(0));
+    Assert.assertFalse(matches.get(1));
+  }
+
+  @Test
+  public void testFormatToStringBuilder() {
+
+    StringBuilder builder = new StringBuilder("prefix ");
+    LogFormatter.create().add("key1", "value1").add("key2", "value 2").format(builder);
+
+    Assert.assertEquals("prefix key1=value1 key2=\"value 2\"", builder.toString());
+  }
+
+  @Test
+  public void testFormatToWriter() throws IOException {
+
+    StringWriter writer = new StringWriter();
+    LogFormatter.create().add("key1", "value1").add("key2", "value 2").format(writer);
+
+    Assert.assertEquals("key1=value1 key2=\"value 2\"", writer.toString());
+  }
+
+  @Test
+  public void testFormatToByteBuffer() {
+
+    String log = LogFormatter.create().add("key1", "h\u00e9llo").add("key2", "\u4e16\u754c \ud83d\ude00").format();
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    LogFormatter.create().add("key1", "h\u00e9llo").add("key2", "\u4e16\u754c \ud83d\ude00").format(buffer);
+    buffer.flip();
+
+    Assert.assertEquals(log, StandardCharsets.UTF_8.decode(buffer).toString());
+  }
+
+  @Test
+  public void testFormatToByteBufferOverflow() {
+
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+
+    try {
+      LogFormatter.create().add("key1", "value1").add("key2", "value2").format(buffer);
+      Assert.fail();
+    } catch (BufferOverflowException e) {
+      Assert.assertEquals(0, buffer.position());
+    }
+  }
+
+  @Test
+  public void testFormatManyKeys() {
+
+    LogFormatter formatter = LogFormatter.create();
+    List<String> keys = new ArrayList<>();
+
+    for (int i = 0; i < 100; i++) {
+      String key = String.format("key%03d", (i * 37) % 100);
+      formatter.add(key, i);
+      keys.add(key);
+    }
+
+    Collections.sort(keys);
+
+    List<String> actual = new ArrayList<>();
+
+    LogFormatter.parse(formatter.format(), (line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+      actual.add(LogFormatter.key(line, keyStart, keyEnd));
+      return true;
+    });
+
+    Assert.assertEquals(keys, actual);
+  }
+
+  @Test
+  public void testFormatReentrant() {
+
+    Object value = new Object() {
+
+      @Override
+      public String toString() {
+        return LogFormatter.create().add("inner", "value").format();
+      }
+    };
+
+    String log = LogFormatter.create().add("a", "b").add("outer", value).add("z", "y").format();
+
+    Assert.assertEquals("a=b outer=\"inner\\=value\" z=y", log);
+  }
+
+  @Test
+  public void testPrimitives() {
+
+    String log = LogFormatter.create().add("bytes", 1024L).add("status", 200).add("ratio", -0.25d)
+        .add("weight", 1.5f).add("cached", false).add("grade", 'A').add("big", 1e21d).format();
+
+    Assert.assertEquals("big=1.0E21 bytes=1024 cached=false grade=A ratio=-0.25 status=200 weight=1.5", log);
+  }
+
+  @Test
+  public void testBoxedPrimitives() {
+
+    Map<String, Object> map = new HashMap<>();
+    map.put("bytes", 1024L);
+    map.put("status", (short) 200);
+    map.put("ratio", -0.25d);
+    map.put("cached", Boolean.TRUE);
+
+    String log = LogFormatter.create().add(map).format();
+
+    Assert.assertEquals("bytes=1024 cached=true ratio=-0.25 status=200", log);
+  }
+
+  @Test
+  public void testOverwriteKey() {
+
+    LogFormatter formatter = LogFormatter.create();
+
+    for (int i = 0; i < 20; i++) {
+      formatter.add("key" + (i % 10), i);
+    }
+
+    formatter.add("key0", "value0").add("key9", true);
+
+    Assert.assertEquals("key0=value0 key1=11 key2=12 key3=13 key4=14 key5=15 key6=16 key7=17 key8=18 key9=true",
+        formatter.format());
+  }
+
+  @Test
+  public void testFormatterIsEmptyAfterFormat() {
+
+    LogFormatter formatter = LogFormatter.create();
+
+    for (int i = 0; i < 20; i++) {
+      formatter.add("key" + i, i);
+    }
+
+    Assert.assertFalse(formatter.format().isEmpty());
+    Assert.assertEquals("key=value", formatter.add("key", "value").format());
+  }
+
+  @Test
+  public void testAnonymizePasswordsPrimitive() {
+
+    String log = LogFormatter.create().add("pin", 1234).add("password", 1234).format();
+
+    Assert.assertEquals("password=\"******\" pin=1234", log);
+  }
+
+  @Test
+  public void testConcurrent() throws InterruptedException {
+
+    LogFormatter formatter = LogFormatter.createConcurrent();
+    Thread[] threads = new Thread[4];
+
+    for (int t = 0; t < threads.length; t++) {
+
+      int thread = t;
+
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 25; i++) {
+          formatter.add("key" + (thread * 25 + i), (long) i);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(100, LogFormatter.parse(formatter.format()).size());
+  }
+
+  @Test
+  public void testConcurrentLastValueWins() {
+
+    LogFormatter formatter = LogFormatter.createConcurrent();
+
+    for (int i = 0; i < 20; i++) {
+      formatter.add("key" + (i % 10), i);
+    }
+
+    Map<String, String> map = LogFormatter.parse(formatter.add("key3", "last").format());
+
+    Assert.assertEquals(10, map.size());
+    Assert.assertEquals("last", map.get("key3"));
+    Assert.assertEquals("19", map.get("key9"));
+    Assert.assertEquals("", formatter.format());
+  }
+
+  @Test
+  public void testConcurrentFormatDoesNotLoseFields() throws InterruptedException {
+
+    LogFormatter formatter = LogFormatter.createConcurrent();
+    Set<String> keys = ConcurrentHashMap.newKeySet();
+    AtomicLong nbFields = new AtomicLong();
+    AtomicBoolean done = new AtomicBoolean();
+    Thread[] writers = new Thread[4];
+    Thread[] readers = new Thread[2];
+
+    for (int t = 0; t < readers.length; t++) {
+      readers[t] = new Thread(() -> {
+        while (!done.get()) {
+
+          Map<String, String> map = LogFormatter.parse(formatter.format());
+
+          keys.addAll(map.keySet());
+          nbFields.addAndGet(map.size());
+        }
+      });
+      readers[t].start();
+    }
+    for (int t = 0; t < writers.length; t++) {
+
+      int thread = t;
+
+      writers[t] = new Thread(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          formatter.add("t" + thread + "-" + i, i);
+        }
+      });
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    done.set(true);
+
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    Map<String, String> map = LogFormatter.parse(formatter.format());
+
+    keys.addAll(map.keySet());
+    nbFields.addAndGet(map.size());
+
+    Assert.assertEquals(40_000, keys.size());
+    Assert.assertEquals(40_000, nbFields.get());
+  }
+
+  @Test
+  public void testConcurrentLevels() throws InterruptedException {
+
+    LogFormatter formatter = LogFormatter.createConcurrent();
+    Set<String> keys = ConcurrentHashMap.newKeySet();
+    AtomicLong nbFields = new AtomicLong();
+    AtomicLong nbErrors = new AtomicLong();
+    AtomicBoolean done = new AtomicBoolean();
+    Thread[] writers = new Thread[4];
+    Thread[] readers = new Thread[2];
+
+    for (int t = 0; t < readers.length; t++) {
+
+      boolean info = t % 2 == 0;
+
+      readers[t] = new Thread(() -> {
+        while (!done.get()) {
+
+          Map<String, String> map = LogFormatter.parse(info ? formatter.formatInfo() : formatter.formatError());
+
+          // Each line holds the level it has been formatted with and a single timestamp
+          if (!(info ? "INFO" : "ERROR").equals(map.remove("level")) || map.remove("timestamp") == null) {
+            nbErrors.incrementAndGet();
+          }
+
+          keys.addAll(map.keySet());
+          nbFields.addAndGet(map.size());
+        }
+      });
+      readers[t].start();
+    }
+    for (int t = 0; t < writers.length; t++) {
+
+      int thread = t;
+
+      writers[t] = new Thread(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          formatter.add("t" + thread + "-" + i, i);
+        }
+      });
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    done.set(true);
+
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    Map<String, String> map = LogFormatter.parse(formatter.format());
+
+    keys.addAll(map.keySet());
+    nbFields.addAndGet(map.size());
+
+    Assert.assertEquals(0, nbErrors.get());
+    Assert.assertEquals(40_000, keys.size());
+    Assert.assertEquals(40_000, nbFields.get());
+  }
 }
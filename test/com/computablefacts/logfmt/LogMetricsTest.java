@@ -0,0 +1,114 @@
+package com.computablefacts.logfmt;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Other tests run concurrently : counters are only checked to grow by at least the expected amount.
+ */
+public class LogMetricsTest {
+
+  @Test
+  public void testEnabledInTests() {
+    Assert.assertTrue(LogMetrics.isEnabled());
+  }
+
+  @Test
+  public void testFormatMetrics() {
+
+    long lines = LogMetrics.get(LogMetrics.eCounter.FORMATTED_LINES);
+    long fields = LogMetrics.get(LogMetrics.eCounter.FORMATTED_FIELDS);
+    long redactions = LogMetrics.get(LogMetrics.eCounter.REDACTIONS);
+    long throwables = LogMetrics.get(LogMetrics.eCounter.THROWABLES);
+    long count = LogMetrics.histogram(LogMetrics.eTimer.FORMAT).count();
+
+    for (int i = 0; i < 10; i++) {
+      String log = LogFormatter.create().add("a", 1).add("password", "secret").message(new Exception("boom"))
+          .format();
+    }
+
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.FORMATTED_LINES) - lines >= 10);
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.FORMATTED_FIELDS) - fields >= 30);
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.REDACTIONS) - redactions >= 10);
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.THROWABLES) - throwables >= 10);
+    Assert.assertTrue(LogMetrics.histogram(LogMetrics.eTimer.FORMAT).count() - count >= 10);
+  }
+
+  @Test
+  public void testParseMetrics() {
+
+    long lines = LogMetrics.get(LogMetrics.eCounter.PARSED_LINES);
+    long chars = LogMetrics.get(LogMetrics.eCounter.PARSED_CHARS);
+    long bytes = LogMetrics.get(LogMetrics.eCounter.PARSED_BYTES);
+    long quoted = LogMetrics.get(LogMetrics.eCounter.QUOTED_VALUES);
+    long escaped = LogMetrics.get(LogMetrics.eCounter.ESCAPED_VALUES);
+    long bare = LogMetrics.get(LogMetrics.eCounter.BARE_LINES);
+    long truncated = LogMetrics.get(LogMetrics.eCounter.TRUNCATED_VALUES);
+
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(2, LogFormatter.parse("a=\"x y\" b=\"x\\\"y\"").size());
+      Assert.assertEquals(1, LogFormatter.parse("nofields").size());
+      Assert.assertEquals(1, LogFormatter.parse("a=\"unterminated").size());
+    }
+
+    byte[] utf8 = "é=è".getBytes(StandardCharsets.UTF_8);
+
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(1, LogFormatter.parse(utf8, 0, utf8.length).size());
+    }
+
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.PARSED_CHARS) - chars >= 10 * (16 + 8 + 15));
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.PARSED_BYTES) - bytes >= 10 * 5);
+
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.PARSED_LINES) - lines >= 30);
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.QUOTED_VALUES) - quoted >= 30);
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.ESCAPED_VALUES) - escaped >= 10);
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.BARE_LINES) - bare >= 10);
+    Assert.assertTrue(LogMetrics.get(LogMetrics.eCounter.TRUNCATED_VALUES) - truncated >= 10);
+  }
+
+  @Test
+  public void testCounterNames() {
+    Assert.assertTrue(LogMetrics.counters().containsKey("parsed.anomalies.bare_lines"));
+    Assert.assertEquals(LogMetrics.eCounter.values().length, LogMetrics.counters().size());
+  }
+
+  @Test
+  public void testHistogram() {
+
+    // Not one of the global histograms : other tests record into them concurrently
+    LogMetrics.Histogram histogram = new LogMetrics.Histogram();
+
+    for (int i = 0; i < 100; i++) {
+      histogram.record(1000);
+    }
+
+    Assert.assertEquals(100, histogram.count());
+    Assert.assertEquals(100, histogram.bucket(9));
+    Assert.assertEquals(1000, histogram.max());
+    Assert.assertEquals(1023, histogram.percentile(100));
+  }
+
+  @Test
+  public void testMBean() throws JMException {
+
+    LogMetrics.registerMBean();
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("com.computablefacts.logfmt:type=LogMetrics");
+
+    try {
+      Assert.assertTrue((Long) server.getAttribute(name, "formatted.lines") >= 0);
+      Assert.assertTrue((Long) server.getAttribute(name, "parse.nanos.p99") >= 0);
+      Assert.assertEquals(LogMetrics.eCounter.values().length + 4 * LogMetrics.eTimer.values().length,
+          server.getMBeanInfo(name).getAttributes().length);
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+}
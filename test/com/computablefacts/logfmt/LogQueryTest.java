@@ -0,0 +1,143 @@
+package com.computablefacts.logfmt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogQueryTest {
+
+  private static final String LINE = "level=ERROR latency_ms=742.5 user=\"alice smith\" path=\"/a \\\"b\\\"\" status=500";
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingValue() {
+    LogQuery query = LogQuery.compile("level=");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnbalancedParentheses() {
+    LogQuery query = LogQuery.compile("(level=ERROR or level=WARN");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNumberExpected() {
+    LogQuery query = LogQuery.compile("latency_ms>slow");
+  }
+
+  @Test
+  public void testComparisons() {
+    Assert.assertTrue(LogQuery.compile("level=ERROR").matches(LINE));
+    Assert.assertFalse(LogQuery.compile("level=WARN").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("level!=WARN").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("latency_ms > 500").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("latency_ms>=742.5").matches(LINE));
+    Assert.assertFalse(LogQuery.compile("latency_ms<742.5").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("latency_ms<=742.5").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("user=\"alice smith\"").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("path=\"/a \\\"b\\\"\"").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("user~^ali").matches(LINE));
+    Assert.assertFalse(LogQuery.compile("user~bob").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("status").matches(LINE));
+    Assert.assertFalse(LogQuery.compile("level>1").matches(LINE));
+  }
+
+  @Test
+  public void testMissingKeys() {
+    Assert.assertFalse(LogQuery.compile("missing").matches(LINE));
+    Assert.assertFalse(LogQuery.compile("missing=x").matches(LINE));
+    Assert.assertFalse(LogQuery.compile("missing!=x").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("not missing=x").matches(LINE));
+  }
+
+  @Test
+  public void testBooleanOperators() {
+    Assert.assertTrue(LogQuery.compile("level=ERROR and latency_ms>500").matches(LINE));
+    Assert.assertFalse(LogQuery.compile("level=ERROR AND latency_ms>1000").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("level=WARN or latency_ms>500").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("not level=WARN and status=500").matches(LINE));
+    Assert.assertFalse(LogQuery.compile("not (level=ERROR or level=WARN)").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("(level=WARN or status=500) and not(user~bob)").matches(LINE));
+    Assert.assertTrue(LogQuery.compile("not (level=WARN and status=404)").matches(LINE));
+  }
+
+  @Test
+  public void testFirstValueWins() {
+
+    LogQuery query = LogQuery.compile("level=ERROR");
+
+    Assert.assertTrue(query.matches("level=ERROR level=INFO"));
+    Assert.assertFalse(query.matches("level=INFO level=ERROR"));
+  }
+
+  @Test
+  public void testUtf8() {
+
+    byte[] line = "msg=\"héllo wörld\" level=ERROR".getBytes(StandardCharsets.UTF_8);
+
+    Assert.assertTrue(LogQuery.compile("msg=\"héllo wörld\" and level=ERROR").matches(line, 0, line.length));
+    Assert.assertTrue(LogQuery.compile("msg~wörld").matches(line, 0, line.length));
+    Assert.assertFalse(LogQuery.compile("msg=hello").matches(line, 0, line.length));
+  }
+
+  @Test
+  public void testScan() throws IOException {
+
+    List<Path> files = new ArrayList<>();
+    Set<String> expected = new HashSet<>();
+
+    try {
+      for (int i = 0; i < 4; i++) {
+
+        Path file = Files.createTempFile("logfmt", ".log");
+
+        files.add(file);
+
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+          for (int j = 0; j < 10_000; j++) {
+
+            int id = i * 10_000 + j;
+            String level = id % 10 == 0 ? "ERROR" : "INFO";
+
+            writer.write(LogFormatter.create().add("id", id).add("level", level).add("latency_ms", id % 1000)
+                .message("request #" + id).format());
+            writer.write('\n');
+
+            if (level.equals("ERROR") && id % 1000 > 500) {
+              expected.add(Integer.toString(id));
+            }
+          }
+        }
+      }
+
+      List<MappedLogReader> readers = new ArrayList<>();
+
+      for (Path file : files) {
+        readers.add(MappedLogReader.open(file));
+      }
+
+      LogQuery query = LogQuery.compile("level=ERROR and latency_ms>500").select("id", "msg");
+      List<Map<String, String>> records = query.scan(readers, true, false).collect(Collectors.toList());
+
+      Assert.assertEquals(expected.size(), records.size());
+      Assert.assertEquals(expected, records.stream().map(record -> record.get("id")).collect(Collectors.toSet()));
+      Assert.assertTrue(records.stream().allMatch(record -> record.size() == 2));
+
+      List<Map<String, String>> ordered = query.scan(readers, true, true).collect(Collectors.toList());
+
+      Assert.assertEquals(ordered, query.scan(readers, false, true).collect(Collectors.toList()));
+    } finally {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+  }
+}
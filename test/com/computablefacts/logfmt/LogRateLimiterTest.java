@@ -0,0 +1,201 @@
+package com.computablefacts.logfmt;
+
+import com.computablefacts.logfmt.LogFormatter.eLogLevel;
+import com.google.common.base.Ticker;
+import com.google.errorprone.annotations.Var;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogRateLimiterTest {
+
+  private static LogFormatter formatter(LogRateLimiter limiter) {
+    return LogFormatter.create().rateLimiter(limiter);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroRate() {
+    LogRateLimiter limiter = LogRateLimiter.builder().rate(0).build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroSummaryInterval() {
+    LogRateLimiter limiter = LogRateLimiter.builder().summaryInterval(Duration.ZERO).build();
+  }
+
+  @Test
+  public void testUnlimitedByDefault() {
+
+    LogRateLimiter limiter = LogRateLimiter.builder().build();
+
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertNotNull(formatter(limiter).message("Hello world!").tryFormat(eLogLevel.ERROR));
+    }
+    Assert.assertEquals(0, limiter.suppressed());
+  }
+
+  @Test
+  public void testBurstThenRefill() {
+
+    FakeTicker ticker = new FakeTicker();
+    LogRateLimiter limiter = LogRateLimiter.builder().rate(10).burst(3).ticker(ticker).build();
+    LogFormatter formatter = formatter(limiter);
+
+    for (int i = 0; i < 3; i++) {
+      Assert.assertNotNull(formatter.message("Hello world!").tryFormat(eLogLevel.ERROR));
+    }
+
+    Assert.assertNull(formatter.message("Hello world!").add("key", "value").tryFormat(eLogLevel.ERROR));
+    Assert.assertNull(formatter.message("Hello world!").tryFormat(eLogLevel.ERROR));
+    Assert.assertEquals(2, limiter.suppressed());
+
+    // The suppressed fields have been removed
+    ticker.advance(100, TimeUnit.MILLISECONDS);
+
+    Map<String, String> log = LogFormatter.parse(formatter.message("Hello world!").tryFormat(eLogLevel.ERROR));
+
+    Assert.assertEquals("2", log.get("suppressed"));
+    Assert.assertFalse(log.containsKey("key"));
+    Assert.assertNull(formatter.message("Hello world!").tryFormat(eLogLevel.ERROR));
+  }
+
+  @Test
+  public void testFormatIgnoresRateLimiter() {
+
+    LogRateLimiter limiter = LogRateLimiter.builder().rate(1).burst(1).ticker(new FakeTicker()).build();
+    LogFormatter formatter = formatter(limiter);
+
+    for (int i = 0; i < 10; i++) {
+      Assert.assertTrue(formatter.message("Hello world!").formatError().contains("level=ERROR"));
+    }
+    Assert.assertNotNull(formatter.message("Hello world!").tryFormat(eLogLevel.ERROR));
+    Assert.assertNull(formatter.message("Hello world!").tryFormat(eLogLevel.ERROR));
+    Assert.assertEquals(1, limiter.suppressed());
+  }
+
+  @Test
+  public void testConcurrentFormatterDropsSuppressedFields() {
+
+    // The ticker never moves : once the burst is spent, every line is suppressed
+    LogRateLimiter limiter = LogRateLimiter.builder().rate(1).burst(1).ticker(new FakeTicker()).build();
+    LogFormatter formatter = LogFormatter.createConcurrent().rateLimiter(limiter);
+
+    Assert.assertNotNull(formatter.add("user", "alice").message("Hello world!").tryFormat(eLogLevel.ERROR));
+    Assert.assertNull(formatter.add("user", "bob").message("Hello world!").tryFormat(eLogLevel.ERROR));
+
+    // The next line only carries its own fields
+    Assert.assertEquals("other=field", formatter.add("other", "field").format());
+  }
+
+  @Test
+  public void testSignatures() {
+
+    FakeTicker ticker = new FakeTicker();
+    LogRateLimiter limiter = LogRateLimiter.builder().rate(1).burst(1).key("user").ticker(ticker).build();
+
+    Assert.assertNotNull(formatter(limiter).message("Hello world!").add("user", "alice").tryFormat(eLogLevel.ERROR));
+    Assert.assertNull(formatter(limiter).message("Hello world!").add("user", "alice").add("id", 1).tryFormat(eLogLevel.ERROR));
+
+    // Another level, message or user is another signature
+    Assert.assertNotNull(formatter(limiter).message("Hello world!").add("user", "alice").tryFormat(eLogLevel.WARN));
+    Assert.assertNotNull(formatter(limiter).message("Goodbye world!").add("user", "alice").tryFormat(eLogLevel.ERROR));
+    Assert.assertNotNull(formatter(limiter).message("Hello world!").add("user", "bob").tryFormat(eLogLevel.ERROR));
+    Assert.assertNotNull(formatter(limiter).message("Hello world!").tryFormat(eLogLevel.ERROR));
+
+    // Exceptions are keyed by class and message
+    Assert.assertNotNull(formatter(limiter).message(new IOException("boom")).tryFormat(eLogLevel.ERROR));
+    Assert.assertNull(formatter(limiter).message(new IOException("boom")).tryFormat(eLogLevel.ERROR));
+    Assert.assertNotNull(formatter(limiter).message(new IOException("bang")).tryFormat(eLogLevel.ERROR));
+  }
+
+  @Test
+  public void testSummary() {
+
+    FakeTicker ticker = new FakeTicker();
+    LogRateLimiter limiter = LogRateLimiter.builder().rate(1.0 / 3600).burst(1).summaryInterval(Duration.ofSeconds(10))
+        .ticker(ticker).build();
+
+    Assert.assertNotNull(formatter(limiter).message("Hello world!").tryFormat(eLogLevel.ERROR));
+
+    @Var int suppressed = 0;
+
+    for (int i = 0; i < 100; i++) {
+      ticker.advance(50, TimeUnit.MILLISECONDS);
+      Assert.assertNull(formatter(limiter).message("Hello world!").tryFormat(eLogLevel.ERROR));
+      suppressed++;
+    }
+
+    ticker.advance(5, TimeUnit.SECONDS);
+
+    String summary = formatter(limiter).message("Hello world!").tryFormat(eLogLevel.ERROR);
+
+    Assert.assertNotNull(summary);
+    Assert.assertEquals(Integer.toString(suppressed), LogFormatter.parse(summary).get("suppressed"));
+    Assert.assertNull(formatter(limiter).message("Hello world!").tryFormat(eLogLevel.ERROR));
+  }
+
+  @Test
+  public void testSampling() {
+
+    LogRateLimiter limiter = LogRateLimiter.builder().sample(4).build();
+    @Var int emitted = 0;
+
+    for (int i = 0; i < 100; i++) {
+      if (formatter(limiter).message("Hello world!").tryFormat(eLogLevel.INFO) != null) {
+        emitted++;
+      }
+    }
+
+    Assert.assertEquals(25, emitted);
+    Assert.assertEquals(75, limiter.suppressed());
+  }
+
+  @Test
+  public void testBoundedSignatures() {
+
+    FakeTicker ticker = new FakeTicker();
+    LogRateLimiter limiter = LogRateLimiter.builder().rate(1).burst(1).maxSignatures(4).ticker(ticker).build();
+
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertNotNull(formatter(limiter).message("msg " + i).tryFormat(eLogLevel.ERROR));
+    }
+
+    // The first signature has been evicted long ago
+    Assert.assertNotNull(formatter(limiter).message("msg 0").tryFormat(eLogLevel.ERROR));
+  }
+
+  @Test
+  public void testAsyncLogSink() throws IOException {
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    LogRateLimiter limiter = LogRateLimiter.builder().rate(1).burst(1).ticker(new FakeTicker()).build();
+
+    try (AsyncLogSink sink = AsyncLogSink.builder(stream).build()) {
+      Assert.assertTrue(sink.writeError(formatter(limiter).message("Hello world!")));
+      Assert.assertFalse(sink.writeError(formatter(limiter).message("Hello world!")));
+      Assert.assertTrue(sink.write(formatter(limiter).message("Hello world!")));
+      sink.flush();
+      Assert.assertEquals(2, sink.written());
+      Assert.assertEquals(0, sink.dropped());
+    }
+  }
+
+  private static final class FakeTicker extends Ticker {
+
+    private final AtomicLong nanos_ = new AtomicLong();
+
+    @Override
+    public long read() {
+      return nanos_.get();
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos_.addAndGet(unit.toNanos(duration));
+    }
+  }
+}
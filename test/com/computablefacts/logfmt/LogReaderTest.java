@@ -0,0 +1,133 @@
+package com.computablefacts.logfmt;
+
+import com.google.errorprone.annotations.Var;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogReaderTest {
+
+  private static List<Map<String, String>> readAll(LogReader reader) throws IOException {
+
+    List<Map<String, String>> records = new ArrayList<>();
+
+    try (LogReader r = reader) {
+      for (@Var Map<String, String> record = r.read(); record != null; record = r.read()) {
+        records.add(record);
+      }
+    }
+    return records;
+  }
+
+  private static String log(int nbLines) {
+
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < nbLines; i++) {
+      LogFormatter.create().add("line", i).add("msg", "héllo \"wörld\" 世界 #" + i).format(builder);
+      builder.append(i % 3 == 0 ? "\r\n" : "\n");
+    }
+    return builder.toString();
+  }
+
+  private static void assertLines(int nbLines, List<Map<String, String>> records) {
+
+    Assert.assertEquals(nbLines, records.size());
+
+    for (int i = 0; i < nbLines; i++) {
+      Assert.assertEquals(Integer.toString(i), records.get(i).get("line"));
+      Assert.assertEquals("héllo \"wörld\" 世界 #" + i, records.get(i).get("msg"));
+    }
+  }
+
+  @Test
+  public void testInputStream() throws IOException {
+
+    byte[] bytes = log(1000).getBytes(StandardCharsets.UTF_8);
+
+    assertLines(1000, readAll(LogReader.builder(new ByteArrayInputStream(bytes)).bufferSize(7).build()));
+    assertLines(1000, readAll(LogReader.builder(new ByteArrayInputStream(bytes)).build()));
+  }
+
+  @Test
+  public void testChannel() throws IOException {
+
+    byte[] bytes = log(1000).getBytes(StandardCharsets.UTF_8);
+
+    assertLines(1000,
+        readAll(LogReader.builder(Channels.newChannel(new ByteArrayInputStream(bytes))).bufferSize(13).build()));
+  }
+
+  @Test
+  public void testReader() throws IOException {
+    assertLines(1000, readAll(LogReader.builder(new StringReader(log(1000))).bufferSize(5).build()));
+  }
+
+  @Test
+  public void testEmptyLinesAndNoTrailingNewline() throws IOException {
+
+    LogReader reader = LogReader.builder(new StringReader("\n\na=1\r\n\r\nb=2\nc=3")).bufferSize(2).build();
+    List<Map<String, String>> records = readAll(reader);
+
+    Assert.assertEquals(3, records.size());
+    Assert.assertEquals("3", records.get(2).get("c"));
+    Assert.assertEquals(3, reader.lines());
+  }
+
+  @Test
+  public void testEmptyStream() throws IOException {
+    Assert.assertTrue(readAll(LogReader.builder(new ByteArrayInputStream(new byte[0])).build()).isEmpty());
+  }
+
+  @Test
+  public void testMaxLineLength() throws IOException {
+
+    StringBuilder builder = new StringBuilder("a=1\nmsg=");
+
+    for (int i = 0; i < 1000; i++) {
+      builder.append('x');
+    }
+
+    builder.append("\nb=2\nmsg=");
+
+    for (int i = 0; i < 1000; i++) {
+      builder.append('y');
+    }
+
+    byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+    LogReader reader = LogReader.builder(new ByteArrayInputStream(bytes)).bufferSize(4).maxLineLength(64).build();
+    List<Map<String, String>> records = readAll(reader);
+
+    Assert.assertEquals(2, records.size());
+    Assert.assertEquals("1", records.get(0).get("a"));
+    Assert.assertEquals("2", records.get(1).get("b"));
+    Assert.assertEquals(2, reader.skipped());
+  }
+
+  @Test
+  public void testVisitor() throws IOException {
+
+    List<String> keys = new ArrayList<>();
+
+    try (LogReader reader = LogReader.builder(new StringReader("a=1 b=2\nc=3\n")).build()) {
+      while (reader.read((line, keyStart, keyEnd, valueStart, valueEnd, flags) -> {
+        keys.add(LogFormatter.key(line, keyStart, keyEnd));
+        return true;
+      })) {
+        keys.add("|");
+      }
+    }
+
+    Assert.assertEquals(5, keys.size());
+    Assert.assertEquals("a", keys.get(0));
+    Assert.assertEquals("|", keys.get(2));
+    Assert.assertEquals("c", keys.get(3));
+  }
+}
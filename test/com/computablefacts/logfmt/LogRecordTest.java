@@ -0,0 +1,154 @@
+package com.computablefacts.logfmt;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogRecordTest {
+
+  @Test
+  public void testStrings() {
+
+    LogRecord record = LogRecord.parse("level=INFO msg=\"a \\\"quoted\\\" word\" level=WARN");
+
+    Assert.assertEquals(3, record.size());
+    Assert.assertTrue(record.containsKey("msg"));
+    Assert.assertFalse(record.containsKey("code"));
+    Assert.assertEquals("WARN", record.getString("level"));
+    Assert.assertEquals("a \"quoted\" word", record.getString("msg"));
+    Assert.assertNull(record.getString("code"));
+    Assert.assertEquals(LogFormatter.parse("level=INFO msg=\"a \\\"quoted\\\" word\" level=WARN"), record.toMap());
+  }
+
+  @Test
+  public void testLongs() {
+
+    LogRecord record = LogRecord.parse(
+        "a=0 b=-42 c=+7 d=9223372036854775807 e=-9223372036854775808 f=9223372036854775808 g=1.5 h=- i=\"12\"");
+
+    Assert.assertEquals(0, record.getLong("a"));
+    Assert.assertEquals(-42, record.getLong("b"));
+    Assert.assertEquals(7, record.getLong("c"));
+    Assert.assertEquals(Long.MAX_VALUE, record.getLong("d"));
+    Assert.assertEquals(Long.MIN_VALUE, record.getLong("e"));
+    Assert.assertEquals(12, record.getLong("i"));
+    Assert.assertEquals(3, record.getLong("z", 3));
+
+    for (String key : new String[]{"f", "g", "h", "z"}) {
+      try {
+        long value = record.getLong(key);
+        Assert.fail(key);
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testDoubles() {
+
+    LogRecord record = LogRecord.parse("a=0.1 b=-2.5 c=3 d=1e-3 e=0.30000000000000004 f=abc g=.5");
+
+    Assert.assertEquals(0.1, record.getDouble("a"), 0.0);
+    Assert.assertEquals(-2.5, record.getDouble("b"), 0.0);
+    Assert.assertEquals(3.0, record.getDouble("c"), 0.0);
+    Assert.assertEquals(0.001, record.getDouble("d"), 0.0);
+    Assert.assertEquals(0.30000000000000004, record.getDouble("e"), 0.0);
+    Assert.assertEquals(0.5, record.getDouble("g"), 0.0);
+    Assert.assertEquals(1.0, record.getDouble("z", 1.0), 0.0);
+
+    try {
+      double value = record.getDouble("f");
+      Assert.fail();
+    } catch (NumberFormatException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDoublesMatchParseDouble() {
+
+    Random random = new Random(42);
+
+    for (int i = 0; i < 10_000; i++) {
+
+      String number = Long.toString(random.nextLong() % 1_000_000_000_000L) + "." + random.nextInt(1000);
+      LogRecord record = LogRecord.parse("x=" + number);
+
+      Assert.assertEquals(number, Double.parseDouble(number), record.getDouble("x"), 0.0);
+    }
+  }
+
+  @Test
+  public void testBooleans() {
+
+    LogRecord record = LogRecord.parse("a=true b=FALSE c=yes");
+
+    Assert.assertTrue(record.getBoolean("a"));
+    Assert.assertFalse(record.getBoolean("b"));
+    Assert.assertTrue(record.getBoolean("z", true));
+
+    try {
+      boolean value = record.getBoolean("c");
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testInstants() {
+
+    LogRecord record = LogRecord.parse(
+        "a=2017-11-30T15:10:25Z b=\"2017-11-30T15:10:25.007Z\" c=2017-11-30T15:10:25.123456789Z "
+            + "d=2016-02-29T23:59:59.5Z e=+10000-01-01T00:00:00Z f=2017-02-29T00:00:00Z g=0000-01-01T00:00:00Z");
+
+    Assert.assertEquals(Instant.parse("2017-11-30T15:10:25Z"), record.getInstant("a"));
+    Assert.assertEquals(Instant.parse("2017-11-30T15:10:25.007Z"), record.getInstant("b"));
+    Assert.assertEquals(Instant.parse("2017-11-30T15:10:25.123456789Z"), record.getInstant("c"));
+    Assert.assertEquals(Instant.parse("2016-02-29T23:59:59.5Z"), record.getInstant("d"));
+    Assert.assertEquals(Instant.parse("+10000-01-01T00:00:00Z"), record.getInstant("e"));
+    Assert.assertEquals(Instant.parse("0000-01-01T00:00:00Z"), record.getInstant("g"));
+    Assert.assertNull(record.getInstant("z"));
+
+    try {
+      Instant value = record.getInstant("f");
+      Assert.fail();
+    } catch (DateTimeParseException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testInstantsMatchInstantParse() {
+
+    Random random = new Random(42);
+
+    for (int i = 0; i < 10_000; i++) {
+
+      Instant expected = Instant.ofEpochSecond(random.nextInt() * 4L, random.nextInt(1_000_000_000));
+      byte[] bytes = ("t=" + expected).getBytes(StandardCharsets.UTF_8);
+
+      Assert.assertEquals(expected, LogRecord.parse(bytes, 0, bytes.length).getInstant("t"));
+    }
+  }
+
+  @Test
+  public void testRoundTrip() {
+
+    Instant now = Instant.parse("2017-11-30T15:10:25.007Z");
+    String log = LogFormatter.create().clock(LogClock.iso8601(Clock.fixed(now, ZoneOffset.UTC))).add("took", 42L)
+        .add("ratio", 0.25).add("ok", true).formatInfo();
+    LogRecord record = LogRecord.parse(log);
+
+    Assert.assertEquals(42, record.getLong("took"));
+    Assert.assertEquals(0.25, record.getDouble("ratio"), 0.0);
+    Assert.assertTrue(record.getBoolean("ok"));
+    Assert.assertEquals(now, record.getInstant("timestamp"));
+  }
+}
@@ -0,0 +1,150 @@
+package com.computablefacts.logfmt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogRedactorTest {
+
+  private static final byte[] SECRET = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyWord() {
+    LogRedactor redactor = LogRedactor.builder().key("").build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNonAsciiWord() {
+    LogRedactor redactor = LogRedactor.builder().key("clé").build();
+  }
+
+  @Test
+  public void testSensitiveKeys() {
+
+    LogRedactor redactor = LogRedactor.builder().key("password").key("token").key("ken").key("secret").build();
+
+    Assert.assertTrue(redactor.isSensitiveKey("password"));
+    Assert.assertTrue(redactor.isSensitiveKey("USER_PASSWORD"));
+    Assert.assertTrue(redactor.isSensitiveKey("accessToken"));
+    Assert.assertTrue(redactor.isSensitiveKey("kenny"));
+    Assert.assertTrue(redactor.isSensitiveKey("client-Secret-id"));
+    Assert.assertTrue(redactor.isSensitiveKey("pass_password"));
+    Assert.assertFalse(redactor.isSensitiveKey("passwor"));
+    Assert.assertFalse(redactor.isSensitiveKey("user"));
+    Assert.assertFalse(redactor.isSensitiveKey("sécret"));
+    Assert.assertFalse(redactor.isSensitiveKey(""));
+  }
+
+  @Test
+  public void testCachedVerdicts() {
+
+    LogRedactor redactor = LogRedactor.passwords();
+
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(i % 2 == 0, redactor.isSensitiveKey(i % 2 == 0 ? "password" + i : "user" + i));
+      Assert.assertTrue(redactor.isSensitiveKey("password"));
+      Assert.assertFalse(redactor.isSensitiveKey("user"));
+    }
+  }
+
+  @Test
+  public void testNone() {
+
+    String log = LogFormatter.create().redactor(LogRedactor.none()).add("password", "secret").format();
+
+    Assert.assertEquals("password=secret", log);
+  }
+
+  @Test
+  public void testStandard() {
+
+    String log = LogFormatter.create().redactor(LogRedactor.standard()).add("Authorization", "Bearer abc")
+        .add("api_key", 42).add("card", "4111 1111 1111 1111").add("order", "1234567890").add("user", "jdoe")
+        .format();
+
+    Assert.assertEquals(
+        "Authorization=\"******\" api_key=\"******\" card=\"******\" order=1234567890 user=jdoe", log);
+  }
+
+  @Test
+  public void testSensitiveNumbers() {
+
+    String log = LogFormatter.create().redactor(LogRedactor.standard()).add("card", 4111111111111111L)
+        .add("boxed", (Object) 5500000000000004L).add("amount", 42).add("ratio", 0.5).format();
+
+    Assert.assertEquals("amount=42 boxed=\"******\" card=\"******\" ratio=0.5", log);
+  }
+
+  @Test
+  public void testEpochTimestampIsNotRedacted() {
+
+    String log = LogFormatter.create().redactor(LogRedactor.standard()).clock(LogClock.epochMillis()).formatInfo();
+
+    Assert.assertFalse(log.contains("******"));
+  }
+
+  @Test
+  public void testNumbersFailingLuhnAreNotRedacted() {
+
+    String log = LogFormatter.create().redactor(LogRedactor.standard()).add("created_at", 1512054625123L)
+        .add("order", "1234567890123456").add("trace", "1512-0546-2512-5").add("card", "5500 0000 0000 0004")
+        .format();
+
+    Assert.assertEquals("card=\"******\" created_at=1512054625123 order=1234567890123456 trace=1512-0546-2512-5",
+        log);
+    Assert.assertFalse(LogRedactor.standard().isSensitiveValue("1512054625123"));
+    Assert.assertTrue(LogRedactor.standard().isSensitiveValue("ids 1512054625123 and 4111111111111111"));
+  }
+
+  @Test
+  public void testSensitiveValues() {
+
+    LogRedactor redactor = LogRedactor.builder().value(Pattern.compile("[a-z0-9.]+@[a-z0-9.]+")).build();
+
+    Assert.assertTrue(redactor.isSensitiveValue("contact jdoe@example.com now"));
+    Assert.assertFalse(redactor.isSensitiveValue("jdoe"));
+    Assert.assertTrue(LogRedactor.CARD_NUMBER.matcher("5500-0000-0000-0004").find());
+    Assert.assertFalse(LogRedactor.CARD_NUMBER.matcher("12345678901234567890").find());
+  }
+
+  @Test
+  public void testHash() {
+
+    LogRedactor redactor = LogRedactor.builder().key("token").hash(SECRET).build();
+    String first = LogFormatter.create().redactor(redactor).add("token", "abc").format();
+    String second = LogFormatter.create().redactor(redactor).add("token", "abc").format();
+    String third = LogFormatter.create().redactor(redactor).add("token", "abd").format();
+
+    Assert.assertTrue(first.startsWith("token=\"hmac:"));
+
+    // Not the plain SHA-256 of "abc"
+    Assert.assertFalse(first.contains("ba7816bf8f01cfea"));
+    Assert.assertEquals(first, second);
+    Assert.assertNotEquals(first, third);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testShortSecret() {
+    LogRedactor redactor = LogRedactor.builder().hash(new byte[8]).build();
+  }
+
+  @Test
+  public void testSecretChangesHash() {
+
+    LogRedactor other = LogRedactor.builder().key("token").hash("fedcba9876543210".getBytes(StandardCharsets.UTF_8))
+        .build();
+
+    Assert.assertNotEquals(LogFormatter.create().redactor(LogRedactor.builder().key("token").hash(SECRET).build())
+        .add("token", "abc").format(), LogFormatter.create().redactor(other).add("token", "abc").format());
+  }
+
+  @Test
+  public void testPrimitiveValues() {
+
+    LogRedactor redactor = LogRedactor.builder().key("pin").hash(SECRET).build();
+    String log = LogFormatter.create().redactor(redactor).add("pin", 1234).format();
+
+    Assert.assertEquals(LogFormatter.create().redactor(redactor).add("pin", "1234").format(), log);
+  }
+}
@@ -0,0 +1,88 @@
+package com.computablefacts.logfmt;
+
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogSchemaTest {
+
+  private static final LogSchema SCHEMA = LogSchema.of("timestamp", "level", "msg", "status", "latency_ms");
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateKeys() {
+    LogSchema schema = LogSchema.of("msg", "level", "msg");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyKey() {
+    LogSchema schema = LogSchema.of("msg", "");
+  }
+
+  @Test
+  public void testSlots() {
+
+    LogSchema schema = LogSchema.of(Arrays.asList("timestamp", "level", "msg"));
+
+    Assert.assertEquals(3, schema.size());
+    Assert.assertEquals("level", schema.key(0));
+    Assert.assertEquals("msg", schema.key(1));
+    Assert.assertEquals("timestamp", schema.key(2));
+    Assert.assertEquals(0, schema.slot("level"));
+    Assert.assertEquals(1, schema.slot("msg"));
+    Assert.assertEquals(2, schema.slot("timestamp"));
+    Assert.assertEquals(-1, schema.slot("host"));
+  }
+
+  @Test
+  public void testSchemaKeysOnly() {
+
+    String log = LogFormatter.create(SCHEMA).add("status", 200).add("msg", "Hello world!").add("latency_ms", 12)
+        .format();
+
+    Assert.assertEquals("latency_ms=12 msg=\"Hello world!\" status=200", log);
+  }
+
+  @Test
+  public void testSchemaAndExtraKeys() {
+
+    LogFormatter formatter = LogFormatter.create(SCHEMA).add("status", 200).add("zone", "eu").add("msg", "ok")
+        .add("host", "srv1").add("a", 1).add("mu", true);
+
+    String expected = LogFormatter.create().add("status", 200).add("zone", "eu").add("msg", "ok").add("host", "srv1")
+        .add("a", 1).add("mu", true).format();
+
+    Assert.assertEquals(expected, formatter.format());
+  }
+
+  @Test(timeout = 10_000)
+  public void testManyExtraKeys() {
+
+    LogFormatter formatter = LogFormatter.create(LogSchema.of("a", "b", "c"));
+    LogFormatter expected = LogFormatter.create();
+
+    for (int i = 0; i < 100; i++) {
+      formatter.add("b", i).add("key" + i, i).add("key" + (i / 2), -i);
+      expected.add("b", i).add("key" + i, i).add("key" + (i / 2), -i);
+    }
+
+    Assert.assertEquals(expected.format(), formatter.format());
+  }
+
+  @Test
+  public void testFormatterIsReusable() {
+
+    LogFormatter formatter = LogFormatter.create(SCHEMA);
+
+    Assert.assertEquals("host=srv1 status=500", formatter.add("status", 500).add("host", "srv1").format());
+    Assert.assertEquals("msg=ok", formatter.add("msg", "ok").format());
+    Assert.assertEquals("", formatter.format());
+  }
+
+  @Test
+  public void testLevelAndTimestamp() {
+
+    String log = LogFormatter.create(SCHEMA).message("Hello").add("host", "srv1").formatInfo();
+
+    Assert.assertTrue(log.startsWith("host=srv1 level=INFO msg=Hello timestamp="));
+  }
+}
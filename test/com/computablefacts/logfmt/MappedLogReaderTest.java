@@ -0,0 +1,145 @@
+package com.computablefacts.logfmt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MappedLogReaderTest {
+
+  private static final int NB_LINES = 50_000;
+  private static Path file_;
+  private static List<Map<String, String>> expected_;
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+
+    file_ = Files.createTempFile("logfmt", ".log");
+    expected_ = new ArrayList<>();
+
+    try (Writer writer = Files.newBufferedWriter(file_, StandardCharsets.UTF_8)) {
+      for (int i = 0; i < NB_LINES; i++) {
+
+        String line = LogFormatter.create().add("line", i).add("msg", "héllo \"wörld\" #" + i)
+            .add("status", i % 7 == 0 ? 500 : 200).format();
+
+        expected_.add(LogFormatter.parse(line));
+        writer.write(line);
+        writer.write(i % 3 == 0 ? "\r\n" : "\n");
+
+        if (i % 1000 == 0) {
+          writer.write("\n");
+        }
+      }
+    }
+  }
+
+  @AfterClass
+  public static void tearDown() throws IOException {
+    Files.delete(file_);
+  }
+
+  @Test
+  public void testSequentialOrdered() throws IOException {
+
+    MappedLogReader reader = MappedLogReader.open(file_);
+
+    Assert.assertEquals(Files.size(file_), reader.size());
+    Assert.assertEquals(expected_, reader.records(false, true).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testParallelOrdered() throws IOException {
+
+    MappedLogReader reader = MappedLogReader.open(file_, 100_000);
+
+    Assert.assertEquals(expected_, reader.records(true, true).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testParallelUnordered() throws IOException {
+
+    MappedLogReader reader = MappedLogReader.open(file_, 100_000);
+    Set<String> lines = reader.records(true, false).map(map -> map.get("line")).collect(Collectors.toSet());
+
+    Assert.assertEquals(NB_LINES, lines.size());
+    Assert.assertEquals(expected_.stream().map(map -> map.get("line")).collect(Collectors.toSet()), lines);
+  }
+
+  @Test
+  public void testFilter() throws IOException {
+
+    MappedLogReader reader = MappedLogReader.open(file_, 100_000);
+    long count = reader.records(true, false).filter(map -> "500".equals(map.get("status"))).count();
+
+    Assert.assertEquals((NB_LINES + 6) / 7, count);
+  }
+
+  @Test
+  public void testKeySubset() throws IOException {
+
+    MappedLogReader reader = MappedLogReader.open(file_, 100_000);
+    List<Map<String, String>> records = reader.records(KeyMatcher.of("status", "zone"), true, true)
+        .collect(Collectors.toList());
+
+    Assert.assertEquals(NB_LINES, records.size());
+
+    for (int i = 0; i < NB_LINES; i++) {
+      Assert.assertEquals(1, records.get(i).size());
+      Assert.assertEquals(expected_.get(i).get("status"), records.get(i).get("status"));
+    }
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+
+    Path file = Files.createTempFile("logfmt", ".log");
+
+    try {
+      Assert.assertEquals(0, MappedLogReader.open(file).records(true, true).count());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testNoTrailingNewline() throws IOException {
+
+    Path file = Files.createTempFile("logfmt", ".log");
+
+    try {
+      Files.write(file, "a=1\nb=2\nc=3".getBytes(StandardCharsets.UTF_8));
+
+      Set<String> keys = new HashSet<>();
+      MappedLogReader.open(file, 5).records(false, true).forEach(map -> keys.addAll(map.keySet()));
+
+      Assert.assertEquals(3, keys.size());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testLineLongerThanSegment() throws IOException {
+
+    Path file = Files.createTempFile("logfmt", ".log");
+
+    try {
+      Files.write(file, "key=value\nkey=value".getBytes(StandardCharsets.UTF_8));
+      MappedLogReader reader = MappedLogReader.open(file, 4);
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package com.computablefacts.logfmt;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StringInternerTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroCapacity() {
+    StringInterner interner = StringInterner.create(0);
+  }
+
+  @Test
+  public void testCanonicalInstances() {
+
+    StringInterner interner = StringInterner.create(1024);
+    String log = "level=INFO level=INFO";
+
+    String first = interner.intern(log, 0, 5);
+    String second = interner.intern(log, 11, 16);
+
+    Assert.assertEquals("level", first);
+    Assert.assertSame(first, second);
+    Assert.assertSame(first, interner.intern(new StringBuilder("level"), 0, 5));
+    Assert.assertEquals(2, interner.hits());
+    Assert.assertEquals(1, interner.misses());
+  }
+
+  @Test
+  public void testUtf8Ranges() {
+
+    StringInterner interner = StringInterner.create(1024);
+    byte[] bytes = "clé clé".getBytes(StandardCharsets.UTF_8);
+    Utf8Sequence log = new Utf8Sequence(bytes, 0, bytes.length);
+
+    String first = interner.intern(log, 0, 4);
+
+    Assert.assertEquals("clé", first);
+    Assert.assertSame(first, interner.intern(log, 5, 9));
+  }
+
+  @Test
+  public void testUtf8AndStringShareInstances() {
+
+    StringInterner interner = StringInterner.create(1024);
+
+    for (String value : new String[]{"clé", "naïve café", "日本語", "😀 smile", "a\u0080b"}) {
+
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      String string = interner.intern(value);
+
+      Assert.assertSame(string, interner.intern(new Utf8Sequence(bytes, 0, bytes.length), 0, bytes.length));
+    }
+
+    // Malformed sequences are hashed like their decoded form
+    byte[] malformed = {'a', (byte) 0xC3, 'b', (byte) 0xED, (byte) 0xA0, (byte) 0x80};
+    String decoded = new String(malformed, StandardCharsets.UTF_8);
+
+    Assert.assertEquals(decoded, interner.intern(new Utf8Sequence(malformed, 0, malformed.length), 0,
+        malformed.length));
+  }
+
+  @Test
+  public void testMaxLength() {
+
+    StringInterner interner = StringInterner.create(1024, 4);
+
+    Assert.assertNotSame(interner.intern(new String("hello")), interner.intern(new String("hello")));
+    Assert.assertEquals(0, interner.hits() + interner.misses());
+    Assert.assertEquals("", interner.intern(""));
+  }
+
+  @Test
+  public void testCapacityIsBounded() {
+
+    StringInterner interner = StringInterner.create(256);
+
+    for (int i = 0; i < 10_000; i++) {
+      Assert.assertEquals(Integer.toString(i), interner.intern(Integer.toString(i)));
+    }
+
+    Assert.assertEquals(256, interner.capacity());
+    Assert.assertTrue(interner.size() <= 256);
+    Assert.assertEquals(10_000, interner.misses());
+  }
+
+  @Test
+  public void testRecentlyHitStringsSurvive() {
+
+    StringInterner interner = StringInterner.create(64);
+    String level = interner.intern("INFO");
+
+    for (int i = 0; i < 10_000; i++) {
+      Assert.assertSame(level, interner.intern(new String("INFO")));
+      Assert.assertEquals(Integer.toString(i), interner.intern(Integer.toString(i)));
+    }
+  }
+
+  @Test
+  public void testParse() {
+
+    StringInterner interner = StringInterner.create(1024);
+    String log = LogFormatter.create().add("level", "INFO").add("msg", "Hello \"world\"").add("status", 200).format();
+    byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+
+    Map<String, String> map1 = LogFormatter.parse(log, interner);
+    Map<String, String> map2 = LogFormatter.parse(bytes, 0, bytes.length, interner);
+
+    Assert.assertEquals(LogFormatter.parse(log), map1);
+    Assert.assertEquals(map1, map2);
+
+    for (String key : map2.keySet()) {
+      Assert.assertSame(interner.intern(new String(key)), key);
+    }
+    Assert.assertSame(map1.get("level"), map2.get("level"));
+    Assert.assertNotSame(map1.get("msg"), map2.get("msg"));
+  }
+
+  @Test
+  public void testUtf8Hits() {
+
+    StringInterner interner = StringInterner.create(1024);
+
+    for (String string : new String[]{"caf\u00e9", "\u4e16\u754c", "smile \ud83d\ude00", "\u00e9t\u00e9 2024"}) {
+
+      String canonical = interner.intern(string);
+      byte[] bytes = ("#" + string + "#").getBytes(StandardCharsets.UTF_8);
+      Utf8Sequence utf8 = new Utf8Sequence(bytes, 0, bytes.length);
+
+      Assert.assertSame(canonical, interner.intern(utf8, 1, bytes.length - 1));
+      Assert.assertTrue(LogFormatter.regionMatches(utf8, 1, bytes.length - 1, string));
+      Assert.assertFalse(LogFormatter.regionMatches(utf8, 1, bytes.length - 2, string));
+      Assert.assertFalse(LogFormatter.regionMatches(utf8, 1, bytes.length - 1, string + "x"));
+      Assert.assertFalse(LogFormatter.regionMatches(utf8, 1, bytes.length - 1, "\u00e8" + string.substring(1)));
+    }
+
+    Assert.assertFalse(LogFormatter.regionMatches(new Utf8Sequence(new byte[]{(byte) 0xC3, (byte) 0xA9}, 0, 2), 0, 2,
+        "\u00e8"));
+    Assert.assertTrue(LogFormatter.regionMatches(new Utf8Sequence(new byte[]{(byte) 0xC3, 'a'}, 0, 2), 0, 2,
+        "\ufffda"));
+  }
+
+  @Test
+  public void testUtf8HitsDoNotAllocate() {
+
+    StringInterner interner = StringInterner.create(1024);
+    String string = "caf\u00e9 \u4e16\u754c \ud83d\ude00";
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    Utf8Sequence utf8 = new Utf8Sequence(bytes, 0, bytes.length);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    Assert.assertSame(interner.intern(string), interner.intern(utf8, 0, bytes.length));
+
+    for (int i = 0; i < 100_000; i++) {
+      String hit = interner.intern(utf8, 0, bytes.length);
+    }
+
+    long before = threads.getThreadAllocatedBytes(thread);
+
+    for (int i = 0; i < 100_000; i++) {
+      String hit = interner.intern(utf8, 0, bytes.length);
+    }
+
+    // Decoding the range on each hit would allocate several megabytes
+    Assert.assertTrue(threads.getThreadAllocatedBytes(thread) - before < 100_000);
+  }
+}
@@ -0,0 +1,110 @@
+package com.computablefacts.logfmt;
+
+import com.google.common.base.Throwables;
+import com.google.errorprone.annotations.Var;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThrowableRendererTest {
+
+  private static String render(ThrowableRenderer renderer, Throwable throwable) {
+    StringBuilder builder = new StringBuilder();
+    renderer.render(builder, throwable);
+    return builder.toString();
+  }
+
+  private static String expected(Throwable throwable) {
+    return LogEncoder.quote(new StringBuilder(), Throwables.getStackTraceAsString(Throwables.getRootCause(throwable)))
+        .toString();
+  }
+
+  private static int count(String string, String substring) {
+
+    @Var int count = 0;
+
+    for (int i = string.indexOf(substring); i >= 0; i = string.indexOf(substring, i + 1)) {
+      count++;
+    }
+    return count;
+  }
+
+  private static Exception nested() {
+    return new IllegalStateException("outer", new IOException("inner \"quoted\" = value"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroMaxFrames() {
+    ThrowableRenderer renderer = ThrowableRenderer.builder().maxFrames(0).build();
+  }
+
+  @Test
+  public void testFullRendering() {
+
+    Exception exception = nested();
+
+    Assert.assertEquals(expected(exception), render(ThrowableRenderer.full(), exception));
+    Assert.assertEquals(expected(exception),
+        render(ThrowableRenderer.builder().cacheSize(0).build(), exception));
+  }
+
+  @Test
+  public void testSuppressedExceptions() {
+
+    Exception exception = new IllegalStateException("root");
+    Exception suppressed = nested();
+
+    exception.addSuppressed(suppressed);
+    suppressed.addSuppressed(new RuntimeException("deeper"));
+
+    Assert.assertEquals(expected(exception), render(ThrowableRenderer.full(), exception));
+  }
+
+  @Test
+  public void testCachedRendering() {
+
+    ThrowableRenderer renderer = ThrowableRenderer.builder().cacheSize(1).build();
+
+    for (int i = 0; i < 3; i++) {
+
+      Exception exception = nested();
+
+      Assert.assertEquals(expected(exception), render(renderer, exception));
+    }
+
+    Exception other = new IOException("other");
+
+    Assert.assertEquals(expected(other), render(renderer, other));
+  }
+
+  @Test
+  public void testMaxFrames() {
+
+    Exception exception = nested();
+    int nbFrames = Throwables.getRootCause(exception).getStackTrace().length;
+    String rendering = render(ThrowableRenderer.builder().maxFrames(2).build(), exception);
+    String trace = LogFormatter.parse("msg=" + rendering).get("msg");
+
+    Assert.assertTrue(trace.startsWith("java.io.IOException: inner \"quoted\" = value"));
+    Assert.assertEquals(2, count(trace, "\tat "));
+    Assert.assertTrue(trace.contains("\t... " + (nbFrames - 2) + " more"));
+  }
+
+  @Test
+  public void testMaxLength() {
+
+    String rendering = render(ThrowableRenderer.builder().maxLength(20).build(), nested());
+
+    Assert.assertEquals("\"java.io.IOException:\"", rendering);
+  }
+
+  @Test
+  public void testFormatter() {
+
+    ThrowableRenderer renderer = ThrowableRenderer.builder().maxFrames(1).build();
+    String log = LogFormatter.create().throwables(renderer).message(nested()).format();
+
+    Assert.assertTrue(log.startsWith("msg=\"java.io.IOException: inner \\\"quoted\\\" \\= value"));
+    Assert.assertEquals(1, count(log, "\\tat "));
+  }
+}